@@ -0,0 +1,162 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.text.BadLocationException;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ro.sync.ecss.extensions.api.AuthorDocumentController;
+import ro.sync.ecss.extensions.api.node.AuthorElement;
+
+/**
+ * Benchmark of freezing the equations of a document, done every time an equation is rendered.
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EquationCacheBenchmark {
+
+  /**
+   * The number of equations in the document.
+   */
+  private static final int EQUATIONS_COUNT = 1000;
+
+  /**
+   * The size of the equations.
+   */
+  @Param({"small", "medium", "large"})
+  public String size;
+
+  /**
+   * The equation cache.
+   */
+  private PerDocumentEquationCache cache;
+
+  /**
+   * The equation elements of the document.
+   */
+  private AuthorElement[] elements;
+
+  /**
+   * The index of the next equation to freeze.
+   */
+  private int next;
+
+  /**
+   * Creates a document with {@link #EQUATIONS_COUNT} equations.
+   *
+   * @throws IOException If the equation cannot be read.
+   * @throws BadLocationException If it fails.
+   */
+  @Setup
+  public void setUp() throws IOException, BadLocationException {
+    String xml = EquationCorpus.load(size);
+    // A plain proxy, so that the benchmark does not measure the mocking framework.
+    AuthorDocumentController controller = (AuthorDocumentController) Proxy.newProxyInstance(
+        getClass().getClassLoader(), 
+        new Class<?>[] {AuthorDocumentController.class}, 
+        (proxy, method, args) -> "serializeFragmentToXML".equals(method.getName()) ? xml : null);
+    cache = new PerDocumentEquationCache(controller);
+    elements = new AuthorElement[EQUATIONS_COUNT];
+    for (int i = 0; i < elements.length; i++) {
+      elements[i] = Mockito.mock(AuthorElement.class);
+      cache.freezeMathMLfrag(elements[i]);
+    }
+  }
+
+  /**
+   * Freezes the equations in turn, as when the document is rendered again.
+   *
+   * @return The ID of the equation.
+   *
+   * @throws BadLocationException If it fails.
+   */
+  @Benchmark
+  public long freezeMathMLfrag() throws BadLocationException {
+    AuthorElement element = elements[next];
+    next = (next + 1) % elements.length;
+    return cache.freezeMathMLfrag(element);
+  }
+
+  /**
+   * @return The XML of a frozen equation, as read when the image is requested.
+   */
+  @Benchmark
+  public String getXmlFragment() {
+    long elemId = next;
+    next = (next + 1) % elements.length;
+    return cache.getXmlFragment(elemId);
+  }
+
+  /**
+   * @return The XML of a random equation, read while another thread freezes equations, as when 
+   * the images are requested while the document is rendered.
+   */
+  @Benchmark
+  @Group("concurrentReads")
+  @GroupThreads(4)
+  public String readWhileFreezing() {
+    return cache.getXmlFragment(ThreadLocalRandom.current().nextInt(EQUATIONS_COUNT));
+  }
+
+  /**
+   * @return The ID of a random equation, frozen while other threads read equations.
+   *
+   * @throws BadLocationException If it fails.
+   */
+  @Benchmark
+  @Group("concurrentReads")
+  @GroupThreads(1)
+  public long freezeWhileReading() throws BadLocationException {
+    return cache.freezeMathMLfrag(elements[ThreadLocalRandom.current().nextInt(EQUATIONS_COUNT)]);
+  }
+
+  /**
+   * Baseline for {@link #readWhileFreezing()}: the reads are serialized with the freeze 
+   * operations, as they were when both were synchronized on the cache.
+   *
+   * @return The XML of a random equation.
+   */
+  @Benchmark
+  @Group("serializedReads")
+  @GroupThreads(4)
+  public String serializedReadWhileFreezing() {
+    synchronized (cache) {
+      return cache.getXmlFragment(ThreadLocalRandom.current().nextInt(EQUATIONS_COUNT));
+    }
+  }
+
+  /**
+   * @return The ID of a random equation, frozen while other threads read equations.
+   *
+   * @throws BadLocationException If it fails.
+   */
+  @Benchmark
+  @Group("serializedReads")
+  @GroupThreads(1)
+  public long freezeWhileSerializedReading() throws BadLocationException {
+    return freezeWhileReading();
+  }
+}
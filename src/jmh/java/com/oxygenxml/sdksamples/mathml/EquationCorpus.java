@@ -0,0 +1,72 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * The equations used by the benchmarks, loaded from the "corpus" resource folder.
+ *
+ * @author agent
+ */
+public class EquationCorpus {
+
+  /**
+   * The prefix used for the prefixed variant of the equations.
+   */
+  private static final String PREFIX = "m";
+
+  /**
+   * Private constructor.
+   */
+  private EquationCorpus() {
+  }
+
+  /**
+   * Loads an equation of the corpus, as it is serialized from the document: with named entities.
+   *
+   * @param size The size of the equation: small, medium or large.
+   *
+   * @return The MathML fragment.
+   *
+   * @throws IOException If the equation cannot be read.
+   */
+  public static String load(String size) throws IOException {
+    String resource = "corpus/" + size + ".mml";
+    try (InputStream in = EquationCorpus.class.getResourceAsStream(resource)) {
+      if (in == null) {
+        throw new IOException("Equation not found in the corpus: " + resource);
+      }
+      return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Loads a variant of an equation of the corpus.
+   *
+   * @param size The size of the equation: small, medium or large.
+   * @param variant The variant: "entities" as in the corpus, "plain" with the entities expanded,
+   * "prefixed" with the entities expanded and an undeclared namespace prefix.
+   *
+   * @return The MathML fragment.
+   *
+   * @throws IOException If the equation cannot be read.
+   */
+  public static String load(String size, String variant) throws IOException {
+    String xml = load(size);
+    switch (variant) {
+      case "entities":
+        return xml;
+      case "plain":
+        return MathMLPreprocessor.preprocess(xml).getXml();
+      case "prefixed":
+        return MathMLPreprocessor.preprocess(xml).getXml()
+            .replace(" xmlns=\"http://www.w3.org/1998/Math/MathML\"", "")
+            .replaceAll("<(/?)([a-z])", "<$1" + PREFIX + ":$2");
+      default:
+        throw new IllegalArgumentException("Unknown variant: " + variant);
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * Benchmark of parsing the MathML fragments, before they are laid out.
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+  /**
+   * The size of the equation.
+   */
+  @Param({"small", "medium", "large"})
+  public String size;
+
+  /**
+   * The variant of the equation, see {@link EquationCorpus#load(String, String)}.
+   */
+  @Param({"plain", "entities", "prefixed"})
+  public String variant;
+
+  /**
+   * <code>true</code> to reuse the parsers.
+   */
+  @Param({"true", "false"})
+  public boolean pooled;
+
+  /**
+   * The MathML fragment.
+   */
+  private String xml;
+
+  /**
+   * The renderer.
+   */
+  private JEuclidRenderer renderer;
+
+  /**
+   * Loads the equation.
+   *
+   * @throws IOException If the equation cannot be read.
+   */
+  @Setup
+  public void setUp() throws IOException {
+    xml = EquationCorpus.load(size, variant);
+    renderer = pooled ? new JEuclidRenderer() : new JEuclidRenderer(null);
+  }
+
+  /**
+   * @return The parsed fragment.
+   *
+   * @throws IOException If it fails.
+   * @throws SAXException If it fails.
+   */
+  @Benchmark
+  public Document loadXMLFromString() throws IOException, SAXException {
+    return renderer.loadXMLFromString(xml, null, null);
+  }
+
+  /**
+   * @return The fragment prepared for parsing.
+   */
+  @Benchmark
+  public MathMLPreprocessor preprocess() {
+    return MathMLPreprocessor.preprocess(xml);
+  }
+}
@@ -0,0 +1,113 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ro.sync.exml.workspace.api.PluginWorkspaceProvider;
+import ro.sync.exml.workspace.api.standalone.StandalonePluginWorkspace;
+import ro.sync.exml.workspace.api.util.PrettyPrintException;
+import ro.sync.exml.workspace.api.util.XMLUtilAccess;
+
+/**
+ * Benchmark of pretty-printing the MathML fragment that is sent to the browser for editing.
+ * 
+ * The pretty-printer of the server is not available outside of it, so an indenting JAXP 
+ * transformer stands in for it when the benchmark runs without a workspace.
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrettyPrintBenchmark {
+
+  /**
+   * The size of the equation.
+   */
+  @Param({"small", "medium", "large"})
+  public String size;
+
+  /**
+   * The MathML fragment, on a single line as it is serialized from the document.
+   */
+  private String xml;
+
+  /**
+   * The renderer.
+   */
+  private WebappMathMLRenderer renderer;
+
+  /**
+   * Loads the equation and installs the pretty-printer.
+   *
+   * @throws IOException If the equation cannot be read.
+   * @throws PrettyPrintException If it fails.
+   */
+  @Setup
+  public void setUp() throws IOException, PrettyPrintException {
+    xml = EquationCorpus.load(size, "plain").replaceAll(">\\s+<", "><");
+    renderer = new WebappMathMLRenderer();
+    if (PluginWorkspaceProvider.getPluginWorkspace() == null) {
+      XMLUtilAccess xmlUtilAccess = Mockito.mock(XMLUtilAccess.class);
+      Mockito.when(xmlUtilAccess.prettyPrint(Mockito.any(Reader.class), Mockito.any()))
+        .thenAnswer(invocation -> indent(invocation.getArgument(0)));
+      StandalonePluginWorkspace workspace = Mockito.mock(StandalonePluginWorkspace.class);
+      Mockito.when(workspace.getXMLUtilAccess()).thenReturn(xmlUtilAccess);
+      PluginWorkspaceProvider.setPluginWorkspace(workspace);
+    }
+  }
+
+  /**
+   * @return The pretty-printed fragment.
+   */
+  @Benchmark
+  public String formatAndIndentXmlFragment() {
+    return renderer.formatAndIndentXmlFragment(xml, null);
+  }
+
+  /**
+   * Indents an XML document.
+   *
+   * @param reader The XML document.
+   *
+   * @return The indented document.
+   */
+  private static String indent(Reader reader) {
+    try {
+      Transformer transformer = TransformerFactory.newInstance().newTransformer();
+      transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+      transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+      StringWriter result = new StringWriter();
+      transformer.transform(new StreamSource(reader), new StreamResult(result));
+      return result.toString();
+    } catch (TransformerException e) {
+      // The equations of the corpus are well-formed.
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import net.sourceforge.jeuclid.LayoutContext;
+import net.sourceforge.jeuclid.context.LayoutContextImpl;
+import net.sourceforge.jeuclid.converter.Converter;
+import net.sourceforge.jeuclid.layout.JEuclidView;
+
+/**
+ * Benchmark of the stages that turn a parsed MathML fragment into a PNG image: 
+ * layout, rasterization and encoding.
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RenderBenchmark {
+
+  /**
+   * The size of the equation.
+   */
+  @Param({"small", "medium", "large"})
+  public String size;
+
+  /**
+   * The parsed equation.
+   */
+  private Document doc;
+
+  /**
+   * The layout context, the same as the one used by the renderer.
+   */
+  private LayoutContext layoutContext;
+
+  /**
+   * The graphics used for the font metrics during layout.
+   */
+  private Graphics2D layoutGraphics;
+
+  /**
+   * The rendered equation.
+   */
+  private BufferedImage image;
+
+  /**
+   * Parses and renders the equation.
+   *
+   * @throws IOException If it fails.
+   * @throws SAXException If it fails.
+   */
+  @Setup
+  public void setUp() throws IOException, SAXException {
+    doc = new JEuclidRenderer().loadXMLFromString(EquationCorpus.load(size), null, null);
+    layoutContext = new LayoutContextImpl(LayoutContextImpl.getDefaultLayoutContext());
+    layoutGraphics = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+    image = Converter.getInstance().render(doc, layoutContext);
+  }
+
+  /**
+   * Releases the layout graphics.
+   */
+  @TearDown
+  public void tearDown() {
+    layoutGraphics.dispose();
+  }
+
+  /**
+   * @return The laid out equation.
+   */
+  @Benchmark
+  public JEuclidView layout() {
+    JEuclidView view = new JEuclidView(doc, layoutContext, layoutGraphics);
+    // The layout is computed lazily.
+    view.getWidth();
+    return view;
+  }
+
+  /**
+   * @return The equation laid out and painted on an image.
+   *
+   * @throws IOException If it fails.
+   */
+  @Benchmark
+  public BufferedImage rasterize() throws IOException {
+    return Converter.getInstance().render(doc, layoutContext);
+  }
+
+  /**
+   * @return The image encoded by the plugin.
+   */
+  @Benchmark
+  public byte[] encodePng() {
+    return PngEncoder.encode(image);
+  }
+
+  /**
+   * Baseline for {@link #encodePng()}.
+   *
+   * @return The image encoded by ImageIO.
+   *
+   * @throws IOException If it fails.
+   */
+  @Benchmark
+  public byte[] encodePngImageIO() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", out);
+    return out.toByteArray();
+  }
+}
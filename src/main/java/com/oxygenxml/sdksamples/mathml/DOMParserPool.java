@@ -0,0 +1,99 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.xerces.parsers.DOMParser;
+
+import ro.sync.xml.parser.ParserCreator;
+
+/**
+ * Bounded pool of configured DOM parsers.
+ *
+ * Creating a parser builds a new Xerces configuration, symbol table and scanner, which
+ * is expensive compared to parsing a small MathML fragment. A parser is used by one
+ * thread at a time and Xerces resets it at the beginning of every parse.
+ * 
+ * The pooled parsers share the DTDs they compile through a {@link DoctypeGrammarPool}.
+ *
+ * @author agent
+ */
+public class DOMParserPool {
+
+  /**
+   * The default number of idle parsers kept in the pool.
+   */
+  private static final int DEFAULT_CAPACITY = 16;
+
+  /**
+   * The pool shared by all the renderers.
+   */
+  private static final DOMParserPool sharedPool = new DOMParserPool(DEFAULT_CAPACITY);
+
+  /**
+   * The idle parsers.
+   */
+  private final BlockingQueue<DOMParser> idleParsers;
+
+  /**
+   * Constructor.
+   *
+   * @param capacity The maximum number of idle parsers kept in the pool.
+   */
+  DOMParserPool(int capacity) {
+    this.idleParsers = new ArrayBlockingQueue<>(capacity);
+  }
+
+  /**
+   * @return The pool shared by all the renderers.
+   */
+  public static DOMParserPool getSharedPool() {
+    return sharedPool;
+  }
+
+  /**
+   * Borrows a parser from the pool. The parser must be given back using
+   * {@link #release(DOMParser, boolean)}.
+   *
+   * @return A parser that is not used by other threads.
+   */
+  public DOMParser borrow() {
+    DOMParser parser = idleParsers.poll();
+    if (parser == null) {
+      parser = createParser();
+      DoctypeGrammarPool.install(parser);
+    }
+    return parser;
+  }
+
+  /**
+   * Gives a parser back to the pool.
+   *
+   * @param parser The parser.
+   * @param reusable <code>false</code> if the parser failed and should be discarded.
+   */
+  public void release(DOMParser parser, boolean reusable) {
+    // Do not keep the last parsed document alive while the parser is idle.
+    parser.dropDocumentReferences();
+    if (reusable) {
+      // If the pool is full, the parser is simply dropped.
+      idleParsers.offer(parser);
+    }
+  }
+
+  /**
+   * @return The number of idle parsers.
+   */
+  int getIdleCount() {
+    return idleParsers.size();
+  }
+
+  /**
+   * @return A new parser configured for parsing MathML fragments.
+   */
+  static DOMParser createParser() {
+    DOMParser domParser = ParserCreator.createDOMParser();
+    domParser.getXMLParserConfiguration().setFeature("http://apache.org/xml/features/dom/create-entity-ref-nodes", false);
+    return domParser;
+  }
+}
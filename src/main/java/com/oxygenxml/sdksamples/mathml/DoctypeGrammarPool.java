@@ -0,0 +1,225 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.xerces.impl.XMLEntityManager;
+import org.apache.xerces.impl.dtd.DTDGrammar;
+import org.apache.xerces.impl.dtd.XMLEntityDecl;
+import org.apache.xerces.parsers.DOMParser;
+import org.apache.xerces.xni.grammars.Grammar;
+import org.apache.xerces.xni.grammars.XMLGrammarDescription;
+import org.apache.xerces.xni.grammars.XMLGrammarPool;
+import org.xml.sax.SAXException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Grammar pool that caches the DTDs used to resolve entities in MathML fragments, so that
+ * a DTD is compiled once per document type rather than once per equation.
+ *
+ * The compiled grammars are shared by all the parsers and are keyed by the serialized
+ * doctype and the system ID of the document. Each parser has its own instance of this
+ * class which holds the key of the fragment being parsed.
+ *
+ * @author agent
+ */
+@Slf4j
+public class DoctypeGrammarPool implements XMLGrammarPool {
+
+  /**
+   * Xerces property for the grammar pool.
+   */
+  static final String GRAMMAR_POOL_PROPERTY = "http://apache.org/xml/properties/internal/grammar-pool";
+
+  /**
+   * Xerces property for the entity manager.
+   */
+  static final String ENTITY_MANAGER_PROPERTY = "http://apache.org/xml/properties/internal/entity-manager";
+
+  /**
+   * The maximum number of grammars kept in the pool.
+   */
+  static final int MAX_GRAMMARS = 32;
+
+  /**
+   * The compiled grammars shared by all the parsers.
+   */
+  private static final Cache<String, Grammar> grammars = CacheBuilder.newBuilder()
+      .maximumSize(MAX_GRAMMARS)
+      .build();
+
+  /**
+   * The number of grammars found in the pool.
+   */
+  private static final AtomicLong hitCount = new AtomicLong();
+
+  /**
+   * The number of grammars that had to be compiled.
+   */
+  private static final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * The entity manager of the parser that uses this pool.
+   */
+  private final XMLEntityManager entityManager;
+
+  /**
+   * The key of the doctype used by the fragment being parsed, <code>null</code> if
+   * the grammar should not be cached.
+   */
+  private String doctypeKey;
+
+  /**
+   * Constructor.
+   *
+   * @param entityManager The entity manager of the parser that uses this pool.
+   */
+  private DoctypeGrammarPool(XMLEntityManager entityManager) {
+    this.entityManager = entityManager;
+  }
+
+  /**
+   * Attaches a grammar pool to the given parser.
+   *
+   * @param parser The parser.
+   */
+  static void install(DOMParser parser) {
+    try {
+      XMLEntityManager entityManager = (XMLEntityManager) parser.getProperty(ENTITY_MANAGER_PROPERTY);
+      parser.setProperty(GRAMMAR_POOL_PROPERTY, new DoctypeGrammarPool(entityManager));
+    } catch (SAXException | ClassCastException e) {
+      log.debug("Grammar caching not supported by the parser: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Returns the grammar pool attached to the given parser.
+   *
+   * @param parser The parser.
+   *
+   * @return The grammar pool or <code>null</code> if none was attached.
+   */
+  static DoctypeGrammarPool of(DOMParser parser) {
+    try {
+      Object pool = parser.getProperty(GRAMMAR_POOL_PROPERTY);
+      return pool instanceof DoctypeGrammarPool ? (DoctypeGrammarPool) pool : null;
+    } catch (SAXException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Sets the doctype used by the next fragment.
+   *
+   * @param doctype The serialized doctype, <code>null</code> if the grammar should not be cached.
+   * @param systemID The system ID of the document.
+   */
+  void setDoctype(String doctype, String systemID) {
+    if (doctype != null && doctype.indexOf('[') == -1) {
+      doctypeKey = doctype + '\n' + systemID;
+    } else {
+      // The declarations of an internal subset would be added to the shared grammar.
+      doctypeKey = null;
+    }
+  }
+
+  /**
+   * @param desc The grammar description.
+   *
+   * @return The key of the grammar in the shared cache.
+   */
+  private String getGrammarKey(XMLGrammarDescription desc) {
+    return doctypeKey + '\n' + desc.getPublicId() + '\n' + desc.getExpandedSystemId();
+  }
+
+  @Override
+  public Grammar[] retrieveInitialGrammarSet(String grammarType) {
+    return new Grammar[0];
+  }
+
+  @Override
+  public void cacheGrammars(String grammarType, Grammar[] newGrammars) {
+    if (doctypeKey != null && XMLGrammarDescription.XML_DTD.equals(grammarType)) {
+      for (Grammar grammar : newGrammars) {
+        grammars.asMap().putIfAbsent(getGrammarKey(grammar.getGrammarDescription()), grammar);
+      }
+    }
+  }
+
+  @Override
+  public Grammar retrieveGrammar(XMLGrammarDescription desc) {
+    if (doctypeKey == null || !XMLGrammarDescription.XML_DTD.equals(desc.getGrammarType())) {
+      return null;
+    }
+    Grammar grammar = grammars.getIfPresent(getGrammarKey(desc));
+    if (grammar != null) {
+      hitCount.incrementAndGet();
+      // When the grammar is cached, Xerces does not read the external subset again,
+      // so the entities it declares have to be declared from the grammar.
+      declareEntities(grammar);
+    } else {
+      missCount.incrementAndGet();
+    }
+    return grammar;
+  }
+
+  /**
+   * Declares the general entities of the grammar in the entity manager of the parser.
+   *
+   * @param grammar The grammar.
+   */
+  private void declareEntities(Grammar grammar) {
+    if (grammar instanceof DTDGrammar && entityManager != null) {
+      DTDGrammar dtdGrammar = (DTDGrammar) grammar;
+      XMLEntityDecl entityDecl = new XMLEntityDecl();
+      for (int i = 0; dtdGrammar.getEntityDecl(i, entityDecl); i++) {
+        if (entityDecl.isPE || entityDecl.notation != null) {
+          continue;
+        }
+        if (entityDecl.value != null) {
+          entityManager.addInternalEntity(entityDecl.name, entityDecl.value);
+        } else {
+          try {
+            entityManager.addExternalEntity(entityDecl.name, entityDecl.publicId,
+                entityDecl.systemId, entityDecl.baseSystemId);
+          } catch (IOException e) {
+            log.debug("Cannot declare external entity " + entityDecl.name, e);
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  public void lockPool() {
+    // The shared cache is always thread-safe.
+  }
+
+  @Override
+  public void unlockPool() {
+    // The shared cache is always thread-safe.
+  }
+
+  @Override
+  public void clear() {
+    grammars.invalidateAll();
+  }
+
+  /**
+   * @return The number of times a compiled grammar was reused.
+   */
+  public static long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * @return The number of times a grammar was not found in the pool and had to be compiled.
+   */
+  public static long getMissCount() {
+    return missCount.get();
+  }
+}
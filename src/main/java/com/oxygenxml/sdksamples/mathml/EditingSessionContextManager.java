@@ -8,6 +8,7 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 
 import ro.sync.ecss.extensions.api.AuthorAccess;
+import ro.sync.ecss.extensions.api.AuthorDocumentController;
 import ro.sync.ecss.extensions.api.access.EditingSessionContext;
 
 /**
@@ -49,7 +50,12 @@ public class EditingSessionContextManager {
       String docId = generateId();
       activeAuthorAccessCache.put(docId, authorAccess);
       editingContext.setAttribute(AUTHOR_ACCESS_ID, docId);
-      editingContext.setAttribute(EQUATION_CACHE, new PerDocumentEquationCache(authorAccess.getDocumentController()));
+      AuthorDocumentController docController = authorAccess.getDocumentController();
+      PerDocumentEquationCache equationCache = new PerDocumentEquationCache(docController);
+      editingContext.setAttribute(EQUATION_CACHE, equationCache);
+      if (docController != null) {
+        equationCache.trackChanges();
+      }
     }
   }
 
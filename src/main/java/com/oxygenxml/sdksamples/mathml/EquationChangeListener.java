@@ -0,0 +1,96 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import ro.sync.ecss.extensions.api.AttributeChangedEvent;
+import ro.sync.ecss.extensions.api.AuthorListenerAdapter;
+import ro.sync.ecss.extensions.api.DocumentContentDeletedEvent;
+import ro.sync.ecss.extensions.api.DocumentContentInsertedEvent;
+import ro.sync.ecss.extensions.api.node.AuthorDocument;
+import ro.sync.ecss.extensions.api.node.AuthorNode;
+
+/**
+ * Listener that marks the equations affected by the changes of the document, so that
+ * {@link PerDocumentEquationCache} serializes again only the equations that changed.
+ *
+ * @author agent
+ */
+class EquationChangeListener extends AuthorListenerAdapter {
+
+  /**
+   * The equation cache of the document.
+   */
+  private final PerDocumentEquationCache equationCache;
+
+  /**
+   * Constructor.
+   *
+   * @param equationCache The equation cache of the document.
+   */
+  EquationChangeListener(PerDocumentEquationCache equationCache) {
+    this.equationCache = equationCache;
+  }
+
+  /**
+   * @see ro.sync.ecss.extensions.api.AuthorListenerAdapter#contentInserted(ro.sync.ecss.extensions.api.DocumentContentInsertedEvent)
+   */
+  @Override
+  public void contentInserted(DocumentContentInsertedEvent e) {
+    equationCache.markChanged(e.getParentNode());
+  }
+
+  /**
+   * @see ro.sync.ecss.extensions.api.AuthorListenerAdapter#contentDeleted(ro.sync.ecss.extensions.api.DocumentContentDeletedEvent)
+   */
+  @Override
+  public void contentDeleted(DocumentContentDeletedEvent e) {
+    equationCache.markChanged(e.getParentNode());
+  }
+
+  /**
+   * @see ro.sync.ecss.extensions.api.AuthorListenerAdapter#attributeChanged(ro.sync.ecss.extensions.api.AttributeChangedEvent)
+   */
+  @Override
+  public void attributeChanged(AttributeChangedEvent e) {
+    if (isInheritedAttribute(e.getAttributeName())) {
+      // The attribute may be set on an ancestor of the equations, which inherit it.
+      equationCache.markAllChanged();
+    } else {
+      equationCache.markChanged(e.getOwnerAuthorNode());
+    }
+  }
+
+  /**
+   * @param attributeName The qualified name of an attribute.
+   * 
+   * @return <code>true</code> if the attribute is inherited by the descendants of its element, 
+   * like the namespace declarations, <code>xml:lang</code> or <code>xml:base</code>.
+   */
+  static boolean isInheritedAttribute(String attributeName) {
+    return attributeName != null && (attributeName.equals("xmlns") 
+        || attributeName.startsWith("xmlns:") || attributeName.startsWith("xml:"));
+  }
+
+  /**
+   * @see ro.sync.ecss.extensions.api.AuthorListenerAdapter#authorNodeNameChanged(ro.sync.ecss.extensions.api.node.AuthorNode)
+   */
+  @Override
+  public void authorNodeNameChanged(AuthorNode node) {
+    equationCache.markChanged(node);
+  }
+
+  /**
+   * @see ro.sync.ecss.extensions.api.AuthorListenerAdapter#authorNodeStructureChanged(ro.sync.ecss.extensions.api.node.AuthorNode)
+   */
+  @Override
+  public void authorNodeStructureChanged(AuthorNode node) {
+    // The whole subtree may have changed.
+    equationCache.markAllChanged();
+  }
+
+  /**
+   * @see ro.sync.ecss.extensions.api.AuthorListenerAdapter#documentChanged(ro.sync.ecss.extensions.api.node.AuthorDocument, ro.sync.ecss.extensions.api.node.AuthorDocument)
+   */
+  @Override
+  public void documentChanged(AuthorDocument oldDocument, AuthorDocument newDocument) {
+    equationCache.markAllChanged();
+  }
+}
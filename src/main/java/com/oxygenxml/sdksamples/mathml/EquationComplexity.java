@@ -0,0 +1,145 @@
+package com.oxygenxml.sdksamples.mathml;
+
+/**
+ * Estimate of the cost of laying out and rendering an equation, computed from its XML
+ * in a single scan, without parsing it.
+ *
+ * Huge tables and deeply nested fractions or scripts can keep JEuclid busy for seconds,
+ * so such equations are laid out and rendered in the background instead of on the request
+ * thread.
+ *
+ * @author agent
+ */
+final class EquationComplexity {
+
+  /**
+   * The local name of the MathML table cells.
+   */
+  private static final String TABLE_CELL = "mtd";
+
+  /**
+   * The number of elements.
+   */
+  private final int nodes;
+
+  /**
+   * The maximum nesting depth of the elements.
+   */
+  private final int depth;
+
+  /**
+   * The number of table cells.
+   */
+  private final int tableCells;
+
+  /**
+   * Constructor.
+   *
+   * @param nodes The number of elements.
+   * @param depth The maximum nesting depth of the elements.
+   * @param tableCells The number of table cells.
+   */
+  private EquationComplexity(int nodes, int depth, int tableCells) {
+    this.nodes = nodes;
+    this.depth = depth;
+    this.tableCells = tableCells;
+  }
+
+  /**
+   * Estimates the complexity of an equation. The markup of comments, CDATA sections and
+   * processing instructions is skipped.
+   *
+   * @param xml The MathML fragment.
+   *
+   * @return The complexity of the equation.
+   */
+  static EquationComplexity of(String xml) {
+    int nodes = 0;
+    int depth = 0;
+    int maxDepth = 0;
+    int tableCells = 0;
+    int length = xml.length();
+    int i = xml.indexOf('<');
+    while (i >= 0 && i + 1 < length) {
+      char next = xml.charAt(i + 1);
+      int end;
+      if (xml.startsWith("<!--", i)) {
+        end = xml.indexOf("-->", i);
+      } else if (xml.startsWith("<![CDATA[", i)) {
+        end = xml.indexOf("]]>", i);
+      } else {
+        end = xml.indexOf('>', i);
+        if (next == '/') {
+          depth--;
+        } else if (next != '!' && next != '?' && end > 0) {
+          nodes++;
+          if (xml.charAt(end - 1) != '/') {
+            depth++;
+            maxDepth = Math.max(maxDepth, depth);
+          }
+          if (isTableCell(xml, i + 1)) {
+            tableCells++;
+          }
+        }
+      }
+      if (end < 0) {
+        break;
+      }
+      i = xml.indexOf('<', end);
+    }
+    return new EquationComplexity(nodes, maxDepth, tableCells);
+  }
+
+  /**
+   * @param xml The MathML fragment.
+   * @param nameStart The index of the qualified name of a start tag.
+   *
+   * @return <code>true</code> if the start tag is the one of a table cell.
+   */
+  private static boolean isTableCell(String xml, int nameStart) {
+    int nameEnd = nameStart;
+    int localNameStart = nameStart;
+    while (nameEnd < xml.length()) {
+      char c = xml.charAt(nameEnd);
+      if (c == ':') {
+        localNameStart = nameEnd + 1;
+      } else if (c == '>' || c == '/' || Character.isWhitespace(c)) {
+        break;
+      }
+      nameEnd++;
+    }
+    return nameEnd - localNameStart == TABLE_CELL.length()
+        && xml.startsWith(TABLE_CELL, localNameStart);
+  }
+
+  /**
+   * @return <code>true</code> if the equation exceeds any of the configured limits, so it should
+   * not be laid out or rendered on a request thread.
+   */
+  boolean isExpensive() {
+    return nodes > MathMLPluginOptions.getComplexityMaxNodes()
+        || depth > MathMLPluginOptions.getComplexityMaxDepth()
+        || tableCells > MathMLPluginOptions.getComplexityMaxTableCells();
+  }
+
+  /**
+   * @return The number of elements.
+   */
+  int getNodes() {
+    return nodes;
+  }
+
+  /**
+   * @return The maximum nesting depth of the elements.
+   */
+  int getDepth() {
+    return depth;
+  }
+
+  /**
+   * @return The number of table cells.
+   */
+  int getTableCells() {
+    return tableCells;
+  }
+}
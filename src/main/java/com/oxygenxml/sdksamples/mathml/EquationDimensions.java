@@ -0,0 +1,58 @@
+package com.oxygenxml.sdksamples.mathml;
+
+/**
+ * The bounding box of a laid out equation.
+ *
+ * @author agent
+ */
+public class EquationDimensions {
+
+  /**
+   * The width in pixels.
+   */
+  private final int width;
+
+  /**
+   * The height in pixels.
+   */
+  private final int height;
+
+  /**
+   * The distance in pixels from the top of the box to the baseline.
+   */
+  private final int baseline;
+
+  /**
+   * Constructor.
+   *
+   * @param width The width in pixels.
+   * @param height The height in pixels.
+   * @param baseline The distance in pixels from the top of the box to the baseline.
+   */
+  public EquationDimensions(int width, int height, int baseline) {
+    this.width = width;
+    this.height = height;
+    this.baseline = baseline;
+  }
+
+  /**
+   * @return The width in pixels.
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * @return The height in pixels.
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * @return The distance in pixels from the top of the box to the baseline.
+   */
+  public int getBaseline() {
+    return baseline;
+  }
+}
@@ -0,0 +1,236 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Process-wide table of the frozen equations, shared by the equation caches of all the opened
+ * documents, so that identical equations are stored once.
+ *
+ * Each equation of a document that has a given XML holds a reference to the shared fragment.
+ * The references of a document are released when its equations are deleted or when its
+ * equation cache is garbage collected. When a fragment is no longer referenced, it is removed
+ * along with its dimensions. Its rendered images are left to the byte bound of the
+ * {@link RenderedEquationCache}, because they may be requested again by a reopened document.
+ *
+ * @author agent
+ */
+final class EquationInterner {
+
+  /**
+   * The maximum number of collected documents whose references are released by an intern operation.
+   */
+  private static final int EXPUNGE_STEPS = 4;
+
+  /**
+   * The fragments, by hash code. Fragments with the same hash code are chained through
+   * {@link FrozenFragment#next}.
+   */
+  private static final LongObjectMap<FrozenFragment> fragmentsByHash = new LongObjectMap<>();
+
+  /**
+   * The references to the equation caches of the opened documents. Kept strongly reachable,
+   * so that they are enqueued when the caches are collected.
+   */
+  private static final Set<DocumentReference> documents = new HashSet<>();
+
+  /**
+   * The queue where the references to the collected equation caches are enqueued.
+   */
+  private static final ReferenceQueue<PerDocumentEquationCache> collectedDocuments = new ReferenceQueue<>();
+
+  /**
+   * Private constructor.
+   */
+  private EquationInterner() {
+  }
+
+  /**
+   * Registers the equation cache of a document. When the cache is garbage collected, the
+   * fragments still in its map are released.
+   *
+   * @param cache The equation cache.
+   * @param fragments The fragments of the equations of the document, by element ID.
+   */
+  static synchronized void registerDocument(PerDocumentEquationCache cache,
+      LongObjectMap<FrozenFragment> fragments) {
+    documents.add(new DocumentReference(cache, fragments, collectedDocuments));
+  }
+
+  /**
+   * Returns the shared fragment with the given XML, creating it if no other equation has this XML.
+   *
+   * @param xml The XML.
+   * @param xmlHash The hash code of the XML.
+   *
+   * @return The fragment, with the reference count incremented.
+   */
+  static FrozenFragment acquire(String xml, int xmlHash) {
+    expungeCollectedDocuments();
+    FrozenFragment fragment = find(xml, xmlHash);
+    if (fragment == null) {
+      // Compress the XML outside the lock.
+      fragment = add(FrozenFragment.of(xml));
+    }
+    return fragment;
+  }
+
+  /**
+   * Finds a fragment and references it.
+   *
+   * @param xml The XML.
+   * @param xmlHash The hash code of the XML.
+   *
+   * @return The fragment, with the reference count incremented, or <code>null</code> if
+   * no equation has this XML.
+   */
+  private static synchronized FrozenFragment find(String xml, int xmlHash) {
+    FrozenFragment fragment = fragmentsByHash.get(xmlHash);
+    while (fragment != null && !fragment.matches(xml, xmlHash)) {
+      fragment = fragment.next;
+    }
+    if (fragment != null) {
+      fragment.refCount++;
+    }
+    return fragment;
+  }
+
+  /**
+   * Adds a fragment to the table and references it. If an identical fragment was added
+   * meanwhile, that one is referenced instead.
+   *
+   * @param newFragment The new fragment.
+   *
+   * @return The fragment, with the reference count incremented.
+   */
+  private static synchronized FrozenFragment add(FrozenFragment newFragment) {
+    FrozenFragment head = fragmentsByHash.get(newFragment.hash);
+    for (FrozenFragment fragment = head; fragment != null; fragment = fragment.next) {
+      if (fragment.sameXml(newFragment)) {
+        fragment.refCount++;
+        return fragment;
+      }
+    }
+    newFragment.next = head;
+    newFragment.refCount = 1;
+    fragmentsByHash.put(newFragment.hash, newFragment);
+    return newFragment;
+  }
+
+  /**
+   * Releases a reference to a fragment. The fragment and its dimensions are removed
+   * when no equation refers to it.
+   *
+   * @param fragment The fragment.
+   */
+  static void release(FrozenFragment fragment) {
+    if (unreference(fragment)) {
+      for (String xmlHash : fragment.getXmlHashes()) {
+        RenderedEquationCache.invalidateDimensions(xmlHash);
+      }
+    }
+  }
+
+  /**
+   * Decrements the reference count of a fragment and removes it from the table if it is
+   * no longer referenced.
+   *
+   * @param fragment The fragment.
+   *
+   * @return <code>true</code> if the fragment was removed.
+   */
+  private static synchronized boolean unreference(FrozenFragment fragment) {
+    fragment.refCount--;
+    if (fragment.refCount > 0) {
+      return false;
+    }
+    FrozenFragment head = fragmentsByHash.get(fragment.hash);
+    if (head == fragment) {
+      if (fragment.next != null) {
+        fragmentsByHash.put(fragment.hash, fragment.next);
+      } else {
+        fragmentsByHash.remove(fragment.hash);
+      }
+    } else {
+      FrozenFragment previous = head;
+      while (previous != null && previous.next != fragment) {
+        previous = previous.next;
+      }
+      if (previous != null) {
+        previous.next = fragment.next;
+      }
+    }
+    fragment.next = null;
+    return true;
+  }
+
+  /**
+   * Releases the fragments of some of the documents whose equation caches were collected.
+   */
+  private static void expungeCollectedDocuments() {
+    for (int i = 0; i < EXPUNGE_STEPS; i++) {
+      DocumentReference ref = (DocumentReference) collectedDocuments.poll();
+      if (ref == null) {
+        return;
+      }
+      synchronized (EquationInterner.class) {
+        documents.remove(ref);
+      }
+      // The cache was collected, no one else accesses its map.
+      ref.fragments.removeIf(elemId -> true, EquationInterner::release);
+    }
+  }
+
+  /**
+   * @param xml The XML of an equation.
+   *
+   * @return The number of references to the fragment with the given XML.
+   */
+  static synchronized int getReferenceCount(String xml) {
+    int xmlHash = xml.hashCode();
+    FrozenFragment fragment = fragmentsByHash.get(xmlHash);
+    while (fragment != null && !fragment.matches(xml, xmlHash)) {
+      fragment = fragment.next;
+    }
+    return fragment != null ? fragment.refCount : 0;
+  }
+
+  /**
+   * @return The number of distinct fragments.
+   */
+  static synchronized int getFragmentsCount() {
+    int count = 0;
+    for (long hash : fragmentsByHash.sortedKeys()) {
+      for (FrozenFragment fragment = fragmentsByHash.get(hash); fragment != null; fragment = fragment.next) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Weak reference to the equation cache of a document.
+   */
+  private static final class DocumentReference extends WeakReference<PerDocumentEquationCache> {
+
+    /**
+     * The fragments of the equations of the document, by element ID.
+     */
+    final LongObjectMap<FrozenFragment> fragments;
+
+    /**
+     * Constructor.
+     *
+     * @param cache The equation cache.
+     * @param fragments The fragments of the equations of the document, by element ID.
+     * @param queue The queue where the reference is enqueued when the cache is collected.
+     */
+    DocumentReference(PerDocumentEquationCache cache, LongObjectMap<FrozenFragment> fragments,
+        ReferenceQueue<PerDocumentEquationCache> queue) {
+      super(cache, queue);
+      this.fragments = fragments;
+    }
+  }
+}
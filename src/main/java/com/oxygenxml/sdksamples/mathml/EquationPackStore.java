@@ -0,0 +1,649 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Persistent store of rendered equations in a local directory, so that the rendered images
+ * survive restarts.
+ *
+ * The images are appended to a pack file and located through a memory-mapped open-addressing
+ * index of fixed capacity. Both files are mapped, so stored images are served without copying
+ * them to the heap.
+ *
+ * The header of the index records the {@link JEuclidRenderer#RENDERER_VERSION} the images were
+ * rendered with. The store starts over when it changes, so the images of previous renderer
+ * versions do not take space forever. The image format is part of the key of the entries.
+ *
+ * The data of an entry is forced to disk before its slot is committed, so after a crash of the
+ * process or of the machine a committed slot never points to incomplete data. The space of the
+ * entry is reserved and its data written under the lock, but only the written range is forced,
+ * outside the lock, so that the other lookups and writes do not wait for the disk. The end of
+ * the pack file and the number of entries are recomputed from the committed slots when the
+ * store is opened.
+ *
+ * The directory is locked by the process that opens it, so each server of a cluster needs its
+ * own directory, on a local disk.
+ *
+ * @author agent
+ */
+@Slf4j
+public class EquationPackStore {
+
+  /**
+   * The name of the index file.
+   */
+  static final String INDEX_FILE_NAME = "equations.idx";
+
+  /**
+   * The name of the pack file.
+   */
+  static final String PACK_FILE_NAME = "equations.pack";
+
+  /**
+   * Magic number at the beginning of the index file.
+   */
+  private static final int MAGIC = 0x4D4D4C50;
+
+  /**
+   * Version of the layout of the files.
+   */
+  private static final int LAYOUT_VERSION = 2;
+
+  /**
+   * The size of the index header.
+   */
+  private static final int HEADER_SIZE = 64;
+
+  /**
+   * Offset in the header of the end of the data written in the pack file.
+   */
+  private static final int HEADER_PACK_END = 16;
+
+  /**
+   * Offset in the header of the number of entries.
+   */
+  private static final int HEADER_COUNT = 24;
+
+  /**
+   * Offset in the header of the hash code of the renderer version.
+   */
+  private static final int HEADER_RENDERER_VERSION = 28;
+
+  /**
+   * The size of an index slot.
+   */
+  private static final int SLOT_SIZE = 64;
+
+  /**
+   * The size of the key of an entry.
+   */
+  private static final int KEY_SIZE = 32;
+
+  /**
+   * Offset in an index slot of the offset of the content in the pack file.
+   */
+  private static final int SLOT_OFFSET = 32;
+
+  /**
+   * Offset in an index slot of the length of the content.
+   */
+  private static final int SLOT_LENGTH = 40;
+
+  /**
+   * Offset in an index slot of the width of the image.
+   */
+  private static final int SLOT_WIDTH = 44;
+
+  /**
+   * Offset in an index slot of the height of the image.
+   */
+  private static final int SLOT_HEIGHT = 48;
+
+  /**
+   * Offset in an index slot of the image format.
+   */
+  private static final int SLOT_FORMAT = 52;
+
+  /**
+   * Offset in an index slot of the gzip flag.
+   */
+  private static final int SLOT_GZIPPED = 53;
+
+  /**
+   * Offset in an index slot of the flag set once the entry is completely written.
+   */
+  private static final int SLOT_COMMITTED = 60;
+
+  /**
+   * The pack file is mapped in segments of this size. An entry never spans two segments.
+   */
+  static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * The maximum fill ratio of the index.
+   */
+  private static final double MAX_LOAD_FACTOR = 0.75;
+
+  /**
+   * The capacity of the index, a power of two.
+   */
+  private final int capacity;
+
+  /**
+   * The maximum size of the pack file.
+   */
+  private final long maxPackSize;
+
+  /**
+   * The index file channel.
+   */
+  private final FileChannel indexChannel;
+
+  /**
+   * The pack file channel.
+   */
+  private final FileChannel packChannel;
+
+  /**
+   * Lock that prevents other processes from using the same directory.
+   */
+  private final FileLock directoryLock;
+
+  /**
+   * The mapped index.
+   */
+  private final MappedByteBuffer index;
+
+  /**
+   * The mapped segments of the pack file.
+   */
+  private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+  /**
+   * The keys of the entries whose data is being forced to disk, guarded by the write lock.
+   */
+  private final Set<ByteBuffer> pendingKeys = new HashSet<>();
+
+  /**
+   * Lock that allows concurrent lookups and exclusive writes.
+   */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * <code>true</code> after it was logged that the store is full.
+   */
+  private boolean fullReported;
+
+  /**
+   * Opens or creates a store in the given directory. The stored equations are discarded if they 
+   * were rendered by another renderer version.
+   *
+   * @param directory The directory.
+   * @param capacity The number of entries of the index, rounded up to a power of two.
+   * @param maxPackSize The maximum size of the pack file.
+   * @param rendererVersion The version of the renderer.
+   *
+   * @throws IOException If the store cannot be opened or is used by another process.
+   */
+  EquationPackStore(File directory, int capacity, long maxPackSize, String rendererVersion) 
+      throws IOException {
+    this.capacity = Integer.highestOneBit(Math.max(16, capacity - 1)) << 1;
+    this.maxPackSize = maxPackSize;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create directory " + directory);
+    }
+
+    indexChannel = openChannel(new File(directory, INDEX_FILE_NAME));
+    directoryLock = indexChannel.tryLock();
+    if (directoryLock == null) {
+      indexChannel.close();
+      throw new IOException("The equation store is used by another process: " + directory);
+    }
+    packChannel = openChannel(new File(directory, PACK_FILE_NAME));
+
+    long indexSize = HEADER_SIZE + (long) this.capacity * SLOT_SIZE;
+    if (indexChannel.size() != indexSize) {
+      // The index was created with another capacity.
+      indexChannel.truncate(0);
+    }
+    index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+    if (index.getInt(0) != MAGIC || index.getInt(4) != LAYOUT_VERSION
+        || index.getInt(8) != this.capacity
+        || index.getInt(HEADER_RENDERER_VERSION) != rendererVersion.hashCode()
+        || recoverHeader() > maxPackSize) {
+      // Start over if the files were written with another layout, by another renderer or 
+      // with a larger maximum size.
+      for (int i = 0; i < indexSize; i += 8) {
+        index.putLong(i, 0L);
+      }
+      index.putInt(0, MAGIC);
+      index.putInt(4, LAYOUT_VERSION);
+      index.putInt(8, this.capacity);
+      index.putInt(HEADER_RENDERER_VERSION, rendererVersion.hashCode());
+      index.force();
+      packChannel.truncate(0);
+    } else if (packChannel.size() > maxPackSize) {
+      // The segments were mapped in full by the previous versions.
+      packChannel.truncate(maxPackSize);
+    }
+  }
+
+  /**
+   * Recomputes the end of the pack file and the number of entries from the committed slots. 
+   * Only the data of the committed slots is forced to disk, so after a crash of the machine the 
+   * header may be older than the slots.
+   *
+   * @return The end of the pack file.
+   */
+  private long recoverHeader() {
+    long packEnd = 0;
+    int count = 0;
+    for (int slot = 0; slot < capacity; slot++) {
+      int position = slotPosition(slot);
+      if (index.getInt(position + SLOT_COMMITTED) != 0) {
+        count++;
+        packEnd = Math.max(packEnd, index.getLong(position + SLOT_OFFSET) + index.getInt(position + SLOT_LENGTH));
+      }
+    }
+    index.putLong(HEADER_PACK_END, packEnd);
+    index.putInt(HEADER_COUNT, count);
+    return packEnd;
+  }
+
+  /**
+   * @param file The file.
+   *
+   * @return A read-write channel for the file.
+   *
+   * @throws IOException If the file cannot be opened.
+   */
+  @SuppressWarnings("resource")
+  private static FileChannel openChannel(File file) throws IOException {
+    return new RandomAccessFile(file, "rw").getChannel();
+  }
+
+  /**
+   * @return The store configured for the plugin, <code>null</code> if it is disabled.
+   */
+  public static EquationPackStore getInstance() {
+    return InstanceHolder.INSTANCE;
+  }
+
+  /**
+   * @return The store configured for the plugin, <code>null</code> if it is disabled or cannot be opened.
+   */
+  private static EquationPackStore openConfiguredStore() {
+    String directory = MathMLPluginOptions.getStoreDirectory();
+    if (directory != null && !directory.trim().isEmpty()) {
+      try {
+        return new EquationPackStore(new File(directory.trim()),
+            MathMLPluginOptions.getStoreCapacity(), MathMLPluginOptions.getStoreMaxSize(),
+            JEuclidRenderer.RENDERER_VERSION);
+      } catch (IOException e) {
+        log.warn("The persistent equation store is disabled: " + e.getMessage(), e);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Computes the key of an entry.
+   *
+   * @param xmlHash The hash of the equation XML.
+   * @param format The image format.
+   *
+   * @return The key.
+   */
+  static byte[] getKey(String xmlHash, ImageFormat format) {
+    return DigestUtils.sha256((xmlHash + "-" + format.getExtension()).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @param key The key.
+   *
+   * @return The first slot to probe for the key.
+   */
+  private int getFirstSlot(byte[] key) {
+    int hash = ((key[0] & 0xFF) << 24) | ((key[1] & 0xFF) << 16) | ((key[2] & 0xFF) << 8) | (key[3] & 0xFF);
+    return hash & (capacity - 1);
+  }
+
+  /**
+   * @param slot The slot index.
+   *
+   * @return The position of the slot in the index.
+   */
+  private static int slotPosition(int slot) {
+    return HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  /**
+   * Finds the slot of the key, or the empty slot where it should be inserted.
+   *
+   * @param key The key.
+   *
+   * @return The position of the slot.
+   */
+  private int findSlot(byte[] key) {
+    byte[] slotKey = new byte[KEY_SIZE];
+    int slot = getFirstSlot(key);
+    while (true) {
+      int position = slotPosition(slot);
+      if (index.getInt(position + SLOT_COMMITTED) == 0) {
+        return position;
+      }
+      ByteBuffer slotView = index.duplicate();
+      slotView.position(position);
+      slotView.get(slotKey);
+      if (Arrays.equals(key, slotKey)) {
+        return position;
+      }
+      // The index never gets full, so the probing ends.
+      slot = (slot + 1) & (capacity - 1);
+    }
+  }
+
+  /**
+   * Looks up an equation.
+   *
+   * @param xmlHash The hash of the equation XML.
+   * @param format The image format.
+   *
+   * @return The stored equation or <code>null</code> if it is not in the store.
+   */
+  public StoredEquation get(String xmlHash, ImageFormat format) {
+    byte[] key = getKey(xmlHash, format);
+    lock.readLock().lock();
+    try {
+      int position = findSlot(key);
+      if (index.getInt(position + SLOT_COMMITTED) == 0) {
+        return null;
+      }
+      long offset = index.getLong(position + SLOT_OFFSET);
+      int length = index.getInt(position + SLOT_LENGTH);
+      ByteBuffer content = mapSegment((int) (offset / SEGMENT_SIZE)).duplicate();
+      int segmentOffset = (int) (offset % SEGMENT_SIZE);
+      content.position(segmentOffset);
+      content.limit(segmentOffset + length);
+      return new StoredEquation(content.slice().asReadOnlyBuffer(),
+          ImageFormat.values()[index.get(position + SLOT_FORMAT)],
+          index.get(position + SLOT_GZIPPED) != 0,
+          index.getInt(position + SLOT_WIDTH), index.getInt(position + SLOT_HEIGHT));
+    } catch (IOException e) {
+      log.warn("Cannot read from the equation store: " + e.getMessage(), e);
+      return null;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Stores a rendered equation. Does nothing if it is already stored or if the store is full.
+   *
+   * @param xmlHash The hash of the equation XML.
+   * @param equation The rendered equation.
+   */
+  public void put(String xmlHash, RenderedEquation equation) {
+    byte[] key = getKey(xmlHash, equation.getFormat());
+    ByteBuffer pendingKey = ByteBuffer.wrap(key);
+    byte[] content = equation.getContent();
+    long offset;
+    lock.writeLock().lock();
+    try {
+      int position = findSlot(key);
+      if (index.getInt(position + SLOT_COMMITTED) != 0 || pendingKeys.contains(pendingKey)) {
+        return;
+      }
+
+      offset = index.getLong(HEADER_PACK_END);
+      if (offset % SEGMENT_SIZE + content.length > SEGMENT_SIZE) {
+        // Entries do not span segments.
+        offset = (offset / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+      }
+      int count = index.getInt(HEADER_COUNT) + pendingKeys.size();
+      if (count + 1 > capacity * MAX_LOAD_FACTOR || offset + content.length > maxPackSize
+          || content.length > SEGMENT_SIZE) {
+        if (!fullReported) {
+          fullReported = true;
+          log.warn("The persistent equation store is full, new equations are not stored.");
+        }
+        return;
+      }
+
+      // Reserve the space of the entry, its slot is committed once the data is on disk.
+      ByteBuffer segmentView = mapSegment((int) (offset / SEGMENT_SIZE)).duplicate();
+      segmentView.position((int) (offset % SEGMENT_SIZE));
+      segmentView.put(content);
+      index.putLong(HEADER_PACK_END, offset + content.length);
+      pendingKeys.add(pendingKey);
+    } catch (IOException e) {
+      log.warn("Cannot write to the equation store: " + e.getMessage(), e);
+      return;
+    } finally {
+      lock.writeLock().unlock();
+    }
+
+    boolean forced = false;
+    try {
+      // The slot may reach the disk before the data otherwise. Only the pages of the entry are 
+      // forced, through a mapping of its range.
+      if (content.length > 0) {
+        packChannel.map(FileChannel.MapMode.READ_WRITE, offset, content.length).force();
+      }
+      forced = true;
+    } catch (IOException e) {
+      log.warn("Cannot write to the equation store: " + e.getMessage(), e);
+    } finally {
+      commit(key, pendingKey, offset, equation, forced);
+    }
+  }
+
+  /**
+   * Commits the slot of an entry whose data was forced to disk.
+   *
+   * @param key The key of the entry.
+   * @param pendingKey The key of the entry, as recorded while its data is forced to disk.
+   * @param offset The offset of the data in the pack file.
+   * @param equation The rendered equation.
+   * @param forced <code>false</code> if the data could not be forced, in which case the slot is 
+   * left empty.
+   */
+  private void commit(byte[] key, ByteBuffer pendingKey, long offset, RenderedEquation equation, 
+      boolean forced) {
+    lock.writeLock().lock();
+    try {
+      pendingKeys.remove(pendingKey);
+      if (!forced) {
+        return;
+      }
+      // The slot found before may have been taken by another entry in the meantime.
+      int position = findSlot(key);
+      ByteBuffer slotView = index.duplicate();
+      slotView.position(position);
+      slotView.put(key);
+      index.putLong(position + SLOT_OFFSET, offset);
+      index.putInt(position + SLOT_LENGTH, equation.getContent().length);
+      index.putInt(position + SLOT_WIDTH, equation.getWidth());
+      index.putInt(position + SLOT_HEIGHT, equation.getHeight());
+      index.put(position + SLOT_FORMAT, (byte) equation.getFormat().ordinal());
+      index.put(position + SLOT_GZIPPED, (byte) (equation.isGzipped() ? 1 : 0));
+      index.putInt(position + SLOT_COMMITTED, 1);
+      index.putInt(HEADER_COUNT, index.getInt(HEADER_COUNT) + 1);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Maps a segment of the pack file.
+   *
+   * @param segmentIndex The index of the segment.
+   *
+   * @return The mapped segment.
+   *
+   * @throws IOException If the segment cannot be mapped.
+   */
+  private MappedByteBuffer mapSegment(int segmentIndex) throws IOException {
+    synchronized (segments) {
+      while (segments.size() <= segmentIndex) {
+        long segmentStart = (long) segments.size() * SEGMENT_SIZE;
+        // Mapping extends the file, the last segment stops at the maximum size of the pack.
+        long segmentSize = Math.min(SEGMENT_SIZE, maxPackSize - segmentStart);
+        segments.add(packChannel.map(FileChannel.MapMode.READ_WRITE, segmentStart, segmentSize));
+      }
+      return segments.get(segmentIndex);
+    }
+  }
+
+  /**
+   * @return The number of equations in the store.
+   */
+  int getCount() {
+    lock.readLock().lock();
+    try {
+      return index.getInt(HEADER_COUNT);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Flushes and closes the store.
+   *
+   * @throws IOException If the files cannot be closed.
+   */
+  void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      index.force();
+      synchronized (segments) {
+        for (MappedByteBuffer segment : segments) {
+          segment.force();
+        }
+      }
+      directoryLock.release();
+      packChannel.close();
+      indexChannel.close();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * An equation read from the store. Its content is a view of the mapped pack file.
+   */
+  public static class StoredEquation {
+
+    /**
+     * The content, a read-only view of the mapped pack file.
+     */
+    private final ByteBuffer content;
+
+    /**
+     * The image format.
+     */
+    private final ImageFormat format;
+
+    /**
+     * <code>true</code> if the content is gzip-compressed.
+     */
+    private final boolean gzipped;
+
+    /**
+     * The width of the image.
+     */
+    private final int width;
+
+    /**
+     * The height of the image.
+     */
+    private final int height;
+
+    /**
+     * Constructor.
+     *
+     * @param content The content.
+     * @param format The image format.
+     * @param gzipped <code>true</code> if the content is gzip-compressed.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     */
+    StoredEquation(ByteBuffer content, ImageFormat format, boolean gzipped, int width, int height) {
+      this.content = content;
+      this.format = format;
+      this.gzipped = gzipped;
+      this.width = width;
+      this.height = height;
+    }
+
+    /**
+     * @return The length of the content.
+     */
+    public int getLength() {
+      return content.remaining();
+    }
+
+    /**
+     * @return <code>true</code> if the content is gzip-compressed.
+     */
+    public boolean isGzipped() {
+      return gzipped;
+    }
+
+    /**
+     * Writes the content directly from the mapped file.
+     *
+     * @param out The output stream.
+     *
+     * @throws IOException If the content cannot be written.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+      WritableByteChannel channel = Channels.newChannel(out);
+      ByteBuffer view = content.duplicate();
+      while (view.hasRemaining()) {
+        channel.write(view);
+      }
+    }
+
+    /**
+     * @return The equation copied to the heap.
+     */
+    public RenderedEquation toRenderedEquation() {
+      byte[] bytes = new byte[content.remaining()];
+      content.duplicate().get(bytes);
+      return new RenderedEquation(bytes, format, gzipped, width, height);
+    }
+  }
+
+  /**
+   * Opens the store configured for the plugin when it is first used.
+   */
+  private static final class InstanceHolder {
+
+    /**
+     * The store configured for the plugin, <code>null</code> if it is disabled.
+     */
+    static final EquationPackStore INSTANCE = openConfiguredStore();
+  }
+}
@@ -0,0 +1,53 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import lombok.extern.slf4j.Slf4j;
+import ro.sync.ecss.extensions.api.AuthorDocumentType;
+
+/**
+ * Renders the images of the equations in the background as soon as they are laid out, so that
+ * they are already in the {@link RenderedEquationCache} when the browser requests them.
+ *
+ * The equations are frozen and laid out anyway when their form controls are rendered, so the
+ * pre-renders do not access the document model. They run on the render executor of the
+ * {@link JEuclidRenderer}, with a lower priority than the equations requested by the browser:
+ * they only use the spare capacity of its queue and are dropped when it is busy. A browser request
+ * for an equation that is being pre-rendered waits for that render instead of starting another one.
+ *
+ * @author agent
+ */
+@Slf4j
+public class EquationPrerenderer {
+
+  /**
+   * Private constructor.
+   */
+  private EquationPrerenderer() {
+  }
+
+  /**
+   * Schedules the render of an equation, unless it is already rendered or the render executor
+   * is busy.
+   *
+   * @param fragment The frozen MathML fragment, decoded only if the equation is rendered.
+   * @param xmlHash The hash of the MathML fragment.
+   * @param format The image format.
+   * @param systemID The system ID of the document.
+   * @param docType The document type.
+   */
+  static void prerender(FrozenFragment fragment, String xmlHash, ImageFormat format, String systemID,
+      AuthorDocumentType docType) {
+    if (RenderedEquationCache.get(xmlHash, format) != null || !JEuclidRenderer.hasSpareCapacity()) {
+      return;
+    }
+    try {
+      // The errors are reported to the requests that wait for the render.
+      JEuclidRenderer.submitRender(xmlHash + "." + format.getExtension(),
+          () -> new JEuclidRenderer().getRenderedEquation(fragment.getXml(), xmlHash, format, systemID, docType));
+    } catch (RejectedExecutionException e) {
+      // The equation is rendered when the browser requests it.
+      log.debug("Pre-render dropped: " + e.getMessage());
+    }
+  }
+}
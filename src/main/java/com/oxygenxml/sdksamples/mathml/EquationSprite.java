@@ -0,0 +1,190 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Layout of several equations packed in a single image, in rows of bounded width.
+ *
+ * @author agent
+ */
+public class EquationSprite {
+
+  /**
+   * The maximum width of the sprite image, unless an equation is wider.
+   */
+  static final int MAX_WIDTH = 1024;
+
+  /**
+   * The number of transparent pixels between equations, so that neighbors do not bleed
+   * when the browser scales the image.
+   */
+  static final int GAP = 1;
+
+  /**
+   * The IDs of the equations, in the order in which they were packed.
+   */
+  private final long[] elemIds;
+
+  /**
+   * The horizontal offsets of the equations.
+   */
+  private final int[] x;
+
+  /**
+   * The vertical offsets of the equations.
+   */
+  private final int[] y;
+
+  /**
+   * The dimensions of the equations.
+   */
+  private final EquationDimensions[] dimensions;
+
+  /**
+   * The width of the sprite.
+   */
+  private int width;
+
+  /**
+   * The height of the sprite.
+   */
+  private int height;
+
+  /**
+   * Packs the equations. The layout only depends on the order and dimensions of the equations.
+   *
+   * @param elemIds The IDs of the equations.
+   * @param dimensions The dimensions of the equations.
+   */
+  public EquationSprite(List<Long> elemIds, List<EquationDimensions> dimensions) {
+    int count = elemIds.size();
+    this.elemIds = new long[count];
+    this.x = new int[count];
+    this.y = new int[count];
+    this.dimensions = dimensions.toArray(new EquationDimensions[count]);
+
+    int rowX = 0;
+    int rowY = 0;
+    int rowHeight = 0;
+    for (int i = 0; i < count; i++) {
+      this.elemIds[i] = elemIds.get(i);
+      EquationDimensions eqDimensions = this.dimensions[i];
+      if (rowX > 0 && rowX + eqDimensions.getWidth() > MAX_WIDTH) {
+        // Start a new row.
+        rowY += rowHeight + GAP;
+        rowX = 0;
+        rowHeight = 0;
+      }
+      x[i] = rowX;
+      y[i] = rowY;
+      rowX += eqDimensions.getWidth() + GAP;
+      rowHeight = Math.max(rowHeight, eqDimensions.getHeight());
+      width = Math.max(width, x[i] + eqDimensions.getWidth());
+    }
+    height = rowY + rowHeight;
+  }
+
+  /**
+   * Paints the equations in a single image.
+   *
+   * @param painter Paints each equation directly on the sprite.
+   *
+   * @return The sprite image.
+   *
+   * @throws IOException If an equation could not be painted.
+   * @throws SAXException If an equation could not be parsed.
+   */
+  public BufferedImage paint(EquationPainter painter) throws IOException, SAXException {
+    BufferedImage sprite = new BufferedImage(Math.max(1, width), Math.max(1, height), BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = sprite.createGraphics();
+    try {
+      for (int i = 0; i < elemIds.length; i++) {
+        // Each equation gets its own copy of the graphics state.
+        Graphics2D equationGraphics = (Graphics2D) g.create();
+        try {
+          painter.paint(i, equationGraphics, x[i], y[i]);
+        } finally {
+          equationGraphics.dispose();
+        }
+      }
+    } finally {
+      g.dispose();
+    }
+    return sprite;
+  }
+
+  /**
+   * Returns the offset map of the sprite as JSON:
+   * <code>{"src": "...", "width": 10, "height": 10, "equations": {"elemId": {"x": 0, "y": 0, "width": 10, "height": 10}}}</code>
+   *
+   * @param spriteUrl The URL of the sprite image.
+   *
+   * @return The JSON offset map.
+   */
+  public String toJson(String spriteUrl) {
+    StringBuilder json = new StringBuilder(64 + 64 * elemIds.length);
+    json.append("{\"src\":\"").append(escapeJson(spriteUrl)).append("\",")
+      .append("\"width\":").append(width).append(',')
+      .append("\"height\":").append(height).append(',')
+      .append("\"equations\":{");
+    for (int i = 0; i < elemIds.length; i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append('"').append(elemIds[i]).append("\":{")
+        .append("\"x\":").append(x[i]).append(',')
+        .append("\"y\":").append(y[i]).append(',')
+        .append("\"width\":").append(dimensions[i].getWidth()).append(',')
+        .append("\"height\":").append(dimensions[i].getHeight()).append('}');
+    }
+    return json.append("}}").toString();
+  }
+
+  /**
+   * @param value The value.
+   *
+   * @return The value escaped for use in a JSON string.
+   */
+  static String escapeJson(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+
+  /**
+   * @return The width of the sprite.
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * @return The height of the sprite.
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Paints an equation of the sprite.
+   */
+  @FunctionalInterface
+  interface EquationPainter {
+
+    /**
+     * Paints an equation with its top left corner at the given point.
+     *
+     * @param index The index of the equation.
+     * @param g The graphics of the sprite.
+     * @param x The horizontal offset of the equation.
+     * @param y The vertical offset of the equation.
+     *
+     * @throws IOException If the equation could not be painted.
+     * @throws SAXException If the equation could not be parsed.
+     */
+    void paint(int index, Graphics2D g, int x, int y) throws IOException, SAXException;
+  }
+}
@@ -0,0 +1,213 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Encodes the MathML of an equation in a self-contained URL token, so that any server can
+ * render the equation without the editing session of its document.
+ *
+ * The token is the deflated UTF-8 XML, followed by an HMAC-SHA256 signature of it, both
+ * base64url-encoded. The signature ensures that the servlet only renders the equations of
+ * the documents it served. To use the tokens across several servers, they must be configured
+ * with the same signing key. Otherwise each server signs with a random key.
+ *
+ * @author agent
+ */
+@Slf4j
+final class EquationUrlCodec {
+
+  /**
+   * The signature algorithm.
+   */
+  private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+  /**
+   * The number of bytes of the signature included in the token.
+   */
+  private static final int SIGNATURE_LENGTH = 16;
+
+  /**
+   * The maximum length of a decoded equation, so that a token cannot be inflated without bound.
+   */
+  private static final int MAX_XML_LENGTH = 1024 * 1024;
+
+  /**
+   * The separator between the payload and the signature.
+   */
+  private static final char SEPARATOR = '.';
+
+  /**
+   * The key used to sign the tokens.
+   */
+  private static final SecretKeySpec signingKey = createSigningKey();
+
+  /**
+   * Private constructor.
+   */
+  private EquationUrlCodec() {
+  }
+
+  /**
+   * @return The configured signing key or a random one.
+   */
+  private static SecretKeySpec createSigningKey() {
+    String configuredKey = MathMLPluginOptions.getUrlSigningKey();
+    byte[] key;
+    if (configuredKey != null && !configuredKey.isEmpty()) {
+      key = configuredKey.getBytes(StandardCharsets.UTF_8);
+    } else {
+      key = new byte[32];
+      new SecureRandom().nextBytes(key);
+      log.info("No URL signing key configured, the equation URLs are valid only on this server.");
+    }
+    return new SecretKeySpec(key, HMAC_ALGORITHM);
+  }
+
+  /**
+   * Encodes an equation in a token.
+   *
+   * @param xml The MathML fragment.
+   *
+   * @return The token, or <code>null</code> if it would be longer than the configured limit.
+   */
+  static String encode(String xml) {
+    byte[] payload = deflate(xml.getBytes(StandardCharsets.UTF_8));
+    Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    String token = encoder.encodeToString(payload) + SEPARATOR + encoder.encodeToString(sign(payload));
+    return token.length() <= MathMLPluginOptions.getStatelessUrlMaxLength() ? token : null;
+  }
+
+  /**
+   * Encodes a frozen equation in a token, once for each shared fragment. The equations that use 
+   * the entities of the DTD of their document are not encoded, since the server that decodes 
+   * them does not know the document.
+   *
+   * @param fragment The frozen MathML fragment.
+   *
+   * @return The token, or <code>null</code> if the equation cannot be encoded.
+   */
+  static String encode(FrozenFragment fragment) {
+    if (fragment.needsDoctype) {
+      return null;
+    }
+    String token = fragment.urlToken;
+    if (token == null) {
+      token = encode(fragment.getXml());
+      fragment.urlToken = token != null ? token : "";
+    }
+    return token == null || token.isEmpty() ? null : token;
+  }
+
+  /**
+   * Decodes the equation from a token.
+   *
+   * @param token The token.
+   *
+   * @return The MathML fragment, or <code>null</code> if the token is malformed or was not
+   * signed with the key of this server.
+   */
+  static String decode(String token) {
+    if (token == null) {
+      return null;
+    }
+    int separatorIndex = token.indexOf(SEPARATOR);
+    if (separatorIndex < 0) {
+      return null;
+    }
+    byte[] payload;
+    byte[] signature;
+    try {
+      Base64.Decoder decoder = Base64.getUrlDecoder();
+      payload = decoder.decode(token.substring(0, separatorIndex));
+      signature = decoder.decode(token.substring(separatorIndex + 1));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    if (!MessageDigest.isEqual(sign(payload), signature)) {
+      return null;
+    }
+    byte[] utf8 = inflate(payload);
+    return utf8 != null ? new String(utf8, StandardCharsets.UTF_8) : null;
+  }
+
+  /**
+   * @param payload The payload of a token.
+   *
+   * @return The truncated signature of the payload.
+   */
+  private static byte[] sign(byte[] payload) {
+    try {
+      Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+      mac.init(signingKey);
+      return Arrays.copyOf(mac.doFinal(payload), SIGNATURE_LENGTH);
+    } catch (GeneralSecurityException e) {
+      // Every Java platform supports HmacSHA256.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param utf8 The UTF-8 bytes of the XML.
+   *
+   * @return The raw deflated bytes.
+   */
+  private static byte[] deflate(byte[] utf8) {
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    try {
+      deflater.setInput(utf8);
+      deflater.finish();
+      ByteArrayOutputStream deflated = new ByteArrayOutputStream(utf8.length / 2 + 16);
+      byte[] buffer = new byte[1024];
+      while (!deflater.finished()) {
+        int count = deflater.deflate(buffer);
+        deflated.write(buffer, 0, count);
+      }
+      return deflated.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * @param deflated The raw deflated bytes.
+   *
+   * @return The UTF-8 bytes of the XML, or <code>null</code> if they are corrupted or too long.
+   */
+  private static byte[] inflate(byte[] deflated) {
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(deflated);
+      ByteArrayOutputStream inflated = new ByteArrayOutputStream(deflated.length * 4);
+      byte[] buffer = new byte[1024];
+      while (!inflater.finished()) {
+        int count = inflater.inflate(buffer);
+        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          return null;
+        }
+        inflated.write(buffer, 0, count);
+        if (inflated.size() > MAX_XML_LENGTH) {
+          return null;
+        }
+      }
+      return inflated.toByteArray();
+    } catch (DataFormatException e) {
+      return null;
+    } finally {
+      inflater.end();
+    }
+  }
+}
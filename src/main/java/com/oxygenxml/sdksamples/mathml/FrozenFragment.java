@@ -0,0 +1,277 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import ro.sync.ecss.extensions.api.AuthorDocumentType;
+
+/**
+ * The XML of an equation frozen in a {@link PerDocumentEquationCache}, stored as UTF-8,
+ * deflated if it is large. Identical equations of all the opened documents share the same 
+ * instance, interned by the {@link EquationInterner}.
+ *
+ * @author agent
+ */
+final class FrozenFragment {
+
+  /**
+   * The UTF-8 size above which the fragments are deflated.
+   */
+  static final int DEFLATE_THRESHOLD = 512;
+
+  /**
+   * The maximum number of idle deflaters and inflaters kept for reuse.
+   */
+  private static final int CODEC_POOL_CAPACITY = 4;
+
+  /**
+   * The idle deflaters.
+   */
+  private static final BlockingQueue<Deflater> idleDeflaters = new ArrayBlockingQueue<>(CODEC_POOL_CAPACITY);
+
+  /**
+   * The idle inflaters.
+   */
+  private static final BlockingQueue<Inflater> idleInflaters = new ArrayBlockingQueue<>(CODEC_POOL_CAPACITY);
+
+  /**
+   * The UTF-8 bytes of the XML, deflated if they are longer than {@link #DEFLATE_THRESHOLD}.
+   */
+  private final byte[] data;
+
+  /**
+   * The length of the UTF-8 encoding of the XML.
+   */
+  private final int utf8Length;
+
+  /**
+   * The hash code of the XML string.
+   */
+  final int hash;
+
+  /**
+   * The SHA-256 of the XML, computed once when the fragment is interned.
+   */
+  final String sha256;
+
+  /**
+   * <code>true</code> if the XML uses entities that are declared only by the DTD of the document.
+   */
+  final boolean needsDoctype;
+
+  /**
+   * The pretty-printed XML, escaped for an attribute value, or <code>null</code> if it was not 
+   * computed yet. It does not depend on the document, unless the fragment {@link #needsDoctype}.
+   */
+  volatile String escapedSource;
+
+  /**
+   * The token of the equation in the stateless image URLs, empty if the equation is too long to 
+   * be encoded, or <code>null</code> if it was not computed yet.
+   */
+  volatile String urlToken;
+
+  /**
+   * The hashes of the renderings of the equation with the DTDs of the documents, if the 
+   * fragment {@link #needsDoctype}. Guarded by this fragment.
+   */
+  private Set<String> doctypeXmlHashes;
+
+  /**
+   * The next fragment with the same hash in the table of the {@link EquationInterner}.
+   */
+  FrozenFragment next;
+
+  /**
+   * The number of equations of the opened documents that have this XML.
+   */
+  int refCount;
+
+  /**
+   * Constructor.
+   *
+   * @param utf8 The UTF-8 bytes of the XML.
+   * @param hash The hash code of the XML string.
+   * @param needsDoctype <code>true</code> if the XML needs the DTD of the document.
+   */
+  private FrozenFragment(byte[] utf8, int hash, boolean needsDoctype) {
+    this.utf8Length = utf8.length;
+    this.hash = hash;
+    this.sha256 = DigestUtils.sha256Hex(utf8);
+    this.needsDoctype = needsDoctype;
+    this.data = utf8.length > DEFLATE_THRESHOLD ? deflate(utf8) : utf8;
+  }
+
+  /**
+   * @param xml The XML of the equation.
+   *
+   * @return The compact form of the XML.
+   */
+  static FrozenFragment of(String xml) {
+    return new FrozenFragment(xml.getBytes(StandardCharsets.UTF_8), xml.hashCode(),
+        MathMLPreprocessor.preprocess(xml).needsDoctype());
+  }
+
+  /**
+   * Returns the hash that identifies the rendering of the equation in a document. The hashes 
+   * that depend on the document are recorded, so that the dimensions stored under them are 
+   * invalidated along with the fragment.
+   *
+   * @param systemID The system ID of the document, <code>null</code> if not known.
+   * @param docType The document type, <code>null</code> if not known.
+   *
+   * @return The hash.
+   */
+  String getXmlHash(String systemID, AuthorDocumentType docType) {
+    String xmlHash = RenderedEquationCache.getXmlHash(sha256, needsDoctype, systemID, docType);
+    if (needsDoctype) {
+      synchronized (this) {
+        if (doctypeXmlHashes == null) {
+          doctypeXmlHashes = new HashSet<>();
+        }
+        doctypeXmlHashes.add(xmlHash);
+      }
+    }
+    return xmlHash;
+  }
+
+  /**
+   * @return The hashes under which the renderings of the equation may have been stored.
+   */
+  synchronized Collection<String> getXmlHashes() {
+    if (!needsDoctype) {
+      return Collections.singleton(sha256);
+    }
+    return doctypeXmlHashes != null ? new ArrayList<>(doctypeXmlHashes) : Collections.emptyList();
+  }
+
+  /**
+   * @param xml The XML of an equation.
+   * @param xmlHash The hash code of the XML string.
+   *
+   * @return <code>true</code> if this fragment has the same XML.
+   */
+  boolean matches(String xml, int xmlHash) {
+    if (hash != xmlHash || xml.length() > utf8Length || xml.length() * 3L < utf8Length) {
+      return false;
+    }
+    return Arrays.equals(getUtf8(), xml.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @param other Another fragment.
+   *
+   * @return <code>true</code> if the other fragment has the same XML.
+   */
+  boolean sameXml(FrozenFragment other) {
+    // The compression is deterministic, the stored bytes can be compared directly.
+    return hash == other.hash && utf8Length == other.utf8Length && Arrays.equals(data, other.data);
+  }
+
+  /**
+   * @return The XML of the equation.
+   */
+  String getXml() {
+    return new String(getUtf8(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return The UTF-8 bytes of the XML.
+   */
+  private byte[] getUtf8() {
+    return isDeflated() ? inflate(data, utf8Length) : data;
+  }
+
+  /**
+   * @return <code>true</code> if the XML is stored deflated.
+   */
+  boolean isDeflated() {
+    return utf8Length > DEFLATE_THRESHOLD;
+  }
+
+  /**
+   * @return The number of bytes used to store the XML.
+   */
+  int getStoredSize() {
+    return data.length;
+  }
+
+  /**
+   * @param utf8 The bytes to compress.
+   *
+   * @return The deflated bytes.
+   */
+  private static byte[] deflate(byte[] utf8) {
+    Deflater deflater = idleDeflaters.poll();
+    if (deflater == null) {
+      deflater = new Deflater(Deflater.BEST_SPEED);
+    }
+    try {
+      deflater.setInput(utf8);
+      deflater.finish();
+      // MathML is verbose, it compresses well below its size.
+      byte[] buffer = new byte[utf8.length / 2 + 64];
+      int length = 0;
+      while (!deflater.finished()) {
+        if (length == buffer.length) {
+          buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        length += deflater.deflate(buffer, length, buffer.length - length);
+      }
+      return Arrays.copyOf(buffer, length);
+    } finally {
+      deflater.reset();
+      if (!idleDeflaters.offer(deflater)) {
+        deflater.end();
+      }
+    }
+  }
+
+  /**
+   * @param deflated The deflated bytes.
+   * @param length The length of the inflated bytes.
+   *
+   * @return The inflated bytes.
+   */
+  private static byte[] inflate(byte[] deflated, int length) {
+    Inflater inflater = idleInflaters.poll();
+    if (inflater == null) {
+      inflater = new Inflater();
+    }
+    try {
+      inflater.setInput(deflated);
+      byte[] result = new byte[length];
+      int inflated = 0;
+      while (inflated < length && !inflater.finished()) {
+        int count = inflater.inflate(result, inflated, length - inflated);
+        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        inflated += count;
+      }
+      if (inflated != length) {
+        throw new IllegalStateException("Corrupted equation fragment.");
+      }
+      return result;
+    } catch (DataFormatException e) {
+      throw new IllegalStateException("Corrupted equation fragment.", e);
+    } finally {
+      inflater.reset();
+      if (!idleInflaters.offer(inflater)) {
+        inflater.end();
+      }
+    }
+  }
+}
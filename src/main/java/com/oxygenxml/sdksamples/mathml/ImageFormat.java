@@ -0,0 +1,70 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import com.google.common.net.MediaType;
+
+/**
+ * The formats in which equations can be served.
+ *
+ * @author agent
+ */
+public enum ImageFormat {
+  /**
+   * Raster image.
+   */
+  PNG("png", MediaType.PNG),
+  /**
+   * Vector image, rendered sharply at any zoom level.
+   */
+  SVG("svg", MediaType.SVG_UTF_8);
+
+  /**
+   * The file extension and the value of the <code>format</code> request parameter.
+   */
+  private final String extension;
+
+  /**
+   * The media type.
+   */
+  private final MediaType mediaType;
+
+  /**
+   * Constructor.
+   *
+   * @param extension The file extension.
+   * @param mediaType The media type.
+   */
+  private ImageFormat(String extension, MediaType mediaType) {
+    this.extension = extension;
+    this.mediaType = mediaType;
+  }
+
+  /**
+   * @return The file extension and the value of the <code>format</code> request parameter.
+   */
+  public String getExtension() {
+    return extension;
+  }
+
+  /**
+   * @return The media type.
+   */
+  public MediaType getMediaType() {
+    return mediaType;
+  }
+
+  /**
+   * Returns the format with the given extension.
+   *
+   * @param extension The extension.
+   *
+   * @return The format or <code>null</code> if the extension is not known.
+   */
+  public static ImageFormat fromExtension(String extension) {
+    for (ImageFormat format : values()) {
+      if (format.extension.equalsIgnoreCase(extension)) {
+        return format;
+      }
+    }
+    return null;
+  }
+}
@@ -1,43 +1,138 @@
 package com.oxygenxml.sdksamples.mathml;
 
+import java.awt.Dimension;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.StringReader;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.xerces.parsers.DOMParser;
 import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.oxygenxml.sdksamples.mathml.MathMLMetrics.Counter;
+
+import lombok.extern.slf4j.Slf4j;
+import net.sourceforge.jeuclid.LayoutContext;
 import net.sourceforge.jeuclid.context.LayoutContextImpl;
+import net.sourceforge.jeuclid.context.Parameter;
 import net.sourceforge.jeuclid.converter.Converter;
-import ro.sync.ecss.extensions.api.AuthorAccess;
-import ro.sync.ecss.extensions.api.AuthorDocumentController;
+import net.sourceforge.jeuclid.layout.JEuclidView;
 import ro.sync.ecss.extensions.api.AuthorDocumentType;
-import ro.sync.xml.parser.ParserCreator;
 
 /**
  * MathML renderer using the JEuclid library.
  * @author costi_dumitrescu
  */
+@Slf4j
 public class JEuclidRenderer {
   
+  /**
+   * Version of the rendering output. Must be changed whenever the images produced for 
+   * the same MathML fragment change, so that the images cached by clients are invalidated.
+   */
+  public static final String RENDERER_VERSION = "2";
+  
+  /**
+   * The maximum scale factor of the images, for high-DPI displays.
+   */
+  public static final int MAX_SCALE = 3;
+  
   /**
    * MathML doctype.
    */
   private static final String MATH_ML_DOCTYPE = "<!DOCTYPE math PUBLIC \"-//W3C//DTD MathML 2.0//EN\" \"http://www.w3.org/Math/DTD/mathml2/mathml2.dtd\">\n";
 
   /**
-   * Pattern used to detect the prefix for the MathML namespace.
+   * The MIME type of the JEuclid SVG output.
    */
-  private static final Pattern prefixPattern = Pattern.compile("<([a-z]+):math");
-  
+  private static final String SVG_MIME_TYPE = "image/svg+xml";
+
+  /**
+   * The executor that renders the equations requested by the browser, so that the requests 
+   * wait for them at most the configured time budget. The renders that exceed the budget 
+   * continue in the background and their results are cached.
+   * 
+   * The executor has a bounded number of threads and a bounded queue, so that a spike of 
+   * renders does not take over the threads that serve the editing requests. The renders that 
+   * do not fit in the queue are rejected.
+   */
+  private static final ThreadPoolExecutor renderExecutor = createRenderExecutor();
+
+  /**
+   * The render tasks queued or running in the render executor, by the key of their result, so 
+   * that an equation whose render exceeded the budget is not queued again by the requests that follow.
+   */
+  private static final ConcurrentMap<String, Future<?>> pendingRenders = new ConcurrentHashMap<>();
+
+  /**
+   * The renders in progress on any thread, by the key of their result, so that an equation needed 
+   * by several threads at the same time is rendered once.
+   */
+  private static final SingleFlight<String, RenderedEquation> rendersInFlight = 
+      new SingleFlight<>(Counter.COALESCED_RENDERS);
+
+  /**
+   * The layouts in progress on any thread, by the hash of the equation.
+   */
+  private static final SingleFlight<String, EquationDimensions> layoutsInFlight = 
+      new SingleFlight<>(Counter.COALESCED_LAYOUTS);
+
+  /**
+   * The pool of parsers, <code>null</code> to create a new parser for each fragment.
+   */
+  private final DOMParserPool parserPool;
+
+  /**
+   * Constructor.
+   */
+  public JEuclidRenderer() {
+    this(DOMParserPool.getSharedPool());
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param parserPool The pool of parsers, <code>null</code> to create a new parser for each fragment.
+   */
+  JEuclidRenderer(DOMParserPool parserPool) {
+    this.parserPool = parserPool;
+  }
+
   /**
-   * Pattern used to detect named entities.
+   * @return The executor used to render equations within the time budget.
    */
-  private static final Pattern namedEntityPattern = Pattern.compile("&[^#]");
+  private static ThreadPoolExecutor createRenderExecutor() {
+    int threads = MathMLPluginOptions.getRenderThreads();
+    ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(threads, threads,
+        30, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(MathMLPluginOptions.getRenderQueueCapacity()),
+        new ThreadFactoryBuilder()
+          .setNameFormat("mathml-render-%d")
+          .setDaemon(true)
+          .build());
+    threadPoolExecutor.allowCoreThreadTimeOut(true);
+    return threadPoolExecutor;
+  }
 
   /**
    * Converts from String to org.w3c.dom.Document.
@@ -53,11 +148,32 @@ public class JEuclidRenderer {
    */
   Document loadXMLFromString(String xml, String systemID, AuthorDocumentType docType)
       throws IOException, SAXException {
-    DOMParser domParser = ParserCreator.createDOMParser();
-    domParser.getXMLParserConfiguration().setFeature("http://apache.org/xml/features/dom/create-entity-ref-nodes", false);
-    
-    if (containsNamedEntities(xml)) {
-      String docTypeStr;
+    long startTime = System.nanoTime();
+    try {
+      return parse(xml, systemID, docType);
+    } finally {
+      MathMLMetrics.PARSE.recordSince(startTime);
+    }
+  }
+
+  /**
+   * Parses a MathML fragment.
+   * 
+   * @param xml The mathML fragment as String
+   * @param systemID The system identifier.
+   * @param docType The document type definition.
+   * 
+   * @return The XML Document
+   * 
+   * @throws IOException If it fails.
+   * @throws SAXException If it fails.
+   */
+  private Document parse(String xml, String systemID, AuthorDocumentType docType)
+      throws IOException, SAXException {
+    // Most fragments only use the standard MathML entities, which do not require the DTD.
+    MathMLPreprocessor preprocessed = MathMLPreprocessor.preprocess(xml);
+    String docTypeStr = null;
+    if (preprocessed.needsDoctype()) {
       if (docType != null) {
         docTypeStr = docType.serializeDoctype(); 
       } else {
@@ -65,81 +181,617 @@ public class JEuclidRenderer {
       }
       // Add document doctype.
       xml = docTypeStr + xml;
-    } else if (!hasNamespacePrefixDeclaration(xml)) {
-      // detect namespace prefix and declare it.
-      String prefix = detectNamespacePrefix(xml);
-      if (prefix != null) {
-        xml = addMathmlNamespacePrefixMapping(xml, prefix);
-      }
+    } else {
+      xml = preprocessed.getXml();
     }
     InputSource inputSource = new InputSource(new StringReader(xml));
     inputSource.setSystemId(systemID);
-    domParser.parse(inputSource);
-    return domParser.getDocument();
+    if (parserPool == null) {
+      DOMParser domParser = DOMParserPool.createParser();
+      domParser.parse(inputSource);
+      return domParser.getDocument();
+    }
+    
+    DOMParser domParser = parserPool.borrow();
+    DoctypeGrammarPool grammarPool = DoctypeGrammarPool.of(domParser);
+    if (grammarPool != null) {
+      // Compile the DTD once per document type.
+      grammarPool.setDoctype(docTypeStr, systemID);
+    }
+    boolean parsed = false;
+    try {
+      domParser.parse(inputSource);
+      parsed = true;
+      return domParser.getDocument();
+    } finally {
+      if (grammarPool != null) {
+        grammarPool.setDoctype(null, null);
+      }
+      parserPool.release(domParser, parsed);
+    }
   }
 
   /**
-   * Adds the MathML namespace prefix mapping with the given prefix.
-   * @param xml The XML.
-   * @param prefix The prefix.
-   * @return The XML with prefix mapping.
+   * Converts an mathML fragment to image, scaled for high-DPI displays.
+   * 
+   * @param xml The MathML fragment.
+   * @param scale The scale factor, from 1 to {@link #MAX_SCALE}.
+   * @param systemID The system ID of the document.
+   * @param docType The document type, used to resolve custom entities.
+   * 
+   * @return The image
+   * 
+   * @throws IOException If it fails.
+   * @throws SAXException If it fails.
    */
-  String addMathmlNamespacePrefixMapping(String xml, String prefix) {
-    return xml.replaceFirst("<" + prefix + ":math(/|\\s|>)", 
-        "<" + prefix + ":math " + "xmlns:" + prefix + "=\"http://www.w3.org/1998/Math/MathML\"$1");
+  public BufferedImage convertToImage(String xml, int scale, String systemID, AuthorDocumentType docType) 
+      throws IOException, SAXException {
+    return renderImage(this.loadXMLFromString(xml, systemID, docType), scale);
   }
-  
+
   /**
-   * Returns true if the xml content may contain named entities.
-   * @param xml The xml content.
-   * @return <code>true</code> if the xml may contain named entities.
+   * Renders a parsed MathML fragment to image.
+   * 
+   * @param doc The MathML document.
+   * @param scale The scale factor.
+   * 
+   * @return The image.
+   * 
+   * @throws IOException If it fails.
    */
-  boolean containsNamedEntities(String xml) {
-    Matcher matcher = namedEntityPattern.matcher(xml);
-    return matcher.find();
+  private static BufferedImage renderImage(Document doc, int scale) throws IOException {
+    long startTime = System.nanoTime();
+    try {
+      return Converter.getInstance().render(doc, createLayoutContext(scale));
+    } finally {
+      MathMLMetrics.RENDER.recordSince(startTime);
+    }
   }
-  
+
+  /**
+   * Converts a MathML fragment to an SVG document.
+   * 
+   * @param xml The MathML fragment.
+   * @param systemID The system ID of the document.
+   * @param docType The document type, used to resolve custom entities.
+   * 
+   * @return The rendered equation in the SVG format.
+   * 
+   * @throws IOException If it fails.
+   * @throws SAXException If it fails.
+   */
+  public RenderedEquation convertToSvg(String xml, String systemID, AuthorDocumentType docType) 
+      throws IOException, SAXException {
+    return renderSvg(this.loadXMLFromString(xml, systemID, docType));
+  }
+
+  /**
+   * Renders a parsed MathML fragment to an SVG document.
+   * 
+   * @param doc The MathML document.
+   * 
+   * @return The rendered equation in the SVG format.
+   * 
+   * @throws IOException If it fails.
+   */
+  private static RenderedEquation renderSvg(Document doc) throws IOException {
+    ByteArrayOutputStream svg = new ByteArrayOutputStream();
+    long startTime = System.nanoTime();
+    Dimension size;
+    try {
+      size = Converter.getInstance().convert(doc, svg, SVG_MIME_TYPE, createLayoutContext(1));
+    } finally {
+      MathMLMetrics.RENDER.recordSince(startTime);
+    }
+    if (size == null) {
+      throw new IOException("SVG output is not available");
+    }
+    return RenderedEquation.fromSvg(svg.toByteArray(), size.width, size.height);
+  }
+
+  /**
+   * @param scale The scale factor.
+   * 
+   * @return The layout context used to render equations.
+   */
+  private static LayoutContext createLayoutContext(int scale) {
+    LayoutContextImpl context = new LayoutContextImpl(LayoutContextImpl.getDefaultLayoutContext());
+    if (scale != 1) {
+      // The other sizes are relative to the font size.
+      float mathSize = (Float) context.getParameter(Parameter.MATHSIZE);
+      context.setParameter(Parameter.MATHSIZE, mathSize * scale);
+    }
+    return context;
+  }
+
+  /**
+   * Lays out a MathML fragment and returns its bounding box, without rasterizing it.
+   * 
+   * @param xml The MathML fragment.
+   * @param systemID The system ID of the document.
+   * @param docType The document type, used to resolve custom entities.
+   * 
+   * @return The dimensions of the image that {@link #convertToImage(String, int, String, AuthorDocumentType)} 
+   * would produce at scale 1.
+   * 
+   * @throws IOException If it fails.
+   * @throws SAXException If it fails.
+   */
+  public EquationDimensions measure(String xml, String systemID, AuthorDocumentType docType) 
+      throws IOException, SAXException {
+    Document doc = this.loadXMLFromString(xml, systemID, docType);
+    // JEuclid needs a graphics context only for the font metrics, so a 1x1 scratch image is enough.
+    Graphics2D layoutGraphics = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+    long startTime = System.nanoTime();
+    try {
+      JEuclidView view = new JEuclidView(doc, createLayoutContext(1), layoutGraphics);
+      // Use the same rounding as Converter.render so that the dimensions match the rendered image.
+      int width = Math.max(1, (int) Math.ceil(view.getWidth()));
+      int ascent = (int) Math.ceil(view.getAscentHeight());
+      int height = Math.max(1, (int) Math.ceil(view.getDescentHeight()) + ascent);
+      return new EquationDimensions(width, height, ascent);
+    } finally {
+      MathMLMetrics.LAYOUT.recordSince(startTime);
+      layoutGraphics.dispose();
+    }
+  }
+
+  /**
+   * Lays out a MathML fragment on the given graphics and paints it there, without an intermediate 
+   * image. Used to paint several equations on the same image.
+   * 
+   * @param xml The MathML fragment.
+   * @param systemID The system ID of the document.
+   * @param docType The document type, used to resolve custom entities.
+   * @param g The graphics to paint on.
+   * @param x The horizontal offset of the equation.
+   * @param y The vertical offset of the top of the equation.
+   * 
+   * @throws IOException If it fails.
+   * @throws SAXException If it fails.
+   */
+  void paintEquation(String xml, String systemID, AuthorDocumentType docType, Graphics2D g, int x, int y) 
+      throws IOException, SAXException {
+    Document doc = this.loadXMLFromString(xml, systemID, docType);
+    long startTime = System.nanoTime();
+    try {
+      JEuclidView view = new JEuclidView(doc, createLayoutContext(1), g);
+      // Use the same rounding as Converter.render, which draws the baseline at the rounded ascent.
+      view.draw(g, x, y + (int) Math.ceil(view.getAscentHeight()));
+    } finally {
+      MathMLMetrics.RENDER.recordSince(startTime);
+    }
+  }
+
+  /**
+   * Returns the dimensions of the equation, laying it out only if they are not already in the 
+   * {@link RenderedEquationCache}.
+   * 
+   * @param xml The MathML fragment.
+   * @param xmlHash The SHA-256 of the MathML fragment.
+   * @param systemID The system ID of the document.
+   * @param docType The document type, used to resolve custom entities.
+   * 
+   * @return The dimensions of the equation.
+   * 
+   * @throws IOException If it fails.
+   * @throws SAXException If it fails.
+   */
+  public EquationDimensions getDimensions(String xml, String xmlHash, String systemID, 
+      AuthorDocumentType docType) throws IOException, SAXException {
+    EquationDimensions dimensions = RenderedEquationCache.getDimensions(xmlHash);
+    if (dimensions == null) {
+      MathMLMetrics.increment(Counter.DIMENSIONS_CACHE_MISSES);
+      dimensions = measureOnce(xml, xmlHash, systemID, docType);
+    } else {
+      MathMLMetrics.increment(Counter.DIMENSIONS_CACHE_HITS);
+    }
+    return dimensions;
+  }
+
   /**
-   * @param xml The xml content.
-   * @return <code>true</code> if the content has a namespace prefix declaration.
+   * Lays out the equation and adds its dimensions to the {@link RenderedEquationCache}. The threads 
+   * that lay out the same equation at the same time share the layout.
+   * 
+   * @param xml The MathML fragment.
+   * @param xmlHash The SHA-256 of the MathML fragment.
+   * @param systemID The system ID of the document.
+   * @param docType The document type, used to resolve custom entities.
+   * 
+   * @return The dimensions of the equation.
+   * 
+   * @throws IOException If it fails.
+   * @throws SAXException If it fails.
    */
-  boolean hasNamespacePrefixDeclaration(String xml) {
-    return xml.contains("http://www.w3.org/1998/Math/MathML");
+  private EquationDimensions measureOnce(String xml, String xmlHash, String systemID, 
+      AuthorDocumentType docType) throws IOException, SAXException {
+    return coalesce(layoutsInFlight, xmlHash, () -> {
+      // Another thread may have laid out the equation since the caller looked in the cache.
+      EquationDimensions dimensions = RenderedEquationCache.getDimensions(xmlHash);
+      if (dimensions == null) {
+        dimensions = measure(xml, systemID, docType);
+        RenderedEquationCache.putDimensions(xmlHash, dimensions);
+      }
+      return dimensions;
+    });
   }
 
   /**
-   * @param xml The xml content.
-   * @return The prefix for the MathML namespace or null if there is no prefix used.
+   * Returns the dimensions of the equation, laying it out only if they are not already in the 
+   * {@link RenderedEquationCache} and if the equation is not too complex to be laid out on the 
+   * current thread. Otherwise the equation is laid out and rendered in the background.
+   * 
+   * @param xml The MathML fragment.
+   * @param xmlHash The SHA-256 of the MathML fragment.
+   * @param format The format of the image rendered in the background.
+   * @param systemID The system ID of the document.
+   * @param docType The document type, used to resolve custom entities.
+   * 
+   * @return The dimensions of the equation, or <code>null</code> if it is laid out in the background.
+   * 
+   * @throws IOException If it fails.
+   * @throws SAXException If it fails.
    */
-  String detectNamespacePrefix(String xml) {
-    Matcher matcher = prefixPattern.matcher(xml);
-    if (matcher.find()) {
-      return matcher.group(1);
+  public EquationDimensions getDimensionsWithinBudget(String xml, String xmlHash, ImageFormat format, 
+      String systemID, AuthorDocumentType docType) throws IOException, SAXException {
+    EquationDimensions dimensions = RenderedEquationCache.getDimensions(xmlHash);
+    if (dimensions != null) {
+      MathMLMetrics.increment(Counter.DIMENSIONS_CACHE_HITS);
+      return dimensions;
+    }
+    if (!EquationComplexity.of(xml).isExpensive()) {
+      return getDimensions(xml, xmlHash, systemID, docType);
+    }
+    MathMLMetrics.increment(Counter.DEFERRED_LAYOUTS);
+    try {
+      submitRender(xmlHash + ".layout", () -> {
+        try {
+          measureOnce(xml, xmlHash, systemID, docType);
+          // The browser requests the image as soon as it receives the placeholder.
+          submitRender(xmlHash + "." + format.getExtension(), 
+              () -> renderEquation(xml, xmlHash, format, systemID, docType));
+        } catch (IOException | SAXException | RejectedExecutionException e) {
+          // The equation is rendered, or the error reported, when the image is requested.
+          log.debug("Could not lay out equation: " + e.getMessage(), e);
+        }
+        return null;
+      });
+    } catch (RejectedExecutionException e) {
+      // The image request renders the equation when the load drops.
+      log.debug("Equation layout deferred: " + e.getMessage());
     }
     return null;
   }
 
   /**
-   * Converts an mathML fragment to image.
+   * Loads the equation from the {@link EquationPackStore} or renders it, waiting at most the 
+   * configured time budget. Equations that are too complex are not waited for at all. The render 
+   * continues in the background and its result is added to the {@link RenderedEquationCache}.
    * 
-   * @param equationDescriptor The equation descriptor. 
+   * @param xml The MathML fragment.
+   * @param xmlHash The SHA-256 of the MathML fragment.
+   * @param format The image format.
+   * @param scale The scale factor of PNG images, from 1 to {@link #MAX_SCALE}.
+   * @param systemID The system ID of the document.
+   * @param docType The document type, used to resolve custom entities.
    * 
-   * @return The image
+   * @return The rendered equation, or <code>null</code> if it was not rendered in time.
    * 
    * @throws IOException If it fails.
    * @throws SAXException If it fails.
+   * @throws RejectedExecutionException If too many equations are waiting to be rendered.
+   */
+  RenderedEquation renderWithinBudget(String xml, String xmlHash, ImageFormat format, int scale,
+      String systemID, AuthorDocumentType docType) throws IOException, SAXException {
+    String key = RenderedEquationCache.getScaledHash(xmlHash, scale) + "." + format.getExtension();
+    Future<?> render = submitRender(key, 
+        () -> renderEquation(xml, xmlHash, format, scale, systemID, docType));
+    long budget = EquationComplexity.of(xml).isExpensive() ? 0 : MathMLPluginOptions.getRenderTimeBudget();
+    return (RenderedEquation) awaitWithinBudget(render, budget);
+  }
+
+  /**
+   * Waits for a render submitted to the render executor. The render continues in the background 
+   * if it exceeds the budget.
+   * 
+   * @param render The render.
+   * @param budget The maximum time to wait, in milliseconds.
+   * 
+   * @return The result of the render, or <code>null</code> if it did not finish in time.
+   * 
+   * @throws IOException If it fails.
+   * @throws SAXException If it fails.
+   */
+  static Object awaitWithinBudget(Future<?> render, long budget) throws IOException, SAXException {
+    try {
+      return render.get(budget, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      MathMLMetrics.increment(Counter.RENDER_TIMEOUTS);
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while rendering the equation.");
+    } catch (ExecutionException e) {
+      throw unwrap(e);
+    }
+  }
+
+  /**
+   * Returns the dimensions of several equations. The ones that are not in the 
+   * {@link RenderedEquationCache} are laid out together on the render executor, waiting at most 
+   * the configured time budget. The equations that are too complex are not laid out at all.
+   * 
+   * @param xmlFragments The MathML fragments.
+   * @param xmlHashes The hashes of the MathML fragments.
+   * @param systemID The system ID of the document.
+   * @param docType The document type, used to resolve custom entities.
+   * 
+   * @return The dimensions of the equations, <code>null</code> for the ones that were not laid out
+   * in time, are too complex or cannot be parsed.
+   * 
+   * @throws IOException If it fails.
+   * @throws RejectedExecutionException If too many equations are waiting to be rendered and none 
+   * of the equations was laid out before.
    */
-  public BufferedImage convertToImage(AuthorAccess authorAccess, String xml) throws IOException, SAXException {
-      AuthorDocumentController documentController = authorAccess.getDocumentController();
-      AuthorDocumentType docType = documentController.getDoctype();
-      String systemID = documentController.getAuthorDocumentNode().getSystemID();
-      
-      Converter converter = Converter.getInstance();
+  List<EquationDimensions> getDimensionsWithinBudget(List<String> xmlFragments, List<String> xmlHashes, 
+      String systemID, AuthorDocumentType docType) throws IOException {
+    List<EquationDimensions> dimensions = new ArrayList<>(xmlHashes.size());
+    List<Integer> missing = new ArrayList<>();
+    int cached = 0;
+    for (int i = 0; i < xmlHashes.size(); i++) {
+      EquationDimensions equationDimensions = RenderedEquationCache.getDimensions(xmlHashes.get(i));
+      if (equationDimensions != null) {
+        MathMLMetrics.increment(Counter.DIMENSIONS_CACHE_HITS);
+        cached++;
+      } else {
+        MathMLMetrics.increment(Counter.DIMENSIONS_CACHE_MISSES);
+        if (!EquationComplexity.of(xmlFragments.get(i)).isExpensive()) {
+          missing.add(i);
+        }
+      }
+      dimensions.add(equationDimensions);
+    }
+    if (missing.isEmpty()) {
+      return dimensions;
+    }
+    
+    StringBuilder missingHashes = new StringBuilder();
+    for (int i : missing) {
+      missingHashes.append(xmlHashes.get(i)).append(',');
+    }
+    try {
+      Future<?> layout = submitRender(DigestUtils.sha256Hex(missingHashes.toString()) + ".layout", () -> {
+        for (int i : missing) {
+          try {
+            measureOnce(xmlFragments.get(i), xmlHashes.get(i), systemID, docType);
+          } catch (SAXException e) {
+            // The error is reported when the equation is requested separately.
+            log.debug("Could not lay out equation: " + e.getMessage(), e);
+          }
+        }
+        return null;
+      });
+      awaitWithinBudget(layout, MathMLPluginOptions.getRenderTimeBudget());
+    } catch (SAXException e) {
+      // Not thrown, the parse errors of the equations are handled by the layout.
+      throw new IOException(e);
+    } catch (RejectedExecutionException e) {
+      if (cached == 0) {
+        throw e;
+      }
+      // Use the equations that were already laid out.
+      return dimensions;
+    }
+    for (int i : missing) {
+      dimensions.set(i, RenderedEquationCache.getDimensions(xmlHashes.get(i)));
+    }
+    return dimensions;
+  }
+
+  /**
+   * Rethrows the failure of a render done on another thread.
+   * 
+   * @param e The exception that wraps the failure.
+   * 
+   * @return The failure, if it is an {@link IOException}.
+   * 
+   * @throws SAXException If the equation could not be parsed.
+   */
+  private static IOException unwrap(ExecutionException e) throws SAXException {
+    Throwable cause = e.getCause();
+    if (cause instanceof IOException) {
+      return (IOException) cause;
+    } else if (cause instanceof SAXException) {
+      throw (SAXException) cause;
+    } else if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    } else if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    return new IOException(cause);
+  }
+
+  /**
+   * Does a render or a layout, or waits for the same one started by another thread.
+   * 
+   * @param flights The renders or layouts in progress.
+   * @param key The key of the result.
+   * @param work The render or layout.
+   * 
+   * @return The result.
+   * 
+   * @throws IOException If it fails.
+   * @throws SAXException If it fails.
+   */
+  private static <T> T coalesce(SingleFlight<String, T> flights, String key, Callable<T> work) 
+      throws IOException, SAXException {
+    try {
+      return flights.execute(key, work);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while rendering the equation.");
+    } catch (ExecutionException e) {
+      throw unwrap(e);
+    }
+  }
+
+  /**
+   * Submits a render to the render executor, unless a render with the same key is in progress.
+   * 
+   * @param key The key of the result of the render.
+   * @param render The render.
+   * 
+   * @return The render in progress with the given key.
+   * 
+   * @throws RejectedExecutionException If too many equations are waiting to be rendered.
+   */
+  static Future<?> submitRender(String key, Callable<Object> render) {
+    Future<?> pending = pendingRenders.get(key);
+    if (pending != null) {
+      return pending;
+    }
+    FutureTask<Object> task = new FutureTask<Object>(render) {
+      @Override
+      protected void done() {
+        // The result is in the cache from now on.
+        pendingRenders.remove(key, this);
+      }
+    };
+    pending = pendingRenders.putIfAbsent(key, task);
+    if (pending != null) {
+      return pending;
+    }
+    try {
+      renderExecutor.execute(task);
+    } catch (RejectedExecutionException e) {
+      pendingRenders.remove(key, task);
+      MathMLMetrics.increment(Counter.RENDERS_REJECTED);
+      throw e;
+    }
+    return task;
+  }
+
+  /**
+   * @return <code>true</code> if the render executor can take background renders without 
+   * delaying or rejecting the renders requested by the browser: at most half of its queue is used.
+   */
+  static boolean hasSpareCapacity() {
+    BlockingQueue<Runnable> queue = renderExecutor.getQueue();
+    return queue.size() < queue.remainingCapacity();
+  }
+
+  /**
+   * Returns the rendered equation, rendering it only if it is not already in the 
+   * {@link RenderedEquationCache} or in the {@link EquationPackStore}.
+   * 
+   * @param xml The MathML fragment.
+   * @param xmlHash The SHA-256 of the MathML fragment.
+   * @param format The image format.
+   * @param systemID The system ID of the document.
+   * @param docType The document type, used to resolve custom entities.
+   * 
+   * @return The rendered equation.
+   * 
+   * @throws IOException If it fails.
+   * @throws SAXException If it fails.
+   */
+  public RenderedEquation getRenderedEquation(String xml, String xmlHash, ImageFormat format, 
+      String systemID, AuthorDocumentType docType) throws IOException, SAXException {
+    RenderedEquation equation = RenderedEquationCache.get(xmlHash, format);
+    if (equation == null) {
+      MathMLMetrics.increment(Counter.IMAGE_CACHE_MISSES);
+      equation = renderEquation(xml, xmlHash, format, systemID, docType);
+    } else {
+      MathMLMetrics.increment(Counter.IMAGE_CACHE_HITS);
+    }
+    return equation;
+  }
+
+  /**
+   * Loads the equation from the {@link EquationPackStore} or renders it, without looking in the 
+   * {@link RenderedEquationCache}. The result is added to the cache.
+   * 
+   * @param xml The MathML fragment.
+   * @param xmlHash The SHA-256 of the MathML fragment.
+   * @param format The image format.
+   * @param systemID The system ID of the document.
+   * @param docType The document type, used to resolve custom entities.
+   * 
+   * @return The rendered equation.
+   * 
+   * @throws IOException If it fails.
+   * @throws SAXException If it fails.
+   */
+  RenderedEquation renderEquation(String xml, String xmlHash, ImageFormat format, 
+      String systemID, AuthorDocumentType docType) throws IOException, SAXException {
+    return renderEquation(xml, xmlHash, format, 1, systemID, docType);
+  }
+
+  /**
+   * Loads the equation from the {@link EquationPackStore} or renders it. The result is added to 
+   * the {@link RenderedEquationCache}, under the hash of the scaled variant. The threads that render 
+   * the same equation at the same time share the render.
+   * 
+   * @param xml The MathML fragment.
+   * @param xmlHash The SHA-256 of the MathML fragment.
+   * @param format The image format.
+   * @param scale The scale factor of PNG images, from 1 to {@link #MAX_SCALE}.
+   * @param systemID The system ID of the document.
+   * @param docType The document type, used to resolve custom entities.
+   * 
+   * @return The rendered equation.
+   * 
+   * @throws IOException If it fails.
+   * @throws SAXException If it fails.
+   */
+  RenderedEquation renderEquation(String xml, String xmlHash, ImageFormat format, int scale,
+      String systemID, AuthorDocumentType docType) throws IOException, SAXException {
+    String scaledHash = RenderedEquationCache.getScaledHash(xmlHash, scale);
+    return coalesce(rendersInFlight, scaledHash + "." + format.getExtension(), () -> {
+      // Another thread may have rendered the equation since the caller looked in the cache.
+      RenderedEquation cached = RenderedEquationCache.get(scaledHash, format);
+      return cached != null ? cached : loadOrRender(xml, scaledHash, format, scale, systemID, docType);
+    });
+  }
+
+  /**
+   * Loads the equation from the {@link EquationPackStore} or renders it, and adds it to the 
+   * {@link RenderedEquationCache}.
+   * 
+   * @param xml The MathML fragment.
+   * @param scaledHash The hash of the scaled variant of the equation.
+   * @param format The image format.
+   * @param scale The scale factor of PNG images, from 1 to {@link #MAX_SCALE}.
+   * @param systemID The system ID of the document.
+   * @param docType The document type, used to resolve custom entities.
+   * 
+   * @return The rendered equation.
+   * 
+   * @throws IOException If it fails.
+   * @throws SAXException If it fails.
+   */
+  private RenderedEquation loadOrRender(String xml, String scaledHash, ImageFormat format, int scale,
+      String systemID, AuthorDocumentType docType) throws IOException, SAXException {
+    RenderedEquation equation;
+    EquationPackStore packStore = EquationPackStore.getInstance();
+    EquationPackStore.StoredEquation storedEquation = packStore != null ? packStore.get(scaledHash, format) : null;
+    if (storedEquation != null) {
+      MathMLMetrics.increment(Counter.STORE_HITS);
+      equation = storedEquation.toRenderedEquation();
+    } else {
       Document doc = this.loadXMLFromString(xml, systemID, docType);
-      return converter.render(
-                doc, 
-                new LayoutContextImpl(LayoutContextImpl.getDefaultLayoutContext())
-                );
+      if (format == ImageFormat.SVG) {
+        equation = renderSvg(doc);
+      } else {
+        equation = RenderedEquation.fromImage(renderImage(doc, scale));
+      }
+      MathMLMetrics.increment(Counter.EQUATIONS_RENDERED);
+      if (packStore != null) {
+        packStore.put(scaledHash, equation);
+      }
+    }
+    RenderedEquationCache.put(scaledHash, equation);
+    return equation;
   }
 
 }
@@ -0,0 +1,201 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of the durations of a rendering stage, with power-of-two buckets in microseconds.
+ * 
+ * Recording only increments striped counters, so it can be used on the request threads 
+ * without contention.
+ *
+ * @author agent
+ */
+public class LatencyHistogram implements LatencyHistogramMXBean {
+
+  /**
+   * The number of buckets. Bucket <code>i</code> counts the durations in 
+   * <code>[2<sup>i-1</sup>, 2<sup>i</sup>)</code> microseconds, the last one also the longer durations.
+   */
+  private static final int BUCKETS_COUNT = 32;
+
+  /**
+   * The name of the stage.
+   */
+  private final String stage;
+
+  /**
+   * The number of recorded operations.
+   */
+  private final LongAdder count = new LongAdder();
+
+  /**
+   * The total duration, in nanoseconds.
+   */
+  private final LongAdder totalNanos = new LongAdder();
+
+  /**
+   * The maximum duration, in nanoseconds.
+   */
+  private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+  /**
+   * The number of operations in each bucket.
+   */
+  private final LongAdder[] buckets = new LongAdder[BUCKETS_COUNT];
+
+  /**
+   * Constructor.
+   *
+   * @param stage The name of the stage.
+   */
+  public LatencyHistogram(String stage) {
+    this.stage = stage;
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Records the duration of an operation that started at the given time.
+   *
+   * @param startNanos The start time, as returned by {@link System#nanoTime()}.
+   */
+  public void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Records the duration of an operation.
+   *
+   * @param nanos The duration, in nanoseconds.
+   */
+  public void record(long nanos) {
+    long duration = Math.max(0, nanos);
+    count.increment();
+    totalNanos.add(duration);
+    maxNanos.accumulate(duration);
+    buckets[getBucket(TimeUnit.NANOSECONDS.toMicros(duration))].increment();
+  }
+
+  /**
+   * @param micros The duration in microseconds.
+   *
+   * @return The bucket of the duration.
+   */
+  static int getBucket(long micros) {
+    return Math.min(BUCKETS_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+  }
+
+  /**
+   * Returns the upper bound of a percentile of the durations.
+   *
+   * @param percentile The percentile, between 0 and 100.
+   *
+   * @return The upper bound of the bucket that contains the percentile, capped by the 
+   * maximum duration, in microseconds.
+   */
+  public long getPercentileMicros(double percentile) {
+    long[] counts = new long[BUCKETS_COUNT];
+    long total = 0;
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = buckets[i].sum();
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(total * percentile / 100);
+    long seen = 0;
+    int bucket = 0;
+    for (; bucket < counts.length - 1; bucket++) {
+      seen += counts[bucket];
+      if (seen >= rank) {
+        break;
+      }
+    }
+    return Math.min(1L << bucket, getMaxMicros());
+  }
+
+  /**
+   * @see com.oxygenxml.sdksamples.mathml.LatencyHistogramMXBean#getStage()
+   */
+  @Override
+  public String getStage() {
+    return stage;
+  }
+
+  /**
+   * @see com.oxygenxml.sdksamples.mathml.LatencyHistogramMXBean#getCount()
+   */
+  @Override
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * @see com.oxygenxml.sdksamples.mathml.LatencyHistogramMXBean#getTotalMicros()
+   */
+  @Override
+  public long getTotalMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(totalNanos.sum());
+  }
+
+  /**
+   * @see com.oxygenxml.sdksamples.mathml.LatencyHistogramMXBean#getMeanMicros()
+   */
+  @Override
+  public double getMeanMicros() {
+    long operations = count.sum();
+    return operations == 0 ? 0 : totalNanos.sum() / 1000.0 / operations;
+  }
+
+  /**
+   * @see com.oxygenxml.sdksamples.mathml.LatencyHistogramMXBean#getMaxMicros()
+   */
+  @Override
+  public long getMaxMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(maxNanos.get());
+  }
+
+  /**
+   * @see com.oxygenxml.sdksamples.mathml.LatencyHistogramMXBean#getP50Micros()
+   */
+  @Override
+  public long getP50Micros() {
+    return getPercentileMicros(50);
+  }
+
+  /**
+   * @see com.oxygenxml.sdksamples.mathml.LatencyHistogramMXBean#getP95Micros()
+   */
+  @Override
+  public long getP95Micros() {
+    return getPercentileMicros(95);
+  }
+
+  /**
+   * @see com.oxygenxml.sdksamples.mathml.LatencyHistogramMXBean#getP99Micros()
+   */
+  @Override
+  public long getP99Micros() {
+    return getPercentileMicros(99);
+  }
+
+  /**
+   * Appends the statistics of the stage as a JSON object.
+   *
+   * @param json The JSON being built.
+   */
+  void appendJson(StringBuilder json) {
+    json.append("{\"count\":").append(getCount())
+      .append(",\"totalMicros\":").append(getTotalMicros())
+      .append(",\"meanMicros\":").append(Math.round(getMeanMicros()))
+      .append(",\"maxMicros\":").append(getMaxMicros())
+      .append(",\"p50Micros\":").append(getP50Micros())
+      .append(",\"p95Micros\":").append(getP95Micros())
+      .append(",\"p99Micros\":").append(getP99Micros())
+      .append('}');
+  }
+}
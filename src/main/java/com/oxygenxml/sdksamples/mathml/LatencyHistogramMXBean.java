@@ -0,0 +1,49 @@
+package com.oxygenxml.sdksamples.mathml;
+
+/**
+ * JMX view of the latency of a rendering stage.
+ *
+ * @author agent
+ */
+public interface LatencyHistogramMXBean {
+
+  /**
+   * @return The name of the stage.
+   */
+  String getStage();
+
+  /**
+   * @return The number of recorded operations.
+   */
+  long getCount();
+
+  /**
+   * @return The total time spent in the stage, in microseconds.
+   */
+  long getTotalMicros();
+
+  /**
+   * @return The mean duration, in microseconds.
+   */
+  double getMeanMicros();
+
+  /**
+   * @return The maximum duration, in microseconds.
+   */
+  long getMaxMicros();
+
+  /**
+   * @return The upper bound of the median duration, in microseconds.
+   */
+  long getP50Micros();
+
+  /**
+   * @return The upper bound of the 95th percentile of the duration, in microseconds.
+   */
+  long getP95Micros();
+
+  /**
+   * @return The upper bound of the 99th percentile of the duration, in microseconds.
+   */
+  long getP99Micros();
+}
@@ -0,0 +1,255 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
+
+/**
+ * Open-addressing hash map with primitive <code>long</code> keys and linear probing.
+ *
+ * Stores the keys in a <code>long[]</code>, so it needs neither boxed keys nor entry objects.
+ * Values cannot be <code>null</code>. Not thread-safe, but {@link #get(long)} never fails 
+ * when the map is modified concurrently, so it can be used for optimistic reads that are 
+ * validated afterwards.
+ *
+ * @param <V> The type of the values.
+ *
+ * @author agent
+ */
+final class LongObjectMap<V> {
+
+  /**
+   * The minimum capacity of the table.
+   */
+  private static final int MIN_CAPACITY = 8;
+
+  /**
+   * The keys.
+   */
+  private long[] keys;
+
+  /**
+   * The values, <code>null</code> for free slots.
+   */
+  private Object[] values;
+
+  /**
+   * The number of entries.
+   */
+  private int size;
+
+  /**
+   * Constructor.
+   */
+  LongObjectMap() {
+    allocate(MIN_CAPACITY);
+  }
+
+  /**
+   * Allocates an empty table.
+   *
+   * @param capacity The capacity, a power of two.
+   */
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new Object[capacity];
+  }
+
+  /**
+   * @param key The key.
+   *
+   * @return The first slot of the key.
+   */
+  private int slot(long key) {
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32)) & (keys.length - 1);
+  }
+
+  /**
+   * @param key The key.
+   *
+   * @return The slot of the key, or the free slot where it would be inserted.
+   */
+  private int find(long key) {
+    int mask = keys.length - 1;
+    int i = slot(key);
+    while (values[i] != null && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  /**
+   * @param key The key.
+   *
+   * @return The value or <code>null</code> if the key is not in the map.
+   */
+  @SuppressWarnings("unchecked")
+  V get(long key) {
+    long[] currentKeys = keys;
+    Object[] currentValues = values;
+    if (currentKeys.length != currentValues.length) {
+      // Concurrent resize.
+      return null;
+    }
+    int mask = currentKeys.length - 1;
+    long hash = key * 0x9E3779B97F4A7C15L;
+    int i = (int) (hash ^ (hash >>> 32)) & mask;
+    for (int probes = 0; probes < currentKeys.length; probes++) {
+      Object value = currentValues[i];
+      if (value == null || currentKeys[i] == key) {
+        return (V) value;
+      }
+      i = (i + 1) & mask;
+    }
+    return null;
+  }
+
+  /**
+   * Associates a value with a key.
+   *
+   * @param key The key.
+   * @param value The value, not <code>null</code>.
+   *
+   * @return The previous value or <code>null</code>.
+   */
+  @SuppressWarnings("unchecked")
+  V put(long key, V value) {
+    int i = find(key);
+    V previous = (V) values[i];
+    keys[i] = key;
+    values[i] = value;
+    if (previous == null) {
+      size++;
+      if (size * 10L > keys.length * 7L) {
+        rehash(keys.length * 2);
+      }
+    }
+    return previous;
+  }
+
+  /**
+   * Removes a key.
+   *
+   * @param key The key.
+   *
+   * @return The removed value or <code>null</code>.
+   */
+  @SuppressWarnings("unchecked")
+  V remove(long key) {
+    int i = find(key);
+    V previous = (V) values[i];
+    if (previous != null) {
+      deleteSlot(i);
+      size--;
+      if (keys.length > MIN_CAPACITY && size * 8L < keys.length) {
+        rehash(keys.length / 2);
+      }
+    }
+    return previous;
+  }
+
+  /**
+   * Frees a slot, moving back the entries of the probe sequence that follows it,
+   * so that no tombstones are needed.
+   *
+   * @param slot The slot.
+   */
+  private void deleteSlot(int slot) {
+    int mask = keys.length - 1;
+    int free = slot;
+    values[free] = null;
+    int i = free;
+    while (true) {
+      i = (i + 1) & mask;
+      if (values[i] == null) {
+        return;
+      }
+      int ideal = slot(keys[i]);
+      // The entry can move to the free slot if its ideal slot is not between the free slot and its slot.
+      boolean reachable = free <= i ? (free < ideal && ideal <= i) : (free < ideal || ideal <= i);
+      if (!reachable) {
+        keys[free] = keys[i];
+        values[free] = values[i];
+        values[i] = null;
+        free = i;
+      }
+    }
+  }
+
+  /**
+   * Changes the capacity of the table.
+   *
+   * @param capacity The new capacity, a power of two.
+   */
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    allocate(Math.max(MIN_CAPACITY, capacity));
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldValues[i] != null) {
+        int slot = find(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  /**
+   * Removes the entries whose keys match a predicate.
+   *
+   * @param filter The predicate.
+   * @param onRemove Called with each removed value, may be <code>null</code>.
+   */
+  void removeIf(LongPredicate filter, Consumer<V> onRemove) {
+    long[] toRemove = new long[size];
+    int count = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (values[i] != null && filter.test(keys[i])) {
+        toRemove[count++] = keys[i];
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      V removed = remove(toRemove[i]);
+      if (onRemove != null) {
+        onRemove.accept(removed);
+      }
+    }
+  }
+
+  /**
+   * Performs an action for each value.
+   *
+   * @param action The action.
+   */
+  @SuppressWarnings("unchecked")
+  void forEachValue(Consumer<V> action) {
+    for (int i = 0; i < keys.length; i++) {
+      if (values[i] != null) {
+        action.accept((V) values[i]);
+      }
+    }
+  }
+
+  /**
+   * @return The keys, in ascending order.
+   */
+  long[] sortedKeys() {
+    long[] result = new long[size];
+    int count = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (values[i] != null) {
+        result[count++] = keys[i];
+      }
+    }
+    Arrays.sort(result);
+    return result;
+  }
+
+  /**
+   * @return The number of entries.
+   */
+  int size() {
+    return size;
+  }
+}
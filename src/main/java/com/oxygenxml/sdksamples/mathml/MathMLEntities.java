@@ -0,0 +1,118 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Built-in table of the MathML named character references.
+ *
+ * Expanding the entities before parsing avoids loading and compiling a full DTD
+ * just to resolve something like <code>&amp;alpha;</code>.
+ *
+ * @author agent
+ */
+@Slf4j
+public class MathMLEntities {
+
+  /**
+   * The resource that contains the entity table.
+   */
+  private static final String ENTITIES_RESOURCE = "mathml-entities.properties";
+
+  /**
+   * The entity replacement texts, by entity name.
+   */
+  private static final Map<String, String> entities = loadEntities();
+
+  /**
+   * Private constructor.
+   */
+  private MathMLEntities() {
+  }
+
+  /**
+   * @return The entity table loaded from the plugin resources.
+   */
+  private static Map<String, String> loadEntities() {
+    Properties properties = new Properties();
+    try (InputStream in = MathMLEntities.class.getResourceAsStream(ENTITIES_RESOURCE)) {
+      if (in != null) {
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+          properties.load(reader);
+        }
+      } else {
+        log.warn("MathML entity table not found, entities will be resolved using the DTD.");
+      }
+    } catch (IOException e) {
+      log.warn("Could not load the MathML entity table: " + e.getMessage(), e);
+    }
+    Map<String, String> table = new HashMap<>(properties.size() * 2);
+    for (String name : properties.stringPropertyNames()) {
+      table.put(name, properties.getProperty(name));
+    }
+    return table;
+  }
+
+  /**
+   * Returns the replacement text of an entity.
+   *
+   * @param name The entity name.
+   *
+   * @return The replacement text or <code>null</code> if the entity is not known.
+   */
+  public static String resolve(String name) {
+    return entities.get(name);
+  }
+
+  /**
+   * @param name The entity name.
+   *
+   * @return <code>true</code> if the entity is one of the entities predefined by XML.
+   */
+  static boolean isPredefined(String name) {
+    switch (name) {
+      case "amp":
+      case "lt":
+      case "gt":
+      case "quot":
+      case "apos":
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Skips a comment, CDATA section or processing instruction.
+   *
+   * @param xml The XML fragment.
+   * @param start The index of the '&lt;' character.
+   *
+   * @return The index after the markup declaration, or after the '&lt;' character if it starts
+   * a tag.
+   */
+  static int skipMarkupDeclaration(String xml, int start) {
+    String end = null;
+    if (xml.startsWith("<!--", start)) {
+      end = "-->";
+    } else if (xml.startsWith("<![CDATA[", start)) {
+      end = "]]>";
+    } else if (xml.startsWith("<?", start)) {
+      end = "?>";
+    }
+
+    if (end == null) {
+      return start + 1;
+    }
+    int endIndex = xml.indexOf(end, start);
+    return endIndex == -1 ? xml.length() : endIndex + end.length();
+  }
+}
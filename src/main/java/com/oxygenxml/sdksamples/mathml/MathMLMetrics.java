@@ -0,0 +1,328 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runtime metrics of the MathML rendering: latency histograms per stage, counters and cache sizes.
+ * 
+ * The metrics are exposed as MXBeans in the {@value #JMX_DOMAIN} domain and, if enabled by the
+ * {@link MathMLPluginOptions#STATS_ENDPOINT} option, as JSON by the "stats" sub-path of the 
+ * MathML servlet.
+ *
+ * @author agent
+ */
+@Slf4j
+public class MathMLMetrics implements MathMLMetricsMXBean {
+
+  /**
+   * The JMX domain of the MBeans.
+   */
+  static final String JMX_DOMAIN = "com.oxygenxml.mathml";
+
+  /**
+   * The counters.
+   */
+  public enum Counter {
+    /**
+     * Requests served by the MathML servlet.
+     */
+    REQUESTS("requests"),
+    /**
+     * Requests answered with 304 Not Modified.
+     */
+    NOT_MODIFIED("notModified"),
+    /**
+     * Equations that could not be rendered or served.
+     */
+    ERRORS("errors"),
+    /**
+     * Rendered images found in memory.
+     */
+    IMAGE_CACHE_HITS("imageCacheHits"),
+    /**
+     * Rendered images not found in memory.
+     */
+    IMAGE_CACHE_MISSES("imageCacheMisses"),
+    /**
+     * Rendered images found in the persistent store.
+     */
+    STORE_HITS("storeHits"),
+    /**
+     * Equation dimensions found in memory.
+     */
+    DIMENSIONS_CACHE_HITS("dimensionsCacheHits"),
+    /**
+     * Equation dimensions not found in memory.
+     */
+    DIMENSIONS_CACHE_MISSES("dimensionsCacheMisses"),
+    /**
+     * Equations rendered to an image.
+     */
+    EQUATIONS_RENDERED("equationsRendered"),
+    /**
+     * Equations frozen without being serialized again, because they did not change.
+     */
+    UNCHANGED_EQUATIONS("unchangedEquations"),
+    /**
+     * Equations too complex to be laid out on a request thread, laid out in the background.
+     */
+    DEFERRED_LAYOUTS("deferredLayouts"),
+    /**
+     * Requests answered with a placeholder image, because the equation was not rendered in time.
+     */
+    RENDER_TIMEOUTS("renderTimeouts"),
+    /**
+     * Renders rejected because too many equations were waiting to be rendered.
+     */
+    RENDERS_REJECTED("rendersRejected"),
+    /**
+     * Renders that shared the result of the same render done by another thread.
+     */
+    COALESCED_RENDERS("coalescedRenders"),
+    /**
+     * Layouts that shared the result of the same layout done by another thread.
+     */
+    COALESCED_LAYOUTS("coalescedLayouts");
+
+    /**
+     * The name of the counter in the JSON and JMX views.
+     */
+    private final String name;
+
+    /**
+     * Constructor.
+     *
+     * @param name The name of the counter in the JSON and JMX views.
+     */
+    Counter(String name) {
+      this.name = name;
+    }
+  }
+
+  /**
+   * Parsing the MathML fragments.
+   */
+  public static final LatencyHistogram PARSE = new LatencyHistogram("parse");
+
+  /**
+   * Laying out the equations, to find their dimensions.
+   */
+  public static final LatencyHistogram LAYOUT = new LatencyHistogram("layout");
+
+  /**
+   * Rendering the equations to images, including layout.
+   */
+  public static final LatencyHistogram RENDER = new LatencyHistogram("render");
+
+  /**
+   * Encoding the images.
+   */
+  public static final LatencyHistogram ENCODE = new LatencyHistogram("encode");
+
+  /**
+   * Freezing the XML of the equations.
+   */
+  public static final LatencyHistogram FREEZE = new LatencyHistogram("freeze");
+
+  /**
+   * Pretty-printing the XML sent to the browser.
+   */
+  public static final LatencyHistogram PRETTY_PRINT = new LatencyHistogram("prettyPrint");
+
+  /**
+   * Generating the HTML of the form control.
+   */
+  public static final LatencyHistogram RENDER_CONTROL = new LatencyHistogram("renderControl");
+
+  /**
+   * Serving the requests of the MathML servlet.
+   */
+  public static final LatencyHistogram REQUEST = new LatencyHistogram("request");
+
+  /**
+   * All the stages.
+   */
+  private static final LatencyHistogram[] STAGES = {
+      PARSE, LAYOUT, RENDER, ENCODE, FREEZE, PRETTY_PRINT, RENDER_CONTROL, REQUEST
+  };
+
+  /**
+   * The values of the counters, indexed by ordinal.
+   */
+  private static final LongAdder[] counters = new LongAdder[Counter.values().length];
+  static {
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * The equation caches of the opened documents.
+   */
+  private static final Set<PerDocumentEquationCache> documentCaches = 
+      Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+  static {
+    registerMBeans();
+  }
+
+  /**
+   * Constructor, used for the MXBean.
+   */
+  private MathMLMetrics() {
+  }
+
+  /**
+   * Increments a counter.
+   *
+   * @param counter The counter.
+   */
+  public static void increment(Counter counter) {
+    counters[counter.ordinal()].increment();
+  }
+
+  /**
+   * @param counter The counter.
+   *
+   * @return The value of the counter.
+   */
+  public static long get(Counter counter) {
+    return counters[counter.ordinal()].sum();
+  }
+
+  /**
+   * Tracks the size of the equation cache of a document, until the cache is garbage collected.
+   *
+   * @param cache The equation cache.
+   */
+  static void registerDocumentCache(PerDocumentEquationCache cache) {
+    documentCaches.add(cache);
+  }
+
+  /**
+   * Registers the MBeans. MBeans left by a previous instance of the plugin are replaced.
+   */
+  private static void registerMBeans() {
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      register(mbeanServer, new ObjectName(JMX_DOMAIN + ":type=Metrics"), new MathMLMetrics());
+      for (LatencyHistogram stage : STAGES) {
+        register(mbeanServer, new ObjectName(JMX_DOMAIN + ":type=Latency,stage=" + stage.getStage()), stage);
+      }
+    } catch (JMException | SecurityException e) {
+      log.warn("Cannot register the MathML metrics MBeans: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Registers an MBean, replacing the existing one with the same name.
+   *
+   * @param mbeanServer The MBean server.
+   * @param name The name of the MBean.
+   * @param mbean The MBean.
+   *
+   * @throws JMException If the MBean cannot be registered.
+   */
+  private static void register(MBeanServer mbeanServer, ObjectName name, Object mbean) throws JMException {
+    if (mbeanServer.isRegistered(name)) {
+      mbeanServer.unregisterMBean(name);
+    }
+    mbeanServer.registerMBean(mbean, name);
+  }
+
+  /**
+   * @see com.oxygenxml.sdksamples.mathml.MathMLMetricsMXBean#getCounters()
+   */
+  @Override
+  public Map<String, Long> getCounters() {
+    Map<String, Long> values = new LinkedHashMap<>();
+    for (Counter counter : Counter.values()) {
+      values.put(counter.name, get(counter));
+    }
+    values.put("grammarPoolHits", DoctypeGrammarPool.getHitCount());
+    values.put("grammarPoolMisses", DoctypeGrammarPool.getMissCount());
+    return values;
+  }
+
+  /**
+   * @see com.oxygenxml.sdksamples.mathml.MathMLMetricsMXBean#getCacheSizes()
+   */
+  @Override
+  public Map<String, Long> getCacheSizes() {
+    List<PerDocumentEquationCache> caches;
+    synchronized (documentCaches) {
+      caches = new ArrayList<>(documentCaches);
+    }
+    long frozenEquations = 0;
+    long largestDocument = 0;
+    for (PerDocumentEquationCache cache : caches) {
+      long size = cache.getSize();
+      frozenEquations += size;
+      largestDocument = Math.max(largestDocument, size);
+    }
+
+    Map<String, Long> values = new LinkedHashMap<>();
+    values.put("documents", (long) caches.size());
+    values.put("frozenEquations", frozenEquations);
+    values.put("largestDocumentEquations", largestDocument);
+    values.put("internedEquations", (long) EquationInterner.getFragmentsCount());
+    values.put("renderedImages", RenderedEquationCache.getImageCount());
+    values.put("renderedImagesBytes", RenderedEquationCache.getImageBytes());
+    values.put("dimensions", RenderedEquationCache.getDimensionsCount());
+    return values;
+  }
+
+  /**
+   * @return All the metrics, as a JSON object.
+   */
+  public static String toJson() {
+    MathMLMetrics metrics = new MathMLMetrics();
+    StringBuilder json = new StringBuilder(2048);
+    json.append("{\"stages\":{");
+    for (int i = 0; i < STAGES.length; i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append('"').append(STAGES[i].getStage()).append("\":");
+      STAGES[i].appendJson(json);
+    }
+    json.append("},\"counters\":");
+    appendJson(json, metrics.getCounters());
+    json.append(",\"caches\":");
+    appendJson(json, metrics.getCacheSizes());
+    return json.append('}').toString();
+  }
+
+  /**
+   * Appends the values as a JSON object.
+   *
+   * @param json The JSON being built.
+   * @param values The values, with names that do not need escaping.
+   */
+  private static void appendJson(StringBuilder json, Map<String, Long> values) {
+    json.append('{');
+    boolean first = true;
+    for (Map.Entry<String, Long> entry : values.entrySet()) {
+      if (!first) {
+        json.append(',');
+      }
+      first = false;
+      json.append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+    }
+    json.append('}');
+  }
+}
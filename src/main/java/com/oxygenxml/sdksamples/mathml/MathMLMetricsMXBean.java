@@ -0,0 +1,21 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.util.Map;
+
+/**
+ * JMX view of the counters and cache sizes of the MathML plugin.
+ *
+ * @author agent
+ */
+public interface MathMLMetricsMXBean {
+
+  /**
+   * @return The value of each counter, by name.
+   */
+  Map<String, Long> getCounters();
+
+  /**
+   * @return The size of each cache, by name.
+   */
+  Map<String, Long> getCacheSizes();
+}
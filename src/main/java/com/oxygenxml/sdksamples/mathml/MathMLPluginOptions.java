@@ -0,0 +1,301 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import lombok.extern.slf4j.Slf4j;
+import ro.sync.exml.workspace.api.PluginWorkspace;
+import ro.sync.exml.workspace.api.PluginWorkspaceProvider;
+import ro.sync.exml.workspace.api.options.WSOptionsStorage;
+
+/**
+ * Options of the MathML plugin, read from the options storage of the workspace.
+ *
+ * @author agent
+ */
+@Slf4j
+public class MathMLPluginOptions {
+
+  /**
+   * Option key for the format of the images referenced by the rendered equations.
+   */
+  static final String IMAGE_FORMAT = "mathml.image.format";
+
+  /**
+   * Option key that enables loading the equations of a document in batches, from sprite images.
+   */
+  static final String SPRITES_ENABLED = "mathml.sprites.enabled";
+
+  /**
+   * Option key for the deflate level of the PNG images, from 0 (no compression) to 9 (best compression).
+   */
+  static final String PNG_COMPRESSION_LEVEL = "mathml.png.compression.level";
+
+  /**
+   * Option key for the directory of the persistent store of rendered equations. 
+   * The store is disabled if the option is not set. The directory is locked by the server 
+   * that uses it, so it cannot be shared by the servers of a cluster.
+   */
+  static final String STORE_DIRECTORY = "mathml.store.dir";
+
+  /**
+   * Option key for the maximum number of equations in the persistent store.
+   */
+  static final String STORE_CAPACITY = "mathml.store.capacity";
+
+  /**
+   * Option key for the maximum size of the persistent store, in megabytes.
+   */
+  static final String STORE_MAX_SIZE_MB = "mathml.store.max.size.mb";
+
+  /**
+   * Option key that enables rendering the images of the equations in the background as soon as 
+   * they are laid out, before the browser requests them.
+   */
+  static final String PRERENDER_ENABLED = "mathml.prerender.enabled";
+
+  /**
+   * Option key that enables the "stats" sub-path of the MathML servlet, which serves the runtime 
+   * metrics as JSON to any user of the server. The metrics are always available through JMX.
+   */
+  static final String STATS_ENDPOINT = "mathml.stats.endpoint";
+
+  /**
+   * Option key that enables loading the source of the equations only when they are edited, 
+   * instead of embedding it in the page.
+   */
+  static final String LAZY_SOURCE = "mathml.lazy.source";
+
+  /**
+   * Option key that enables image URLs that contain the signed equation, so that any server 
+   * can serve them without the editing session of the document.
+   */
+  static final String STATELESS_URLS = "mathml.stateless.urls";
+
+  /**
+   * Option key for the maximum length of the equation encoded in a stateless URL. The longer 
+   * equations are served through the editing session.
+   */
+  static final String STATELESS_URL_MAX_LENGTH = "mathml.stateless.url.max.length";
+
+  /**
+   * Option key for the key used to sign the stateless URLs. All the servers behind a load 
+   * balancer must use the same key. If not set, each server uses a random key.
+   */
+  static final String URL_SIGNING_KEY = "mathml.url.signing.key";
+
+  /**
+   * Option key for the time in milliseconds a request waits for an equation to be rendered, 
+   * before it is answered with a placeholder image.
+   */
+  static final String RENDER_TIME_BUDGET_MS = "mathml.render.time.budget.ms";
+
+  /**
+   * Option key for the number of threads that render the equations requested by the browser.
+   */
+  static final String RENDER_THREADS = "mathml.render.threads";
+
+  /**
+   * Option key for the maximum number of equations waiting to be rendered. The requests that 
+   * exceed it are answered with 503 Service Unavailable.
+   */
+  static final String RENDER_QUEUE_CAPACITY = "mathml.render.queue.capacity";
+
+  /**
+   * Option key for the number of elements above which an equation is rendered in the background.
+   */
+  static final String COMPLEXITY_MAX_NODES = "mathml.complexity.max.nodes";
+
+  /**
+   * Option key for the nesting depth above which an equation is rendered in the background.
+   */
+  static final String COMPLEXITY_MAX_DEPTH = "mathml.complexity.max.depth";
+
+  /**
+   * Option key for the number of table cells above which an equation is rendered in the background.
+   */
+  static final String COMPLEXITY_MAX_TABLE_CELLS = "mathml.complexity.max.table.cells";
+
+  /**
+   * Private constructor.
+   */
+  private MathMLPluginOptions() {
+  }
+
+  /**
+   * @return The format of the images referenced by the rendered equations.
+   */
+  public static ImageFormat getImageFormat() {
+    ImageFormat format = ImageFormat.fromExtension(getOption(IMAGE_FORMAT, ImageFormat.PNG.getExtension()));
+    return format != null ? format : ImageFormat.PNG;
+  }
+
+  /**
+   * @return The deflate level of the PNG images.
+   */
+  public static int getPngCompressionLevel() {
+    return getIntOption(PNG_COMPRESSION_LEVEL, 6);
+  }
+
+  /**
+   * @return <code>true</code> if the equations of a document should be loaded in batches, from sprite images.
+   */
+  public static boolean isSpritesEnabled() {
+    return getBooleanOption(SPRITES_ENABLED, false);
+  }
+
+  /**
+   * @return <code>true</code> if the source of the equations should be loaded only when they are edited.
+   */
+  public static boolean isLazySourceEnabled() {
+    return getBooleanOption(LAZY_SOURCE, false);
+  }
+
+  /**
+   * @return <code>true</code> if the images of the equations should be rendered in the background 
+   * as soon as they are laid out.
+   */
+  public static boolean isPrerenderEnabled() {
+    return getBooleanOption(PRERENDER_ENABLED, false);
+  }
+
+  /**
+   * @return <code>true</code> if the MathML servlet should serve the runtime metrics.
+   */
+  public static boolean isStatsEndpointEnabled() {
+    return getBooleanOption(STATS_ENDPOINT, false);
+  }
+
+  /**
+   * @return <code>true</code> if the image URLs should contain the signed equation.
+   */
+  public static boolean isStatelessUrlsEnabled() {
+    return getBooleanOption(STATELESS_URLS, false);
+  }
+
+  /**
+   * @return The maximum length of the equation encoded in a stateless URL.
+   */
+  public static int getStatelessUrlMaxLength() {
+    return getIntOption(STATELESS_URL_MAX_LENGTH, 2000);
+  }
+
+  /**
+   * @return The key used to sign the stateless URLs, <code>null</code> if not set.
+   */
+  static String getUrlSigningKey() {
+    return getOption(URL_SIGNING_KEY, null);
+  }
+
+  /**
+   * @return The time in milliseconds a request waits for an equation to be rendered.
+   */
+  public static long getRenderTimeBudget() {
+    return Math.max(0, getIntOption(RENDER_TIME_BUDGET_MS, 1500));
+  }
+
+  /**
+   * @return The number of threads that render the equations requested by the browser.
+   */
+  public static int getRenderThreads() {
+    return Math.max(1, getIntOption(RENDER_THREADS, Runtime.getRuntime().availableProcessors()));
+  }
+
+  /**
+   * @return The maximum number of equations waiting to be rendered.
+   */
+  public static int getRenderQueueCapacity() {
+    return Math.max(1, getIntOption(RENDER_QUEUE_CAPACITY, 32));
+  }
+
+  /**
+   * @return The number of elements above which an equation is rendered in the background.
+   */
+  public static int getComplexityMaxNodes() {
+    return getIntOption(COMPLEXITY_MAX_NODES, 3000);
+  }
+
+  /**
+   * @return The nesting depth above which an equation is rendered in the background.
+   */
+  public static int getComplexityMaxDepth() {
+    return getIntOption(COMPLEXITY_MAX_DEPTH, 40);
+  }
+
+  /**
+   * @return The number of table cells above which an equation is rendered in the background.
+   */
+  public static int getComplexityMaxTableCells() {
+    return getIntOption(COMPLEXITY_MAX_TABLE_CELLS, 1000);
+  }
+
+  /**
+   * @return The directory of the persistent store of rendered equations, <code>null</code> if disabled.
+   */
+  public static String getStoreDirectory() {
+    return getOption(STORE_DIRECTORY, null);
+  }
+
+  /**
+   * @return The maximum number of equations in the persistent store.
+   */
+  public static int getStoreCapacity() {
+    return getIntOption(STORE_CAPACITY, 65536);
+  }
+
+  /**
+   * @return The maximum size of the persistent store, in bytes.
+   */
+  public static long getStoreMaxSize() {
+    return getIntOption(STORE_MAX_SIZE_MB, 1024) * 1024L * 1024L;
+  }
+
+  /**
+   * Returns the value of an option.
+   *
+   * @param key The option key.
+   * @param defaultValue The default value.
+   *
+   * @return The value of the option or the default value if it is not set.
+   */
+  static String getOption(String key, String defaultValue) {
+    PluginWorkspace pluginWorkspace = PluginWorkspaceProvider.getPluginWorkspace();
+    if (pluginWorkspace != null) {
+      WSOptionsStorage optionsStorage = pluginWorkspace.getOptionsStorage();
+      if (optionsStorage != null) {
+        return optionsStorage.getOption(key, defaultValue);
+      }
+    }
+    return defaultValue;
+  }
+
+  /**
+   * Returns the value of an integer option.
+   *
+   * @param key The option key.
+   * @param defaultValue The default value.
+   *
+   * @return The value of the option or the default value if it is not set or not a number.
+   */
+  static int getIntOption(String key, int defaultValue) {
+    String value = getOption(key, null);
+    if (value != null) {
+      try {
+        return Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        log.warn("Invalid value for option " + key + ": " + value);
+      }
+    }
+    return defaultValue;
+  }
+
+  /**
+   * Returns the value of a boolean option.
+   *
+   * @param key The option key.
+   * @param defaultValue The default value.
+   *
+   * @return The value of the option or the default value if it is not set.
+   */
+  static boolean getBooleanOption(String key, boolean defaultValue) {
+    String value = getOption(key, null);
+    return value != null ? Boolean.parseBoolean(value.trim()) : defaultValue;
+  }
+}
@@ -0,0 +1,191 @@
+package com.oxygenxml.sdksamples.mathml;
+
+/**
+ * Prepares a MathML fragment for parsing in a single scan: expands the named entities and
+ * declares the MathML namespace prefix of the root element if the fragment does not declare it.
+ *
+ * The fragment is copied only if it has to be changed, and then only once.
+ *
+ * @author agent
+ */
+final class MathMLPreprocessor {
+
+  /**
+   * The MathML namespace.
+   */
+  static final String MATHML_NS = "http://www.w3.org/1998/Math/MathML";
+
+  /**
+   * The local name of the MathML root element.
+   */
+  private static final String MATH = "math";
+
+  /**
+   * The fragment to parse.
+   */
+  private final String xml;
+
+  /**
+   * <code>true</code> if the fragment uses entities that are not in the built-in table,
+   * so it has to be parsed with the DTD.
+   */
+  private final boolean needsDoctype;
+
+  /**
+   * Constructor.
+   *
+   * @param xml The fragment to parse.
+   * @param needsDoctype <code>true</code> if the fragment has to be parsed with the DTD.
+   */
+  private MathMLPreprocessor(String xml, boolean needsDoctype) {
+    this.xml = xml;
+    this.needsDoctype = needsDoctype;
+  }
+
+  /**
+   * Prepares a fragment for parsing. The named entities are replaced with their characters,
+   * except for the entities predefined by XML. If the root element has a prefix that is not
+   * declared on it, the prefix is mapped to the MathML namespace. Comments, CDATA sections and
+   * processing instructions are copied unchanged.
+   *
+   * If the fragment uses an entity that is not in the built-in table, it is returned unchanged,
+   * to be parsed with the DTD.
+   *
+   * @param xml The MathML fragment.
+   *
+   * @return The result, whose XML is the given fragment if it did not need changes.
+   */
+  static MathMLPreprocessor preprocess(String xml) {
+    StringBuilder result = null;
+    int copiedUpTo = 0;
+    int length = xml.length();
+
+    // The state of the prefixed root start tag, while it is scanned.
+    boolean inRootTag = false;
+    boolean rootSeen = false;
+    boolean nsDeclared = false;
+    char quote = 0;
+    String prefix = null;
+    int nameEnd = -1;
+    int declarationIndex = -1;
+
+    int i = 0;
+    while (i < length) {
+      char c = xml.charAt(i);
+      if (inRootTag && quote != 0) {
+        if (c == quote) {
+          quote = 0;
+        }
+      } else if (inRootTag && (c == '"' || c == '\'')) {
+        quote = c;
+        if (xml.startsWith(MATHML_NS, i + 1)
+            && i + 1 + MATHML_NS.length() < length
+            && xml.charAt(i + 1 + MATHML_NS.length()) == c) {
+          nsDeclared = true;
+        }
+      } else if (inRootTag && c == '>') {
+        inRootTag = false;
+        if (!nsDeclared) {
+          String declaration = " xmlns:" + prefix + "=\"" + MATHML_NS + "\"";
+          if (result == null) {
+            result = new StringBuilder(length + declaration.length());
+          }
+          if (copiedUpTo <= nameEnd) {
+            result.append(xml, copiedUpTo, nameEnd).append(declaration);
+            copiedUpTo = nameEnd;
+          } else {
+            // Entities of the root attributes were already expanded.
+            result.insert(declarationIndex, declaration);
+          }
+        }
+      }
+
+      if (c == '<' && !inRootTag) {
+        int next = MathMLEntities.skipMarkupDeclaration(xml, i);
+        if (next == i + 1 && !rootSeen && i + 1 < length && isNameStart(xml.charAt(i + 1))) {
+          rootSeen = true;
+          nameEnd = findNameEnd(xml, next);
+          int colon = xml.indexOf(':', next);
+          if (colon > next && colon < nameEnd
+              && nameEnd - colon - 1 == MATH.length() && xml.startsWith(MATH, colon + 1)) {
+            prefix = xml.substring(next, colon);
+            inRootTag = true;
+            // The index of the end of the name in the result, if any.
+            declarationIndex = result == null ? nameEnd : result.length() + nameEnd - copiedUpTo;
+          }
+          next = nameEnd;
+        }
+        i = next;
+      } else if (c == '&') {
+        int semicolon = xml.indexOf(';', i + 1);
+        if (semicolon == -1) {
+          return new MathMLPreprocessor(xml, true);
+        }
+        if (xml.charAt(i + 1) != '#') {
+          String name = xml.substring(i + 1, semicolon);
+          if (!MathMLEntities.isPredefined(name)) {
+            String replacement = MathMLEntities.resolve(name);
+            if (replacement == null) {
+              return new MathMLPreprocessor(xml, true);
+            }
+            if (result == null) {
+              result = new StringBuilder(length);
+            }
+            result.append(xml, copiedUpTo, i).append(replacement);
+            copiedUpTo = semicolon + 1;
+          }
+        }
+        i = semicolon + 1;
+      } else {
+        i++;
+      }
+    }
+
+    if (result == null) {
+      return new MathMLPreprocessor(xml, false);
+    }
+    return new MathMLPreprocessor(result.append(xml, copiedUpTo, length).toString(), false);
+  }
+
+  /**
+   * @param c A character.
+   *
+   * @return <code>true</code> if the character can start an element name.
+   */
+  private static boolean isNameStart(char c) {
+    return c != '/' && c != '!' && c != '?' && c != '>' && !Character.isWhitespace(c);
+  }
+
+  /**
+   * @param xml The XML fragment.
+   * @param nameStart The index of the qualified name of a start tag.
+   *
+   * @return The index after the qualified name.
+   */
+  private static int findNameEnd(String xml, int nameStart) {
+    int nameEnd = nameStart;
+    while (nameEnd < xml.length()) {
+      char c = xml.charAt(nameEnd);
+      if (c == '>' || c == '/' || Character.isWhitespace(c)) {
+        break;
+      }
+      nameEnd++;
+    }
+    return nameEnd;
+  }
+
+  /**
+   * @return The fragment to parse.
+   */
+  String getXml() {
+    return xml;
+  }
+
+  /**
+   * @return <code>true</code> if the fragment uses entities that are not in the built-in table,
+   * so it has to be parsed with the DTD prepended.
+   */
+  boolean needsDoctype() {
+    return needsDoctype;
+  }
+}
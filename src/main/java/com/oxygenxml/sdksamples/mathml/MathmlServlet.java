@@ -1,16 +1,29 @@
 package com.oxygenxml.sdksamples.mathml;
 
-import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
 
-import javax.imageio.ImageIO;
-
+import org.apache.commons.codec.digest.DigestUtils;
 import org.xml.sax.SAXException;
 
+import com.google.common.io.ByteStreams;
 import com.google.common.net.MediaType;
+import com.oxygenxml.sdksamples.mathml.MathMLMetrics.Counter;
 
 import lombok.extern.slf4j.Slf4j;
 import ro.sync.ecss.extensions.api.AuthorAccess;
+import ro.sync.ecss.extensions.api.AuthorDocumentController;
+import ro.sync.ecss.extensions.api.AuthorDocumentType;
 import ro.sync.ecss.extensions.api.access.EditingSessionContext;
 import ro.sync.ecss.extensions.api.webapp.plugin.ServletPluginExtension;
 import ro.sync.ecss.extensions.api.webapp.plugin.servlet.ServletException;
@@ -18,53 +31,677 @@ import ro.sync.ecss.extensions.api.webapp.plugin.servlet.http.HttpServletRequest
 import ro.sync.ecss.extensions.api.webapp.plugin.servlet.http.HttpServletResponse;
 
 /**
- * MathML SERVLET used to retrieve the PNG image, after conversion.
+ * MathML SERVLET used to retrieve the PNG or SVG image, after conversion.
  */
 @Slf4j
 public class MathmlServlet extends ServletPluginExtension {
-  
+
+  /**
+   * The path where this servlet is mapped.
+   */
+  private static final String SERVLET_PATH = "mathml";
+
+  /**
+   * Sub-path that returns several equations packed in a single image.
+   */
+  static final String SPRITE_SUB_PATH = "sprite";
+
+  /**
+   * Sub-path that returns the offsets of the equations in the sprite image.
+   */
+  static final String SPRITE_MAP_SUB_PATH = "sprite-map";
+
+  /**
+   * Sub-path that returns the pretty-printed source of an equation.
+   */
+  static final String SOURCE_SUB_PATH = "source";
+
+  /**
+   * Sub-path that returns the image of an equation encoded in the URL.
+   */
+  static final String STATELESS_SUB_PATH = "equation";
+
+  /**
+   * Sub-path that returns the runtime metrics as JSON.
+   */
+  static final String STATS_SUB_PATH = "stats";
+
+  /**
+   * The header that marks the placeholder of the equations that are not rendered yet, since 
+   * an equation may be rendered as a single pixel too.
+   */
+  static final String PENDING_HEADER = "X-MathML-Pending";
+
+  /**
+   * The image served for the equations that are not rendered yet: a single translucent gray 
+   * pixel, stretched by the browser to the size of the equation. It is marked with the 
+   * {@link #PENDING_HEADER}, so that the client requests the equation again.
+   */
+  static final byte[] PLACEHOLDER_PNG = Base64.getDecoder().decode(
+      "iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAYAAAAfFcSJAAAADUlEQVR42mO4cOFCAwAH1QLxRFyY1AAAAABJRU5ErkJggg==");
+
+  /**
+   * The delay in seconds after which the client should request again an equation that 
+   * could not be rendered because the server was overloaded.
+   */
+  static final int RETRY_AFTER_SECONDS = 2;
+
   /**
-   * Returns the PNG image that corresponds to the mathml equation.
+   * The maximum number of equations packed in a sprite.
+   */
+  static final int MAX_SPRITE_EQUATIONS = 256;
+
+  /**
+   * Returns the image that corresponds to the mathml equation, the sprite of several equations
+   * or the runtime metrics.
    * 
    * @param httpRequest The HTTP request.
    * @param httpResponse The HTTP response.
    */
   @Override
   public void doGet(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws ServletException, IOException {
+    MathMLMetrics.increment(Counter.REQUESTS);
+    long startTime = System.nanoTime();
+    try {
+      String subPath = getSubPath(httpRequest);
+      if (STATS_SUB_PATH.equals(subPath)) {
+        if (MathMLPluginOptions.isStatsEndpointEnabled()) {
+          serveStats(httpResponse);
+        } else {
+          // The metrics reveal the activity of all the users, they are only exposed if configured.
+          httpResponse.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+      } else if (STATELESS_SUB_PATH.equals(subPath)) {
+        serveStatelessEquation(httpRequest, httpResponse);
+      } else {
+        serveDocumentRequest(httpRequest, httpResponse);
+      }
+    } finally {
+      MathMLMetrics.REQUEST.recordSince(startTime);
+    }
+  }
+
+  /**
+   * Serves the requests for the equations of a document.
+   * 
+   * @param httpRequest The HTTP request.
+   * @param httpResponse The HTTP response.
+   * 
+   * @throws IOException If the response cannot be written.
+   */
+  private void serveDocumentRequest(HttpServletRequest httpRequest, HttpServletResponse httpResponse) 
+      throws IOException {
     // The params used to retrieve the image
     String docId = httpRequest.getParameter("docId");
-    String elemId = httpRequest.getParameter("elemId");
     
     AuthorAccess authorAccess = EditingSessionContextManager.getDocument(docId);
     if (authorAccess != null) {
       EditingSessionContext editingContext = authorAccess.getEditorAccess().getEditingContext();
       PerDocumentEquationCache equationCache = (PerDocumentEquationCache) editingContext.getAttribute(EditingSessionContextManager.EQUATION_CACHE);
       
-      String xml = equationCache.getXmlFragment(Long.valueOf(elemId));
-      BufferedImage image;
+      String subPath = getSubPath(httpRequest);
+      if (SPRITE_SUB_PATH.equals(subPath) || SPRITE_MAP_SUB_PATH.equals(subPath)) {
+        serveSprite(httpRequest, httpResponse, authorAccess, equationCache, SPRITE_MAP_SUB_PATH.equals(subPath));
+      } else if (SOURCE_SUB_PATH.equals(subPath)) {
+        serveSource(httpRequest, httpResponse, authorAccess, equationCache);
+      } else {
+        serveEquation(httpRequest, httpResponse, authorAccess, equationCache);
+      }
+    } else {
+      httpResponse.sendError(HttpServletResponse.SC_NOT_FOUND, "MathML PNG file was not found.");
+    }
+  }
+
+  /**
+   * Serves the runtime metrics as JSON.
+   * 
+   * @param httpResponse The HTTP response.
+   * 
+   * @throws IOException If the response cannot be written.
+   */
+  private static void serveStats(HttpServletResponse httpResponse) throws IOException {
+    byte[] json = MathMLMetrics.toJson().getBytes(StandardCharsets.UTF_8);
+    httpResponse.setHeader("Content-Type", MediaType.JSON_UTF_8.toString());
+    httpResponse.setHeader("Cache-Control", "no-cache");
+    httpResponse.setHeader("Content-Length", String.valueOf(json.length));
+    httpResponse.getOutputStream().write(json);
+  }
+
+  /**
+   * Serves the pretty-printed source of an equation, loaded when the equation is edited.
+   * 
+   * @param httpRequest The HTTP request.
+   * @param httpResponse The HTTP response.
+   * @param authorAccess The author access of the document.
+   * @param equationCache The equation cache of the document.
+   * 
+   * @throws IOException If the response cannot be written.
+   */
+  private static void serveSource(HttpServletRequest httpRequest, HttpServletResponse httpResponse, 
+      AuthorAccess authorAccess, PerDocumentEquationCache equationCache) throws IOException {
+    String xml;
+    try {
+      xml = equationCache.getXmlFragment(Long.parseLong(httpRequest.getParameter("elemId")));
+    } catch (NumberFormatException e) {
+      httpResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid equation ID.");
+      return;
+    }
+    if (xml == null) {
+      httpResponse.sendError(HttpServletResponse.SC_NOT_FOUND, "MathML equation was not found.");
+      return;
+    }
+    String systemID = authorAccess.getDocumentController().getAuthorDocumentNode().getSystemID();
+    byte[] source = new WebappMathMLRenderer().formatAndIndentXmlFragment(xml, systemID)
+        .getBytes(StandardCharsets.UTF_8);
+    httpResponse.setHeader("Content-Type", MediaType.PLAIN_TEXT_UTF_8.toString());
+    // The element may change, the source is not cached.
+    httpResponse.setHeader("Cache-Control", "no-cache");
+    httpResponse.setHeader("Content-Length", String.valueOf(source.length));
+    httpResponse.getOutputStream().write(source);
+  }
+
+  /**
+   * Serves the image of a single equation.
+   * 
+   * @param httpRequest The HTTP request.
+   * @param httpResponse The HTTP response.
+   * @param authorAccess The author access of the document.
+   * @param equationCache The equation cache of the document.
+   * 
+   * @throws IOException If the response cannot be written.
+   */
+  private void serveEquation(HttpServletRequest httpRequest, HttpServletResponse httpResponse, 
+      AuthorAccess authorAccess, PerDocumentEquationCache equationCache) throws IOException {
+    FrozenFragment fragment;
+    try {
+      fragment = equationCache.getFrozenFragment(Long.parseLong(httpRequest.getParameter("elemId")));
+    } catch (NumberFormatException e) {
+      httpResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid equation ID.");
+      return;
+    }
+    if (fragment == null) {
+      httpResponse.sendError(HttpServletResponse.SC_NOT_FOUND, "MathML PNG file was not found.");
+      return;
+    }
+    AuthorDocumentController documentController = authorAccess.getDocumentController();
+    String systemID = documentController.getAuthorDocumentNode().getSystemID();
+    AuthorDocumentType docType = documentController.getDoctype();
+    // The hash is computed from the frozen fragment, not taken from the request. The XML is 
+    // only decoded if the image has to be rendered.
+    String xmlHash = fragment.getXmlHash(systemID, docType);
+    serveImage(httpRequest, httpResponse, xmlHash, fragment::getXml, systemID, docType);
+  }
+
+  /**
+   * Serves the image of an equation encoded in the URL, without the editing session of its document.
+   * 
+   * @param httpRequest The HTTP request.
+   * @param httpResponse The HTTP response.
+   * 
+   * @throws IOException If the response cannot be written.
+   */
+  private static void serveStatelessEquation(HttpServletRequest httpRequest, HttpServletResponse httpResponse) 
+      throws IOException {
+    String xml = EquationUrlCodec.decode(httpRequest.getParameter("eq"));
+    if (xml == null) {
+      // Only the equations signed by the servers that share the signing key are rendered.
+      httpResponse.sendError(HttpServletResponse.SC_FORBIDDEN, "Invalid MathML equation URL.");
+      return;
+    }
+    serveImage(httpRequest, httpResponse, RenderedEquationCache.getXmlHash(xml, null, null), () -> xml, 
+        null, null);
+  }
+
+  /**
+   * Serves the image of an equation.
+   * 
+   * @param httpRequest The HTTP request.
+   * @param httpResponse The HTTP response.
+   * @param xmlHash The hash of the equation.
+   * @param xml Supplies the MathML fragment, called only if the image has to be rendered.
+   * @param systemID The system ID of the document, <code>null</code> if not known.
+   * @param docType The document type, <code>null</code> if not known.
+   * 
+   * @throws IOException If the response cannot be written.
+   */
+  private static void serveImage(HttpServletRequest httpRequest, HttpServletResponse httpResponse, 
+      String xmlHash, Supplier<String> xml, String systemID, AuthorDocumentType docType) throws IOException {
+    ImageFormat format = getRequestedFormat(httpRequest);
+    // The SVG images are scaled by the browser.
+    int scale = format == ImageFormat.PNG ? getRequestedScale(httpRequest) : 1;
+    String scaledHash = RenderedEquationCache.getScaledHash(xmlHash, scale);
+    
+    // The browser may already have the image, possibly from another session.
+    String etag = getETag(scaledHash, format);
+    if (isNotModified(httpRequest, httpResponse, etag)) {
+      return;
+    }
+    
+    RenderedEquation equation = RenderedEquationCache.get(scaledHash, format);
+    if (equation == null) {
+      MathMLMetrics.increment(Counter.IMAGE_CACHE_MISSES);
+      // Serve the images stored on disk directly from the mapped pack file.
+      EquationPackStore packStore = EquationPackStore.getInstance();
+      EquationPackStore.StoredEquation storedEquation = packStore != null ? packStore.get(scaledHash, format) : null;
+      if (storedEquation != null && (!storedEquation.isGzipped() || acceptsGzip(httpRequest))) {
+        setImageHeaders(httpRequest, httpResponse, format, etag, storedEquation.isGzipped());
+        if (storedEquation.isGzipped()) {
+          httpResponse.setHeader("Content-Encoding", "gzip");
+        }
+        httpResponse.setHeader("Content-Length", String.valueOf(storedEquation.getLength()));
+        MathMLMetrics.increment(Counter.STORE_HITS);
+        storedEquation.writeTo(httpResponse.getOutputStream());
+        return;
+      }
+      
       try {
-        image = new JEuclidRenderer().convertToImage(authorAccess, xml);
+        equation = new JEuclidRenderer().renderWithinBudget(xml.get(), xmlHash, format, scale, systemID, docType);
       } catch (SAXException e) {
-        log.error("Error parsing MathML content: " + e.getMessage(), e);
-        httpResponse.setHeader("Content-Type", MediaType.PLAIN_TEXT_UTF_8.toString());
-        httpResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Error parsing MathML content");
+        sendParseError(httpResponse, e);
         return;
+      } catch (RejectedExecutionException e) {
+        sendOverloaded(httpResponse);
+        return;
+      }
+      if (equation == null) {
+        // The equation is still rendered in the background, the client requests it again later.
+        servePlaceholder(httpResponse);
+        return;
+      }
+    } else {
+      MathMLMetrics.increment(Counter.IMAGE_CACHE_HITS);
+    }
+  
+    setImageHeaders(httpRequest, httpResponse, format, etag, equation.isGzipped());
+    writeContent(httpRequest, httpResponse, equation);
+  }
+
+  /**
+   * Serves the placeholder of an equation that is not rendered yet. The placeholder is not 
+   * cached, so that the client gets the image when it requests the equation again.
+   * 
+   * @param httpResponse The HTTP response.
+   * 
+   * @throws IOException If the response cannot be written.
+   */
+  static void servePlaceholder(HttpServletResponse httpResponse) throws IOException {
+    httpResponse.setHeader("Content-Type", MediaType.PNG.toString());
+    httpResponse.setHeader("Cache-Control", "no-store");
+    httpResponse.setHeader(PENDING_HEADER, "true");
+    httpResponse.setHeader("Content-Length", String.valueOf(PLACEHOLDER_PNG.length));
+    httpResponse.getOutputStream().write(PLACEHOLDER_PNG);
+  }
+
+  /**
+   * Sets the headers of an image response.
+   * 
+   * @param httpRequest The HTTP request.
+   * @param httpResponse The HTTP response.
+   * @param format The image format.
+   * @param etag The entity tag of the image.
+   * @param gzipped <code>true</code> if the image content is gzip-compressed.
+   */
+  private static void setImageHeaders(HttpServletRequest httpRequest, HttpServletResponse httpResponse, 
+      ImageFormat format, String etag, boolean gzipped) {
+    // mime type, cache, image content
+    httpResponse.setHeader("Content-Type", format.getMediaType().toString());
+    httpResponse.setHeader("Cache-Control", "max-age=31536000");
+    httpResponse.setHeader("ETag", etag);
+    if (httpRequest.getParameter("format") == null) {
+      httpResponse.setHeader("Vary", "Accept, Accept-Encoding");
+    } else if (gzipped) {
+      httpResponse.setHeader("Vary", "Accept-Encoding");
+    }
+  }
+
+  /**
+   * Serves several equations of the document packed in a single PNG image, or the JSON 
+   * map of their offsets in that image.
+   * 
+   * The equations are laid out and painted on the render executor, waiting at most the time 
+   * budget. The map includes only the equations that were laid out in time, the others are 
+   * loaded separately by the client. If the sprite image is not painted in time, the placeholder 
+   * is served and the client loads the equations separately.
+   * 
+   * @param httpRequest The HTTP request.
+   * @param httpResponse The HTTP response.
+   * @param authorAccess The author access of the document.
+   * @param equationCache The equation cache of the document.
+   * @param offsetMap <code>true</code> to serve the offsets map, <code>false</code> to serve the image.
+   * 
+   * @throws IOException If the response cannot be written.
+   */
+  private void serveSprite(HttpServletRequest httpRequest, HttpServletResponse httpResponse, 
+      AuthorAccess authorAccess, PerDocumentEquationCache equationCache, boolean offsetMap) throws IOException {
+    List<Long> requestedIds;
+    try {
+      requestedIds = parseElemIds(httpRequest.getParameter("elemIds"), equationCache);
+    } catch (NumberFormatException e) {
+      httpResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid equation IDs.");
+      return;
+    }
+    
+    JEuclidRenderer renderer = new JEuclidRenderer();
+    AuthorDocumentController documentController = authorAccess.getDocumentController();
+    String systemID = documentController.getAuthorDocumentNode().getSystemID();
+    AuthorDocumentType docType = documentController.getDoctype();
+    List<Long> foundIds = new ArrayList<>(requestedIds.size());
+    List<String> foundFragments = new ArrayList<>(requestedIds.size());
+    List<String> foundHashes = new ArrayList<>(requestedIds.size());
+    for (Long elemId : requestedIds) {
+      FrozenFragment fragment = equationCache.getFrozenFragment(elemId);
+      if (fragment != null) {
+        foundIds.add(elemId);
+        foundFragments.add(fragment.getXml());
+        foundHashes.add(fragment.getXmlHash(systemID, docType));
       }
+    }
     
-      // mime type, cache, image content
-      httpResponse.setHeader("Content-Type", MediaType.PNG.toString());
+    List<EquationDimensions> foundDimensions;
+    try {
+      foundDimensions = renderer.getDimensionsWithinBudget(foundFragments, foundHashes, systemID, docType);
+    } catch (RejectedExecutionException e) {
+      sendOverloaded(httpResponse);
+      return;
+    }
+    // The sprite packs only the equations that are laid out.
+    List<Long> elemIds = new ArrayList<>(foundIds.size());
+    List<String> xmlFragments = new ArrayList<>(foundIds.size());
+    List<String> xmlHashes = new ArrayList<>(foundIds.size());
+    List<EquationDimensions> dimensions = new ArrayList<>(foundIds.size());
+    for (int i = 0; i < foundIds.size(); i++) {
+      if (foundDimensions.get(i) != null) {
+        elemIds.add(foundIds.get(i));
+        xmlFragments.add(foundFragments.get(i));
+        xmlHashes.add(foundHashes.get(i));
+        dimensions.add(foundDimensions.get(i));
+      }
+    }
+    if (!offsetMap && elemIds.size() < requestedIds.size()) {
+      // The equations changed or their layouts were evicted since the map was served, 
+      // the client loads them separately.
+      servePlaceholder(httpResponse);
+      return;
+    }
+    
+    // The sprite is identified by the content and the order of its equations.
+    String spriteHash = DigestUtils.sha256Hex("sprite:" + String.join(",", xmlHashes));
+    String etag = getETag(spriteHash, ImageFormat.PNG);
+    if (!offsetMap && isNotModified(httpRequest, httpResponse, etag)) {
+      return;
+    }
+    
+    EquationSprite sprite = new EquationSprite(elemIds, dimensions);
+    if (offsetMap) {
+      String spriteUrl = "../plugins-dispatcher/" + SERVLET_PATH + "/" + SPRITE_SUB_PATH + "?"
+          + "docId=" + httpRequest.getParameter("docId") + "&"
+          + "elemIds=" + joinIds(elemIds) + "&"
+          + "v=" + spriteHash;
+      byte[] json = sprite.toJson(spriteUrl).getBytes(StandardCharsets.UTF_8);
+      httpResponse.setHeader("Content-Type", MediaType.JSON_UTF_8.toString());
+      httpResponse.setHeader("Cache-Control", "no-cache");
+      httpResponse.setHeader("Content-Length", String.valueOf(json.length));
+      httpResponse.getOutputStream().write(json);
+      return;
+    }
+    
+    RenderedEquation spriteImage = RenderedEquationCache.get(spriteHash, ImageFormat.PNG);
+    if (spriteImage == null) {
+      try {
+        // The equations are painted directly on the sprite, which is encoded once.
+        Future<?> paint = JEuclidRenderer.submitRender(spriteHash + "." + ImageFormat.PNG.getExtension(), () -> {
+          RenderedEquation image = RenderedEquation.fromImage(sprite.paint((i, g, x, y) -> 
+              renderer.paintEquation(xmlFragments.get(i), systemID, docType, g, x, y)));
+          RenderedEquationCache.put(spriteHash, image);
+          return image;
+        });
+        spriteImage = (RenderedEquation) JEuclidRenderer.awaitWithinBudget(paint, 
+            MathMLPluginOptions.getRenderTimeBudget());
+      } catch (SAXException e) {
+        sendParseError(httpResponse, e);
+        return;
+      } catch (RejectedExecutionException e) {
+        sendOverloaded(httpResponse);
+        return;
+      }
+      if (spriteImage == null) {
+        // The sprite is still painted in the background.
+        servePlaceholder(httpResponse);
+        return;
+      }
+    }
+    httpResponse.setHeader("Content-Type", MediaType.PNG.toString());
+    httpResponse.setHeader("Cache-Control", "max-age=31536000");
+    httpResponse.setHeader("ETag", etag);
+    writeContent(httpRequest, httpResponse, spriteImage);
+  }
+
+  /**
+   * Returns the strong entity tag of an image. It only depends on the content of the equation, 
+   * so the same tag is used in all the editing sessions.
+   * 
+   * @param xmlHash The hash of the equation XML.
+   * @param format The format of the image.
+   * 
+   * @return The entity tag, quoted.
+   */
+  static String getETag(String xmlHash, ImageFormat format) {
+    return "\"" + xmlHash + "-" + JEuclidRenderer.RENDERER_VERSION + "-" + format.getExtension() + "\"";
+  }
+
+  /**
+   * Answers a conditional request with 304 if the client already has the current image.
+   * 
+   * @param httpRequest The HTTP request.
+   * @param httpResponse The HTTP response.
+   * @param etag The entity tag of the current image.
+   * 
+   * @return <code>true</code> if the response was sent.
+   */
+  private static boolean isNotModified(HttpServletRequest httpRequest, HttpServletResponse httpResponse, 
+      String etag) {
+    if (matchesETag(httpRequest.getHeader("If-None-Match"), etag)) {
+      MathMLMetrics.increment(Counter.NOT_MODIFIED);
+      httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      httpResponse.setHeader("ETag", etag);
       httpResponse.setHeader("Cache-Control", "max-age=31536000");
-      ImageIO.write(image, "png", httpResponse.getOutputStream());
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Checks the <code>If-None-Match</code> header against an entity tag.
+   * 
+   * @param ifNoneMatch The value of the header, may be <code>null</code>.
+   * @param etag The entity tag, quoted.
+   * 
+   * @return <code>true</code> if the header matches the entity tag.
+   */
+  static boolean matchesETag(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/")) {
+        // The weak comparison is used for If-None-Match.
+        candidate = candidate.substring(2);
+      }
+      if ("*".equals(candidate) || etag.equals(candidate)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Parses the IDs of the equations included in a sprite.
+   * 
+   * @param elemIdsParam The comma-separated IDs, <code>null</code> for all the equations of the document.
+   * @param equationCache The equation cache of the document.
+   * 
+   * @return The IDs of the equations, at most {@link #MAX_SPRITE_EQUATIONS}.
+   */
+  static List<Long> parseElemIds(String elemIdsParam, PerDocumentEquationCache equationCache) {
+    List<Long> elemIds;
+    if (elemIdsParam == null || elemIdsParam.isEmpty()) {
+      elemIds = equationCache.getElementIds();
     } else {
-      httpResponse.sendError(HttpServletResponse.SC_NOT_FOUND, "MathML PNG file was not found.");
+      String[] ids = elemIdsParam.split(",");
+      elemIds = new ArrayList<>(ids.length);
+      for (String id : ids) {
+        elemIds.add(Long.valueOf(id.trim()));
+      }
     }
+    return elemIds.size() > MAX_SPRITE_EQUATIONS ? elemIds.subList(0, MAX_SPRITE_EQUATIONS) : elemIds;
   }
-      
+
+  /**
+   * @param elemIds The IDs of the equations.
+   * 
+   * @return The comma-separated IDs.
+   */
+  private static String joinIds(List<Long> elemIds) {
+    StringBuilder joined = new StringBuilder();
+    for (Long elemId : elemIds) {
+      if (joined.length() > 0) {
+        joined.append(',');
+      }
+      joined.append(elemId);
+    }
+    return joined.toString();
+  }
+
+  /**
+   * Returns the part of the request path after the path of this servlet.
+   * 
+   * @param httpRequest The HTTP request.
+   * 
+   * @return The sub-path, empty if the request targets the servlet path itself.
+   */
+  static String getSubPath(HttpServletRequest httpRequest) {
+    String requestURI = httpRequest.getRequestURI();
+    String servletPrefix = "/" + SERVLET_PATH + "/";
+    int index = requestURI != null ? requestURI.lastIndexOf(servletPrefix) : -1;
+    return index != -1 ? requestURI.substring(index + servletPrefix.length()) : "";
+  }
+
+  /**
+   * Reports an error to parse the MathML content.
+   * 
+   * @param httpResponse The HTTP response.
+   * @param e The parse error.
+   * 
+   * @throws IOException If the response cannot be written.
+   */
+  private static void sendParseError(HttpServletResponse httpResponse, SAXException e) throws IOException {
+    MathMLMetrics.increment(Counter.ERRORS);
+    log.error("Error parsing MathML content: " + e.getMessage(), e);
+    httpResponse.setHeader("Content-Type", MediaType.PLAIN_TEXT_UTF_8.toString());
+    httpResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Error parsing MathML content");
+  }
+
+  /**
+   * Answers a request with 503 Service Unavailable when too many equations are waiting to be 
+   * rendered. The client requests the equation again after the delay from the response.
+   * 
+   * @param httpResponse The HTTP response.
+   * 
+   * @throws IOException If the response cannot be written.
+   */
+  private static void sendOverloaded(HttpServletResponse httpResponse) throws IOException {
+    httpResponse.setHeader("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+    httpResponse.setHeader("Cache-Control", "no-store");
+    httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many MathML equations are being rendered.");
+  }
+
+  /**
+   * Returns the image format requested by the client. The <code>format</code> parameter
+   * takes precedence over the <code>Accept</code> header, which selects SVG only if the
+   * client does not accept PNG images.
+   *
+   * @param httpRequest The HTTP request.
+   *
+   * @return The image format.
+   */
+  static ImageFormat getRequestedFormat(HttpServletRequest httpRequest) {
+    String formatParam = httpRequest.getParameter("format");
+    if (formatParam != null) {
+      ImageFormat format = ImageFormat.fromExtension(formatParam);
+      return format != null ? format : ImageFormat.PNG;
+    }
+
+    String accept = httpRequest.getHeader("Accept");
+    if (accept != null && accept.contains("image/svg+xml")
+        && !accept.contains("image/png") && !accept.contains("image/*") && !accept.contains("*/*")) {
+      return ImageFormat.SVG;
+    }
+    return ImageFormat.PNG;
+  }
+
+  /**
+   * Returns the scale factor of the image requested by high-DPI displays, from the 
+   * <code>scale</code> parameter.
+   *
+   * @param httpRequest The HTTP request.
+   *
+   * @return The scale factor, from 1 to {@link JEuclidRenderer#MAX_SCALE}.
+   */
+  static int getRequestedScale(HttpServletRequest httpRequest) {
+    String scaleParam = httpRequest.getParameter("scale");
+    if (scaleParam == null) {
+      return 1;
+    }
+    try {
+      return Math.max(1, Math.min(JEuclidRenderer.MAX_SCALE, Integer.parseInt(scaleParam)));
+    } catch (NumberFormatException e) {
+      return 1;
+    }
+  }
+
+  /**
+   * Writes the image content, serving the gzip-compressed content as-is if the client accepts it.
+   *
+   * @param httpRequest The HTTP request.
+   * @param httpResponse The HTTP response.
+   * @param equation The rendered equation.
+   *
+   * @throws IOException If the content cannot be written.
+   */
+  private static void writeContent(HttpServletRequest httpRequest, HttpServletResponse httpResponse,
+      RenderedEquation equation) throws IOException {
+    byte[] content = equation.getContent();
+    OutputStream out = httpResponse.getOutputStream();
+    if (!equation.isGzipped()) {
+      httpResponse.setHeader("Content-Length", String.valueOf(content.length));
+      out.write(content);
+    } else if (acceptsGzip(httpRequest)) {
+      httpResponse.setHeader("Content-Encoding", "gzip");
+      httpResponse.setHeader("Content-Length", String.valueOf(content.length));
+      out.write(content);
+    } else {
+      try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(content))) {
+        ByteStreams.copy(in, out);
+      }
+    }
+  }
+
+  /**
+   * @param httpRequest The HTTP request.
+   *
+   * @return <code>true</code> if the client accepts gzip-compressed responses.
+   */
+  private static boolean acceptsGzip(HttpServletRequest httpRequest) {
+    String acceptEncoding = httpRequest.getHeader("Accept-Encoding");
+    return acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+  }
+
   /**
    * The path where this servlet is mapped.
    */
   @Override
   public String getPath() {
-    return "mathml";
+    return SERVLET_PATH;
   }
 }
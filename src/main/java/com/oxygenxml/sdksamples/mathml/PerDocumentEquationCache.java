@@ -1,24 +1,55 @@
 package com.oxygenxml.sdksamples.mathml;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.WeakHashMap;
-import java.util.function.Function;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
 
 import javax.swing.text.BadLocationException;
 
+import com.oxygenxml.sdksamples.mathml.MathMLMetrics.Counter;
+
 import ro.sync.ecss.extensions.api.AuthorDocumentController;
 import ro.sync.ecss.extensions.api.node.AuthorDocumentFragment;
 import ro.sync.ecss.extensions.api.node.AuthorElement;
+import ro.sync.ecss.extensions.api.node.AuthorNode;
 
 /**
  * Cache of equation descriptors per opened document.
  * 
+ * The XML fragments are stored compactly: UTF-8 encoded, deflated if they are large, and 
+ * shared with the equations of all the opened documents that have the same XML, through 
+ * the {@link EquationInterner}.
+ * 
+ * The entries of the elements that were garbage collected are evicted a few at a time, 
+ * as their weak references are enqueued, so that no freeze operation scans the whole cache.
+ * 
+ * If the changes of the document are tracked, the equations that did not change since they 
+ * were frozen are not serialized again.
+ * 
+ * The freeze operations serialize the equations without holding any lock. They synchronize 
+ * only to update the bookkeeping of the elements, and hold the write lock only while updating 
+ * the maps. {@link #getXmlFragment(long)} does not lock: it reads the cache optimistically and 
+ * retries if a freeze operation modified it meanwhile.
+ * 
  * @author cristi_talau
  */
 public class PerDocumentEquationCache {
 
+  /**
+   * The maximum number of entries of collected elements evicted by a freeze operation.
+   */
+  private static final int EVICTION_STEPS = 8;
+
+  /**
+   * The number of optimistic reads attempted before waiting for the write lock to be released.
+   */
+  private static final int OPTIMISTIC_READ_ATTEMPTS = 64;
+
   /**
    * The document controller.
    */
@@ -27,22 +58,50 @@ public class PerDocumentEquationCache {
   /**
    * Map from node identifiers to equation XML fragments. 
    */
-  private final Map<Long, String> mathMLElements = new HashMap<>(0);
+  private final LongObjectMap<FrozenFragment> mathMLElements = new LongObjectMap<>();
+
+  /**
+   * Lock that guards the modifications of {@link #mathMLElements} and of the last frozen 
+   * equation, so that the readers can validate their optimistic reads.
+   */
+  private final StampedLock lock = new StampedLock();
+
+  /**
+   * The ID of the last frozen equation.
+   */
+  private long lastFrozenId = -1;
+
+  /**
+   * The XML of the last frozen equation, which is usually requested right after it is frozen.
+   */
+  private String lastFrozenXml;
 
   /**
-   * The cache size after the last compaction.
+   * The weak references to the indexed author elements, by identity hash code. References 
+   * with the same identity hash code are chained through {@link ElementReference#next}.
    */
-  private long lastCompactedCacheSize = 4L;
+  private final LongObjectMap<ElementReference> elementsByIdentity = new LongObjectMap<>();
 
   /**
-   * Author elements node indexer.
+   * The queue where the references to the collected author elements are enqueued.
    */
-  Map<AuthorElement, Long> nodeIndexer = new WeakHashMap<>();
+  private final ReferenceQueue<AuthorElement> collectedElements = new ReferenceQueue<>();
   
   /**
    * Counter used to index nodes.
    */
   private long counter = 0;
+
+  /**
+   * <code>true</code> if the changes of the document are tracked by an {@link EquationChangeListener}.
+   */
+  private boolean trackingChanges;
+
+  /**
+   * Incremented when all the equations of the document may have changed.
+   */
+  private long generation = 0;
+
   /**
    * Constructor.
    * 
@@ -50,7 +109,8 @@ public class PerDocumentEquationCache {
    */
   public PerDocumentEquationCache(AuthorDocumentController controller) {
     this.docController = controller;
-    
+    EquationInterner.registerDocument(this, mathMLElements);
+    MathMLMetrics.registerDocumentCache(this);
   }
   
   /**
@@ -62,34 +122,198 @@ public class PerDocumentEquationCache {
    * 
    * @throws BadLocationException
    */
-  public synchronized long freezeMathMLfrag(AuthorElement elem) throws BadLocationException {
-    long elemId = nodeIndexer.computeIfAbsent(elem, new Function<AuthorElement, Long>() {
-      @Override
-      public Long apply(AuthorElement t) {
-        return counter++;
+  public long freezeMathMLfrag(AuthorElement elem) throws BadLocationException {
+    long startTime = System.nanoTime();
+    try {
+      return freeze(elem);
+    } finally {
+      MathMLMetrics.FREEZE.recordSince(startTime);
+    }
+  }
+
+  /**
+   * Freezes the XML content that corresponds to the given element.
+   * 
+   * @param elem The author element.
+   * 
+   * @return The id of the cache entry.
+   * 
+   * @throws BadLocationException
+   */
+  private long freeze(AuthorElement elem) throws BadLocationException {
+    ElementReference elemRef;
+    long freezeSequence;
+    FrozenFragment previous;
+    synchronized (this) {
+      evictCollectedElements(EVICTION_STEPS);
+      elemRef = getElementReference(elem);
+      if (trackingChanges && elemRef.frozenGeneration == generation 
+          && elemRef.committedSequence == elemRef.freezeSequence && mathMLElements.get(elemRef.elemId) != null) {
+        // The equation did not change since it was frozen, and it is not being frozen.
+        MathMLMetrics.increment(Counter.UNCHANGED_EQUATIONS);
+        return elemRef.elemId;
       }
-    });
+      // The changes made while the equation is serialized reset the generation.
+      elemRef.frozenGeneration = generation;
+      freezeSequence = ++elemRef.freezeSequence;
+      previous = mathMLElements.get(elemRef.elemId);
+    }
     
     AuthorDocumentFragment mathMlFrag = docController
         .createDocumentFragment(elem, true);
     String xml = docController.serializeFragmentToXML(mathMlFrag);
     
-    mathMLElements.put(elemId, xml);
-    if (mathMLElements.size() > 2 * lastCompactedCacheSize) {
-      compactCache();
+    int xmlHash = xml.hashCode();
+    FrozenFragment fragment = previous;
+    if (previous == null || !previous.matches(xml, xmlHash)) {
+      fragment = EquationInterner.acquire(xml, xmlHash);
+    }
+    
+    FrozenFragment released = null;
+    synchronized (this) {
+      if (freezeSequence != elemRef.freezeSequence) {
+        // A concurrent freeze of the same element started later, it stores its own fragment.
+        released = fragment != previous ? fragment : null;
+      } else {
+        // Only the last freeze of the element stores its fragment, so the previous one is still in the cache.
+        elemRef.committedSequence = freezeSequence;
+        long stamp = lock.writeLock();
+        try {
+          if (fragment != previous) {
+            mathMLElements.put(elemRef.elemId, fragment);
+            released = previous;
+          }
+          lastFrozenId = elemRef.elemId;
+          lastFrozenXml = xml;
+        } finally {
+          lock.unlockWrite(stamp);
+        }
+      }
     }
-    return elemId;
+    if (released != null) {
+      EquationInterner.release(released);
+    }
+    return elemRef.elemId;
   }
-  
+
+  /**
+   * Returns the reference to the given element, indexing it if it is not indexed yet.
+   * 
+   * @param elem The author element.
+   * 
+   * @return The reference to the element.
+   */
+  private ElementReference getElementReference(AuthorElement elem) {
+    ElementReference ref = findElementReference(elem);
+    if (ref == null) {
+      int identityHash = System.identityHashCode(elem);
+      ref = new ElementReference(elem, counter++, identityHash, collectedElements);
+      ref.next = elementsByIdentity.get(identityHash);
+      elementsByIdentity.put(identityHash, ref);
+    }
+    return ref;
+  }
+
   /**
-   * Compact the cache, removing entries that correspond to stale AuthorElements.
+   * @param node An author node.
+   * 
+   * @return The reference to the node, or <code>null</code> if the node is not an indexed element.
    */
-  private void compactCache() {
-    HashSet<Long> valuesSet = new HashSet<>(nodeIndexer.values());
+  private ElementReference findElementReference(AuthorNode node) {
+    ElementReference ref = elementsByIdentity.get(System.identityHashCode(node));
+    while (ref != null && ref.get() != node) {
+      ref = ref.next;
+    }
+    return ref;
+  }
 
-    mathMLElements.entrySet().removeIf(entry -> !valuesSet.contains(entry.getKey()));
-    
-    lastCompactedCacheSize = mathMLElements.size();
+  /**
+   * Starts tracking the changes of the document, so that the equations that did not change 
+   * are not serialized again when they are frozen. 
+   */
+  public synchronized void trackChanges() {
+    if (!trackingChanges) {
+      trackingChanges = true;
+      // The changes made until now were not tracked.
+      generation++;
+      docController.addAuthorListener(new EquationChangeListener(this));
+    }
+  }
+
+  /**
+   * Marks a node of the document as changed. The equations that contain it will be serialized 
+   * again when they are frozen.
+   * 
+   * @param node The changed node.
+   */
+  synchronized void markChanged(AuthorNode node) {
+    for (AuthorNode current = node; current != null; current = current.getParent()) {
+      ElementReference ref = findElementReference(current);
+      if (ref != null) {
+        ref.frozenGeneration = -1;
+      }
+    }
+  }
+
+  /**
+   * Marks all the equations of the document as changed.
+   */
+  synchronized void markAllChanged() {
+    generation++;
+  }
+
+  /**
+   * Evicts the entries of the author elements that were garbage collected.
+   * 
+   * @param maxSteps The maximum number of entries to evict.
+   */
+  private void evictCollectedElements(int maxSteps) {
+    for (int i = 0; i < maxSteps; i++) {
+      ElementReference ref = (ElementReference) collectedElements.poll();
+      if (ref == null) {
+        return;
+      }
+      unlinkReference(ref);
+      FrozenFragment fragment;
+      long stamp = lock.writeLock();
+      try {
+        fragment = mathMLElements.remove(ref.elemId);
+        if (ref.elemId == lastFrozenId) {
+          lastFrozenId = -1;
+          lastFrozenXml = null;
+        }
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+      if (fragment != null) {
+        EquationInterner.release(fragment);
+      }
+    }
+  }
+
+  /**
+   * Removes a reference from the identity index.
+   * 
+   * @param ref The reference.
+   */
+  private void unlinkReference(ElementReference ref) {
+    ElementReference head = elementsByIdentity.get(ref.identityHash);
+    if (head == ref) {
+      if (ref.next != null) {
+        elementsByIdentity.put(ref.identityHash, ref.next);
+      } else {
+        elementsByIdentity.remove(ref.identityHash);
+      }
+    } else {
+      ElementReference previous = head;
+      while (previous != null && previous.next != ref) {
+        previous = previous.next;
+      }
+      if (previous != null) {
+        previous.next = ref.next;
+      }
+    }
+    ref.next = null;
   }
   
   /**
@@ -99,13 +323,143 @@ public class PerDocumentEquationCache {
     return mathMLElements.size();
   }
   
+  /**
+   * @return The IDs of the equations in the cache, in ascending order.
+   */
+  public List<Long> getElementIds() {
+    long[] keys;
+    long stamp = lock.readLock();
+    try {
+      keys = mathMLElements.sortedKeys();
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    List<Long> elemIds = new ArrayList<>(keys.length);
+    for (long key : keys) {
+      elemIds.add(key);
+    }
+    return elemIds;
+  }
+
+  /**
+   * @return The number of distinct XML fragments of the document.
+   */
+  int getDistinctFragmentsCount() {
+    Set<FrozenFragment> fragments = Collections.newSetFromMap(new IdentityHashMap<>());
+    long stamp = lock.readLock();
+    try {
+      mathMLElements.forEachValue(fragments::add);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    return fragments.size();
+  }
+  
   /**
    * The XML fragment of the given node.
    * 
    * @param elemId
    * @return The XML fragment that corresponds to the given element
    */
-  public synchronized String getXmlFragment(long elemId) {
-    return mathMLElements.get(elemId);
+  public String getXmlFragment(long elemId) {
+    for (int i = 0; i < OPTIMISTIC_READ_ATTEMPTS; i++) {
+      long stamp = lock.tryOptimisticRead();
+      if (stamp != 0) {
+        String xml = elemId == lastFrozenId ? lastFrozenXml : null;
+        FrozenFragment fragment = xml == null ? mathMLElements.get(elemId) : null;
+        if (lock.validate(stamp)) {
+          // The fragments are immutable, they can be decoded after the validation.
+          return xml != null || fragment == null ? xml : fragment.getXml();
+        }
+      }
+      Thread.yield();
+    }
+    // The writers hold the lock only while updating the maps.
+    FrozenFragment fragment;
+    long stamp = lock.readLock();
+    try {
+      if (elemId == lastFrozenId) {
+        return lastFrozenXml;
+      }
+      fragment = mathMLElements.get(elemId);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    return fragment != null ? fragment.getXml() : null;
+  }
+
+  /**
+   * The shared fragment of the given node. Unlike {@link #getXmlFragment(long)}, it does not 
+   * decode the XML.
+   * 
+   * @param elemId The ID of the element.
+   * 
+   * @return The fragment, or <code>null</code> if the element is not in the cache.
+   */
+  FrozenFragment getFrozenFragment(long elemId) {
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      FrozenFragment fragment = mathMLElements.get(elemId);
+      if (lock.validate(stamp)) {
+        return fragment;
+      }
+    }
+    stamp = lock.readLock();
+    try {
+      return mathMLElements.get(elemId);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Weak reference to an indexed author element. Author elements are compared by identity.
+   */
+  private static final class ElementReference extends WeakReference<AuthorElement> {
+
+    /**
+     * The ID of the element.
+     */
+    final long elemId;
+
+    /**
+     * The identity hash code of the element.
+     */
+    final int identityHash;
+
+    /**
+     * The next reference with the same identity hash code.
+     */
+    ElementReference next;
+
+    /**
+     * The generation of the document when the element was last serialized, -1 if it changed since.
+     */
+    long frozenGeneration = -1;
+
+    /**
+     * The number of times the element started to be frozen.
+     */
+    long freezeSequence;
+
+    /**
+     * The {@link #freezeSequence} of the last freeze operation that stored its fragment.
+     */
+    long committedSequence;
+
+    /**
+     * Constructor.
+     * 
+     * @param elem The author element.
+     * @param elemId The ID of the element.
+     * @param identityHash The identity hash code of the element.
+     * @param queue The queue where the reference is enqueued when the element is collected.
+     */
+    ElementReference(AuthorElement elem, long elemId, int identityHash, 
+        ReferenceQueue<AuthorElement> queue) {
+      super(elem, queue);
+      this.elemId = elemId;
+      this.identityHash = identityHash;
+    }
   }
 }
@@ -0,0 +1,741 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG encoder specialized for rendered equations.
+ *
+ * The equations are mostly black glyphs with anti-aliased edges on a transparent background,
+ * so all their pixels are usually gray. The encoder writes a palette image when the image 
+ * has few colors, a gray-alpha image when all the pixels are gray, a palette image when the image 
+ * has at most 256 colors and an RGBA image otherwise.
+ *
+ * An encoder keeps its {@link Deflater} and its buffers between images. The encoders are
+ * pooled, so the same encoder is never used by two threads at a time. The buffers grown for 
+ * large images, like sprites and high-DPI renders, are dropped before the encoder returns to 
+ * the pool, so that the idle encoders only keep the buffers sized for typical equations.
+ *
+ * @author agent
+ */
+public class PngEncoder {
+
+  /**
+   * The maximum number of idle encoders kept in the pool.
+   */
+  private static final int POOL_CAPACITY = 8;
+
+  /**
+   * The idle encoders.
+   */
+  private static final BlockingQueue<PngEncoder> idleEncoders = new ArrayBlockingQueue<>(POOL_CAPACITY);
+
+  /**
+   * The maximum number of pixels of the image buffer kept by an idle encoder.
+   */
+  static final int MAX_POOLED_PIXELS = 256 * 1024;
+
+  /**
+   * The maximum length of the scanline buffers kept by an idle encoder.
+   */
+  static final int MAX_POOLED_ROW_LENGTH = 16 * 1024;
+
+  /**
+   * The initial and maximum length of the compressed data buffer kept by an idle encoder.
+   */
+  static final int MAX_POOLED_COMPRESSED_LENGTH = 256 * 1024;
+
+  /**
+   * The initial length of the compressed data buffer.
+   */
+  private static final int INITIAL_COMPRESSED_LENGTH = 4096;
+
+  /**
+   * The PNG file signature.
+   */
+  private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+  /**
+   * The overhead of a chunk: length, type and CRC.
+   */
+  private static final int CHUNK_OVERHEAD = 12;
+
+  /**
+   * The size of the IHDR chunk data.
+   */
+  private static final int IHDR_LENGTH = 13;
+
+  /**
+   * The maximum number of colors of a palette image.
+   */
+  private static final int MAX_PALETTE_SIZE = 256;
+
+  /**
+   * The maximum number of colors of a palette image with less than 8 bits per pixel.
+   */
+  private static final int MAX_SMALL_PALETTE_SIZE = 16;
+
+  /**
+   * The size of the hash table used to collect the colors. Must be a power of two, larger than the palette.
+   */
+  private static final int COLOR_TABLE_SIZE = 1024;
+
+  /**
+   * Color type of gray-alpha images.
+   */
+  static final int COLOR_TYPE_GRAY_ALPHA = 4;
+
+  /**
+   * Color type of palette images.
+   */
+  static final int COLOR_TYPE_PALETTE = 3;
+
+  /**
+   * Color type of RGBA images.
+   */
+  static final int COLOR_TYPE_RGBA = 6;
+
+  /**
+   * The deflater, reset before every image.
+   */
+  private final Deflater deflater = new Deflater();
+
+  /**
+   * The checksum of the chunks.
+   */
+  private final CRC32 crc = new CRC32();
+
+  /**
+   * The ARGB pixels of the image.
+   */
+  private int[] pixels = new int[0];
+
+  /**
+   * The colors in the hash table of colors.
+   */
+  private final int[] colorTableKeys = new int[COLOR_TABLE_SIZE];
+
+  /**
+   * The palette index + 1 of the colors in the hash table, 0 for empty slots.
+   */
+  private final int[] colorTableValues = new int[COLOR_TABLE_SIZE];
+
+  /**
+   * The colors of the palette, in the order in which they were found.
+   */
+  private final int[] palette = new int[MAX_PALETTE_SIZE];
+
+  /**
+   * The position in the written palette of each color found.
+   */
+  private final int[] paletteOrder = new int[MAX_PALETTE_SIZE];
+
+  /**
+   * The unfiltered current scanline.
+   */
+  private byte[] currentRow = new byte[0];
+
+  /**
+   * The unfiltered previous scanline.
+   */
+  private byte[] previousRow = new byte[0];
+
+  /**
+   * The current scanline, filtered with each of the five PNG filters. The first byte is the filter type.
+   */
+  private byte[][] filteredRows = new byte[5][0];
+
+  /**
+   * The compressed image data.
+   */
+  private byte[] compressed = new byte[INITIAL_COMPRESSED_LENGTH];
+
+  /**
+   * The number of bytes used in {@link #compressed}.
+   */
+  private int compressedLength;
+
+  /**
+   * Private constructor, the encoders are obtained from the pool.
+   */
+  private PngEncoder() {
+  }
+
+  /**
+   * Encodes an image as PNG.
+   *
+   * @param image The image.
+   *
+   * @return The PNG file.
+   */
+  public static byte[] encode(BufferedImage image) {
+    return encode(image, MathMLPluginOptions.getPngCompressionLevel());
+  }
+
+  /**
+   * Encodes an image as PNG.
+   *
+   * @param image The image.
+   * @param compressionLevel The deflate level, from 0 to 9.
+   *
+   * @return The PNG file.
+   */
+  public static byte[] encode(BufferedImage image, int compressionLevel) {
+    PngEncoder encoder = idleEncoders.poll();
+    if (encoder == null) {
+      encoder = new PngEncoder();
+    }
+    try {
+      return encoder.encodeImage(image, compressionLevel);
+    } finally {
+      encoder.dropLargeBuffers();
+      if (!idleEncoders.offer(encoder)) {
+        encoder.deflater.end();
+      }
+    }
+  }
+
+  /**
+   * Drops the buffers that grew larger than needed for typical equations.
+   */
+  private void dropLargeBuffers() {
+    if (pixels.length > MAX_POOLED_PIXELS) {
+      pixels = new int[0];
+    }
+    if (currentRow.length > MAX_POOLED_ROW_LENGTH) {
+      currentRow = new byte[0];
+      previousRow = new byte[0];
+      filteredRows = new byte[5][0];
+    }
+    if (compressed.length > MAX_POOLED_COMPRESSED_LENGTH) {
+      compressed = new byte[INITIAL_COMPRESSED_LENGTH];
+    }
+  }
+
+  /**
+   * @return The number of bytes of the buffers kept by the idle encoders.
+   */
+  static long getPooledBufferBytes() {
+    long bytes = 0;
+    for (PngEncoder encoder : idleEncoders) {
+      bytes += 4L * encoder.pixels.length + 7L * encoder.currentRow.length + encoder.compressed.length;
+    }
+    return bytes;
+  }
+
+  /**
+   * Encodes an image as PNG.
+   *
+   * @param image The image.
+   * @param compressionLevel The deflate level, from 0 to 9.
+   *
+   * @return The PNG file.
+   */
+  private byte[] encodeImage(BufferedImage image, int compressionLevel) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int pixelCount = width * height;
+    if (pixels.length < pixelCount) {
+      pixels = new int[pixelCount];
+    }
+    if (image.getType() == BufferedImage.TYPE_INT_ARGB) {
+      // Copies whole rows, while getRGB converts each pixel through the color model.
+      image.getRaster().getDataElements(0, 0, width, height, pixels);
+    } else {
+      image.getRGB(0, 0, width, height, pixels, 0, width);
+    }
+
+    int paletteSize = collectColors(pixelCount);
+    // Anti-aliased black glyphs have many levels of alpha. They compress better as filtered 
+    // gray-alpha samples than as unfiltered palette indices with a large transparency chunk.
+    boolean gray = paletteSize > MAX_SMALL_PALETTE_SIZE && isGray(pixelCount);
+
+    int colorType;
+    int bitDepth = 8;
+    int bytesPerPixel;
+    if (paletteSize <= MAX_SMALL_PALETTE_SIZE || (paletteSize <= MAX_PALETTE_SIZE && !gray)) {
+      colorType = COLOR_TYPE_PALETTE;
+      bitDepth = getPaletteBitDepth(paletteSize);
+      bytesPerPixel = 1;
+    } else if (gray) {
+      colorType = COLOR_TYPE_GRAY_ALPHA;
+      bytesPerPixel = 2;
+    } else {
+      colorType = COLOR_TYPE_RGBA;
+      bytesPerPixel = 4;
+    }
+
+    compressImageData(width, height, colorType, bitDepth, bytesPerPixel, compressionLevel);
+    return writeChunks(width, height, colorType, bitDepth, paletteSize);
+  }
+
+  /**
+   * Collects the colors of the image in the palette, transparent colors first.
+   * Fully transparent pixels are normalized to a single color.
+   *
+   * @param pixelCount The number of pixels.
+   *
+   * @return The number of colors or a number larger than {@link #MAX_PALETTE_SIZE} if there are too many.
+   */
+  private int collectColors(int pixelCount) {
+    Arrays.fill(colorTableValues, 0);
+    int colorCount = 0;
+    for (int i = 0; i < pixelCount; i++) {
+      int color = pixels[i];
+      if ((color >>> 24) == 0) {
+        color = 0;
+        pixels[i] = 0;
+      }
+      if (colorCount <= MAX_PALETTE_SIZE && findColor(color) < 0) {
+        if (colorCount < MAX_PALETTE_SIZE) {
+          addColor(color, colorCount);
+        }
+        colorCount++;
+      }
+    }
+
+    if (colorCount <= MAX_PALETTE_SIZE) {
+      // Write the transparent colors first, so that the transparency chunk is short.
+      int position = 0;
+      for (int i = 0; i < colorCount; i++) {
+        if ((palette[i] >>> 24) != 0xFF) {
+          paletteOrder[i] = position++;
+        }
+      }
+      for (int i = 0; i < colorCount; i++) {
+        if ((palette[i] >>> 24) == 0xFF) {
+          paletteOrder[i] = position++;
+        }
+      }
+    }
+    return colorCount;
+  }
+
+  /**
+   * @param color The ARGB color.
+   *
+   * @return The index of the color in the order in which the colors were found, or -1.
+   */
+  private int findColor(int color) {
+    int slot = hashColor(color);
+    while (colorTableValues[slot] != 0) {
+      if (colorTableKeys[slot] == color) {
+        return colorTableValues[slot] - 1;
+      }
+      slot = (slot + 1) & (COLOR_TABLE_SIZE - 1);
+    }
+    return -1;
+  }
+
+  /**
+   * Adds a color to the palette.
+   *
+   * @param color The ARGB color.
+   * @param index The index of the color.
+   */
+  private void addColor(int color, int index) {
+    int slot = hashColor(color);
+    while (colorTableValues[slot] != 0) {
+      slot = (slot + 1) & (COLOR_TABLE_SIZE - 1);
+    }
+    colorTableKeys[slot] = color;
+    colorTableValues[slot] = index + 1;
+    palette[index] = color;
+  }
+
+  /**
+   * @param color The ARGB color.
+   *
+   * @return The first slot of the color in the hash table.
+   */
+  private static int hashColor(int color) {
+    return (color * 0x9E3779B9 >>> 22) & (COLOR_TABLE_SIZE - 1);
+  }
+
+  /**
+   * @param pixelCount The number of pixels.
+   *
+   * @return <code>true</code> if all the pixels are gray.
+   */
+  private boolean isGray(int pixelCount) {
+    for (int i = 0; i < pixelCount; i++) {
+      int color = pixels[i];
+      int red = (color >> 16) & 0xFF;
+      if (red != ((color >> 8) & 0xFF) || red != (color & 0xFF)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param paletteSize The number of colors.
+   *
+   * @return The smallest bit depth that can index the palette.
+   */
+  static int getPaletteBitDepth(int paletteSize) {
+    if (paletteSize <= 2) {
+      return 1;
+    } else if (paletteSize <= 4) {
+      return 2;
+    } else if (paletteSize <= 16) {
+      return 4;
+    }
+    return 8;
+  }
+
+  /**
+   * Filters and compresses the scanlines of the image.
+   *
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @param colorType The PNG color type.
+   * @param bitDepth The PNG bit depth.
+   * @param bytesPerPixel The number of bytes per pixel, rounded up to 1.
+   * @param compressionLevel The deflate level.
+   */
+  private void compressImageData(int width, int height, int colorType, int bitDepth, int bytesPerPixel,
+      int compressionLevel) {
+    int rowLength = (width * bitDepth * (colorType == COLOR_TYPE_PALETTE ? 1 : bytesPerPixel) + 7) / 8;
+    if (currentRow.length < rowLength) {
+      currentRow = new byte[rowLength];
+      previousRow = new byte[rowLength];
+      for (int i = 0; i < filteredRows.length; i++) {
+        filteredRows[i] = new byte[rowLength + 1];
+      }
+    }
+    Arrays.fill(previousRow, 0, rowLength, (byte) 0);
+
+    deflater.reset();
+    deflater.setLevel(Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, compressionLevel)));
+    compressedLength = 0;
+
+    for (int y = 0; y < height; y++) {
+      int rowStart = y * width;
+      if (colorType == COLOR_TYPE_PALETTE) {
+        packPaletteRow(rowStart, width, bitDepth, rowLength);
+      } else {
+        writeColorRow(rowStart, width, colorType);
+      }
+
+      // Palette images compress best without filters.
+      byte[] filtered = colorType == COLOR_TYPE_PALETTE ?
+          filterNone(rowLength) : filterAdaptive(rowLength, bytesPerPixel);
+      deflate(filtered, rowLength + 1);
+
+      byte[] swap = previousRow;
+      previousRow = currentRow;
+      currentRow = swap;
+    }
+
+    deflater.finish();
+    while (!deflater.finished()) {
+      deflateAvailable();
+    }
+  }
+
+  /**
+   * Writes the palette indices of a row of pixels in {@link #currentRow}.
+   *
+   * @param rowStart The index of the first pixel of the row.
+   * @param width The width of the image.
+   * @param bitDepth The bit depth.
+   * @param rowLength The length of the row, in bytes.
+   */
+  private void packPaletteRow(int rowStart, int width, int bitDepth, int rowLength) {
+    if (bitDepth == 8) {
+      for (int x = 0; x < width; x++) {
+        currentRow[x] = (byte) paletteOrder[findColor(pixels[rowStart + x])];
+      }
+    } else {
+      Arrays.fill(currentRow, 0, rowLength, (byte) 0);
+      int pixelsPerByte = 8 / bitDepth;
+      for (int x = 0; x < width; x++) {
+        int index = paletteOrder[findColor(pixels[rowStart + x])];
+        int shift = 8 - bitDepth * (x % pixelsPerByte + 1);
+        currentRow[x / pixelsPerByte] |= index << shift;
+      }
+    }
+  }
+
+  /**
+   * Writes the gray-alpha or RGBA samples of a row of pixels in {@link #currentRow}.
+   *
+   * @param rowStart The index of the first pixel of the row.
+   * @param width The width of the image.
+   * @param colorType The PNG color type.
+   */
+  private void writeColorRow(int rowStart, int width, int colorType) {
+    int position = 0;
+    for (int x = 0; x < width; x++) {
+      int color = pixels[rowStart + x];
+      if (colorType == COLOR_TYPE_GRAY_ALPHA) {
+        currentRow[position++] = (byte) color;
+      } else {
+        currentRow[position++] = (byte) (color >> 16);
+        currentRow[position++] = (byte) (color >> 8);
+        currentRow[position++] = (byte) color;
+      }
+      currentRow[position++] = (byte) (color >>> 24);
+    }
+  }
+
+  /**
+   * @param rowLength The length of the row.
+   *
+   * @return The current row, without filtering.
+   */
+  private byte[] filterNone(int rowLength) {
+    byte[] filtered = filteredRows[0];
+    filtered[0] = 0;
+    System.arraycopy(currentRow, 0, filtered, 1, rowLength);
+    return filtered;
+  }
+
+  /**
+   * Filters the current row with each PNG filter and chooses the one with the minimum sum of
+   * absolute differences, as recommended by the PNG specification.
+   *
+   * @param rowLength The length of the row.
+   * @param bytesPerPixel The number of bytes per pixel.
+   *
+   * @return The filtered row.
+   */
+  private byte[] filterAdaptive(int rowLength, int bytesPerPixel) {
+    byte[] none = filteredRows[0];
+    byte[] sub = filteredRows[1];
+    byte[] up = filteredRows[2];
+    byte[] average = filteredRows[3];
+    byte[] paeth = filteredRows[4];
+
+    // Rows repeated from the previous one, like the blank space around the glyphs, are all zeros with the Up filter.
+    if (isRepeatedRow(rowLength)) {
+      up[0] = 2;
+      Arrays.fill(up, 1, rowLength + 1, (byte) 0);
+      return up;
+    }
+
+    none[0] = 0;
+    sub[0] = 1;
+    up[0] = 2;
+    average[0] = 3;
+    paeth[0] = 4;
+    System.arraycopy(currentRow, 0, none, 1, rowLength);
+
+    int noneSum = 0;
+    int subSum = 0;
+    int upSum = 0;
+    int averageSum = 0;
+    int paethSum = 0;
+    for (int i = 0; i < rowLength; i++) {
+      int x = currentRow[i] & 0xFF;
+      int b = previousRow[i] & 0xFF;
+      int a = 0;
+      int c = 0;
+      if (i >= bytesPerPixel) {
+        a = currentRow[i - bytesPerPixel] & 0xFF;
+        c = previousRow[i - bytesPerPixel] & 0xFF;
+      }
+
+      byte subValue = (byte) (x - a);
+      byte upValue = (byte) (x - b);
+      byte averageValue = (byte) (x - ((a + b) >>> 1));
+      byte paethValue = (byte) (x - paethPredictor(a, b, c));
+      sub[i + 1] = subValue;
+      up[i + 1] = upValue;
+      average[i + 1] = averageValue;
+      paeth[i + 1] = paethValue;
+
+      noneSum += Math.abs((byte) x);
+      subSum += Math.abs(subValue);
+      upSum += Math.abs(upValue);
+      averageSum += Math.abs(averageValue);
+      paethSum += Math.abs(paethValue);
+    }
+
+    int best = 0;
+    int bestSum = noneSum;
+    if (subSum < bestSum) {
+      best = 1;
+      bestSum = subSum;
+    }
+    if (upSum < bestSum) {
+      best = 2;
+      bestSum = upSum;
+    }
+    if (averageSum < bestSum) {
+      best = 3;
+      bestSum = averageSum;
+    }
+    if (paethSum < bestSum) {
+      best = 4;
+    }
+    return filteredRows[best];
+  }
+
+  /**
+   * @param rowLength The length of the row.
+   *
+   * @return <code>true</code> if the current row is identical to the previous one.
+   */
+  private boolean isRepeatedRow(int rowLength) {
+    for (int i = 0; i < rowLength; i++) {
+      if (currentRow[i] != previousRow[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param a The byte on the left.
+   * @param b The byte above.
+   * @param c The byte above on the left.
+   *
+   * @return The Paeth predictor.
+   */
+  private static int paethPredictor(int a, int b, int c) {
+    int p = a + b - c;
+    int pa = Math.abs(p - a);
+    int pb = Math.abs(p - b);
+    int pc = Math.abs(p - c);
+    if (pa <= pb && pa <= pc) {
+      return a;
+    } else if (pb <= pc) {
+      return b;
+    }
+    return c;
+  }
+
+  /**
+   * Compresses some data.
+   *
+   * @param data The data.
+   * @param length The length of the data.
+   */
+  private void deflate(byte[] data, int length) {
+    deflater.setInput(data, 0, length);
+    while (!deflater.needsInput()) {
+      deflateAvailable();
+    }
+  }
+
+  /**
+   * Appends the available compressed data to {@link #compressed}, growing it if needed.
+   */
+  private void deflateAvailable() {
+    if (compressedLength == compressed.length) {
+      compressed = Arrays.copyOf(compressed, compressed.length * 2);
+    }
+    compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+  }
+
+  /**
+   * Writes the PNG file.
+   *
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @param colorType The PNG color type.
+   * @param bitDepth The PNG bit depth.
+   * @param paletteSize The number of colors of the palette.
+   *
+   * @return The PNG file.
+   */
+  private byte[] writeChunks(int width, int height, int colorType, int bitDepth, int paletteSize) {
+    int transparentColors = 0;
+    if (colorType == COLOR_TYPE_PALETTE) {
+      for (int i = 0; i < paletteSize; i++) {
+        if ((palette[i] >>> 24) != 0xFF) {
+          transparentColors++;
+        }
+      }
+    }
+
+    int size = SIGNATURE.length + CHUNK_OVERHEAD + IHDR_LENGTH
+        + CHUNK_OVERHEAD + compressedLength + CHUNK_OVERHEAD;
+    if (colorType == COLOR_TYPE_PALETTE) {
+      size += CHUNK_OVERHEAD + 3 * paletteSize;
+      if (transparentColors > 0) {
+        size += CHUNK_OVERHEAD + transparentColors;
+      }
+    }
+    ByteBuffer png = ByteBuffer.wrap(new byte[size]);
+    png.put(SIGNATURE);
+
+    int chunkStart = beginChunk(png, "IHDR", IHDR_LENGTH);
+    png.putInt(width);
+    png.putInt(height);
+    png.put((byte) bitDepth);
+    png.put((byte) colorType);
+    // Deflate compression, adaptive filtering, no interlacing.
+    png.put((byte) 0);
+    png.put((byte) 0);
+    png.put((byte) 0);
+    endChunk(png, chunkStart);
+
+    if (colorType == COLOR_TYPE_PALETTE) {
+      byte[] colors = new byte[3 * paletteSize];
+      byte[] alphas = new byte[transparentColors];
+      for (int i = 0; i < paletteSize; i++) {
+        int position = paletteOrder[i];
+        int color = palette[i];
+        colors[3 * position] = (byte) (color >> 16);
+        colors[3 * position + 1] = (byte) (color >> 8);
+        colors[3 * position + 2] = (byte) color;
+        if (position < transparentColors) {
+          alphas[position] = (byte) (color >>> 24);
+        }
+      }
+      chunkStart = beginChunk(png, "PLTE", colors.length);
+      png.put(colors);
+      endChunk(png, chunkStart);
+      if (transparentColors > 0) {
+        chunkStart = beginChunk(png, "tRNS", alphas.length);
+        png.put(alphas);
+        endChunk(png, chunkStart);
+      }
+    }
+
+    chunkStart = beginChunk(png, "IDAT", compressedLength);
+    png.put(compressed, 0, compressedLength);
+    endChunk(png, chunkStart);
+
+    chunkStart = beginChunk(png, "IEND", 0);
+    endChunk(png, chunkStart);
+    return png.array();
+  }
+
+  /**
+   * Writes the length and type of a chunk.
+   *
+   * @param png The PNG file.
+   * @param type The chunk type.
+   * @param length The length of the chunk data.
+   *
+   * @return The position of the chunk type, where the checksum starts.
+   */
+  private static int beginChunk(ByteBuffer png, String type, int length) {
+    png.putInt(length);
+    int typePosition = png.position();
+    png.put(type.getBytes(StandardCharsets.US_ASCII));
+    return typePosition;
+  }
+
+  /**
+   * Writes the checksum of a chunk.
+   *
+   * @param png The PNG file.
+   * @param typePosition The position of the chunk type.
+   */
+  private void endChunk(ByteBuffer png, int typePosition) {
+    crc.reset();
+    crc.update(png.array(), typePosition, png.position() - typePosition);
+    png.putInt((int) crc.getValue());
+  }
+}
@@ -0,0 +1,133 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The rendered form of an equation: the encoded image together with its dimensions.
+ *
+ * @author agent
+ */
+public class RenderedEquation {
+
+  /**
+   * The encoded image.
+   */
+  private final byte[] content;
+
+  /**
+   * The format of the image.
+   */
+  private final ImageFormat format;
+
+  /**
+   * <code>true</code> if the content is gzip-compressed.
+   */
+  private final boolean gzipped;
+
+  /**
+   * The width of the image.
+   */
+  private final int width;
+
+  /**
+   * The height of the image.
+   */
+  private final int height;
+
+  /**
+   * Constructor.
+   *
+   * @param content The encoded image.
+   * @param format The format of the image.
+   * @param gzipped <code>true</code> if the content is gzip-compressed.
+   * @param width The width of the image.
+   * @param height The height of the image.
+   */
+  public RenderedEquation(byte[] content, ImageFormat format, boolean gzipped, int width, int height) {
+    this.content = content;
+    this.format = format;
+    this.gzipped = gzipped;
+    this.width = width;
+    this.height = height;
+  }
+
+  /**
+   * Encodes the given image.
+   *
+   * @param image The image.
+   *
+   * @return The rendered equation.
+   *
+   * @throws IOException If the image cannot be encoded.
+   */
+  public static RenderedEquation fromImage(BufferedImage image) throws IOException {
+    long startTime = System.nanoTime();
+    byte[] png;
+    try {
+      png = PngEncoder.encode(image);
+    } finally {
+      MathMLMetrics.ENCODE.recordSince(startTime);
+    }
+    return new RenderedEquation(png, ImageFormat.PNG, false, image.getWidth(), image.getHeight());
+  }
+
+  /**
+   * Wraps an SVG document. The SVG is stored gzip-compressed since it is text.
+   *
+   * @param svg The serialized SVG document.
+   * @param width The width of the image.
+   * @param height The height of the image.
+   *
+   * @return The rendered equation.
+   *
+   * @throws IOException If the image cannot be compressed.
+   */
+  public static RenderedEquation fromSvg(byte[] svg, int width, int height) throws IOException {
+    ByteArrayOutputStream gzippedBytes = new ByteArrayOutputStream(svg.length / 3);
+    long startTime = System.nanoTime();
+    try (GZIPOutputStream gzipStream = new GZIPOutputStream(gzippedBytes)) {
+      gzipStream.write(svg);
+    } finally {
+      MathMLMetrics.ENCODE.recordSince(startTime);
+    }
+    return new RenderedEquation(gzippedBytes.toByteArray(), ImageFormat.SVG, true, width, height);
+  }
+
+  /**
+   * @return The encoded image, gzip-compressed if {@link #isGzipped()}.
+   */
+  public byte[] getContent() {
+    return content;
+  }
+
+  /**
+   * @return The format of the image.
+   */
+  public ImageFormat getFormat() {
+    return format;
+  }
+
+  /**
+   * @return <code>true</code> if the content is gzip-compressed.
+   */
+  public boolean isGzipped() {
+    return gzipped;
+  }
+
+  /**
+   * @return The width of the image.
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * @return The height of the image.
+   */
+  public int getHeight() {
+    return height;
+  }
+}
@@ -0,0 +1,225 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+
+import ro.sync.ecss.extensions.api.AuthorDocumentType;
+
+/**
+ * Process-wide cache of rendered equations and of their dimensions, keyed by the 
+ * hash of their XML content.
+ *
+ * The cache is shared by all documents and editing sessions so that each equation
+ * is rendered once, no matter how many times it is displayed.
+ *
+ * @author agent
+ */
+public class RenderedEquationCache {
+
+  /**
+   * The maximum number of bytes of encoded images kept in the cache.
+   */
+  static final long MAX_WEIGHT_BYTES = 64L * 1024 * 1024;
+
+  /**
+   * The fixed overhead of a cache entry, in bytes.
+   */
+  private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+  /**
+   * The number of bytes of the encoded images in the cache, maintained as they are added and 
+   * removed so that reading it does not walk the cache.
+   */
+  private static final LongAdder imageBytes = new LongAdder();
+
+  /**
+   * The rendered equations, keyed by the SHA-256 of the XML fragment and the image format.
+   */
+  private static final Cache<String, RenderedEquation> renderedEquations = CacheBuilder.newBuilder()
+      .maximumWeight(MAX_WEIGHT_BYTES)
+      .weigher((String key, RenderedEquation equation) ->
+          ENTRY_OVERHEAD_BYTES + key.length() + equation.getContent().length)
+      .removalListener((RemovalNotification<String, RenderedEquation> removal) -> 
+          imageBytes.add(-removal.getValue().getContent().length))
+      .build();
+
+  /**
+   * The maximum number of equation dimensions kept in the cache.
+   */
+  static final long MAX_DIMENSIONS_ENTRIES = 200_000;
+
+  /**
+   * The dimensions of the laid out equations, keyed by the SHA-256 of the XML fragment.
+   */
+  private static final Cache<String, EquationDimensions> equationDimensions = CacheBuilder.newBuilder()
+      .maximumSize(MAX_DIMENSIONS_ENTRIES)
+      .build();
+
+  /**
+   * Private constructor.
+   */
+  private RenderedEquationCache() {
+  }
+
+  /**
+   * Returns the hash that identifies the rendering of an equation. Most fragments are parsed 
+   * on their own and render the same in every document, so their hash is the SHA-256 of the 
+   * XML. The fragments that use entities declared only by the DTD of the document may render 
+   * differently in each document type, so their hash also covers the document type and the 
+   * system ID against which the DTD is resolved.
+   *
+   * @param xml The equation XML.
+   * @param systemID The system ID of the document, <code>null</code> if not known.
+   * @param docType The document type, <code>null</code> if not known.
+   *
+   * @return The hash of the equation.
+   */
+  public static String getXmlHash(String xml, String systemID, AuthorDocumentType docType) {
+    return getXmlHash(DigestUtils.sha256Hex(xml), MathMLPreprocessor.preprocess(xml).needsDoctype(), 
+        systemID, docType);
+  }
+
+  /**
+   * Returns the hash that identifies the rendering of an equation.
+   *
+   * @param sha256 The SHA-256 of the equation XML.
+   * @param needsDoctype <code>true</code> if the equation is parsed with the DTD of the document.
+   * @param systemID The system ID of the document, <code>null</code> if not known.
+   * @param docType The document type, <code>null</code> if not known.
+   *
+   * @return The hash of the equation.
+   */
+  static String getXmlHash(String sha256, boolean needsDoctype, String systemID, AuthorDocumentType docType) {
+    if (!needsDoctype) {
+      return sha256;
+    }
+    String serializedDoctype = docType != null ? docType.serializeDoctype() : null;
+    return DigestUtils.sha256Hex(sha256 + '\n' + serializedDoctype + '\n' + systemID);
+  }
+
+  /**
+   * Returns the rendered equation with the given hash.
+   *
+   * @param xmlHash The hash of the equation XML.
+   * @param format The format of the image.
+   *
+   * @return The rendered equation or <code>null</code> if it was not rendered yet.
+   */
+  public static RenderedEquation get(String xmlHash, ImageFormat format) {
+    return renderedEquations.getIfPresent(getKey(xmlHash, format));
+  }
+
+  /**
+   * Stores a rendered equation.
+   *
+   * @param xmlHash The hash of the equation XML.
+   * @param equation The rendered equation.
+   */
+  public static void put(String xmlHash, RenderedEquation equation) {
+    imageBytes.add(equation.getContent().length);
+    renderedEquations.put(getKey(xmlHash, equation.getFormat()), equation);
+  }
+
+  /**
+   * Returns the hash under which the scaled variant of an equation is cached. The variant with 
+   * the scale 1 uses the hash of the XML.
+   *
+   * @param xmlHash The hash of the equation XML.
+   * @param scale The scale factor.
+   *
+   * @return The hash of the scaled variant.
+   */
+  public static String getScaledHash(String xmlHash, int scale) {
+    return scale == 1 ? xmlHash : xmlHash + '@' + scale + 'x';
+  }
+
+  /**
+   * @param xmlHash The hash of the equation XML.
+   * @param format The format of the image.
+   *
+   * @return The key of the rendered equation in the cache.
+   */
+  private static String getKey(String xmlHash, ImageFormat format) {
+    return xmlHash + '.' + format.getExtension();
+  }
+
+  /**
+   * Returns the dimensions of the equation with the given hash.
+   *
+   * @param xmlHash The hash of the equation XML.
+   *
+   * @return The dimensions or <code>null</code> if the equation was not laid out yet.
+   */
+  public static EquationDimensions getDimensions(String xmlHash) {
+    return equationDimensions.getIfPresent(xmlHash);
+  }
+
+  /**
+   * Stores the dimensions of a laid out equation.
+   *
+   * @param xmlHash The hash of the equation XML.
+   * @param dimensions The dimensions.
+   */
+  public static void putDimensions(String xmlHash, EquationDimensions dimensions) {
+    equationDimensions.put(xmlHash, dimensions);
+  }
+
+  /**
+   * Removes the rendered images and the dimensions of an equation.
+   *
+   * @param xmlHash The hash of the equation XML.
+   */
+  public static void invalidate(String xmlHash) {
+    for (ImageFormat format : ImageFormat.values()) {
+      renderedEquations.invalidate(getKey(xmlHash, format));
+    }
+    for (int scale = 2; scale <= JEuclidRenderer.MAX_SCALE; scale++) {
+      renderedEquations.invalidate(getKey(getScaledHash(xmlHash, scale), ImageFormat.PNG));
+    }
+    equationDimensions.invalidate(xmlHash);
+  }
+
+  /**
+   * Removes the dimensions of an equation. Its rendered images are evicted by the byte bound
+   * of the cache.
+   *
+   * @param xmlHash The hash of the equation XML.
+   */
+  static void invalidateDimensions(String xmlHash) {
+    equationDimensions.invalidate(xmlHash);
+  }
+
+  /**
+   * @return The number of rendered equations in the cache.
+   */
+  static long getImageCount() {
+    return renderedEquations.size();
+  }
+
+  /**
+   * @return The number of bytes of the encoded images in the cache.
+   */
+  static long getImageBytes() {
+    return imageBytes.sum();
+  }
+
+  /**
+   * @return The number of equation dimensions in the cache.
+   */
+  static long getDimensionsCount() {
+    return equationDimensions.size();
+  }
+
+  /**
+   * Removes all the rendered equations and dimensions.
+   */
+  static void clear() {
+    renderedEquations.invalidateAll();
+    equationDimensions.invalidateAll();
+  }
+}
@@ -0,0 +1,81 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import com.oxygenxml.sdksamples.mathml.MathMLMetrics.Counter;
+
+/**
+ * Coalesces the concurrent executions of the same work: the first caller for a key does the
+ * work, while the callers that arrive before it finishes wait for it and share its result.
+ *
+ * The key is released when the work finishes, so the callers that arrive later do the work
+ * again. The work should look for the result cached by the previous executions.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the results.
+ *
+ * @author agent
+ */
+final class SingleFlight<K, V> {
+
+  /**
+   * The works in progress, by key.
+   */
+  private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * The counter incremented for each caller that shares the result of another caller.
+   */
+  private final Counter coalescedCounter;
+
+  /**
+   * Constructor.
+   *
+   * @param coalescedCounter The counter incremented for each caller that shares the result
+   * of another caller.
+   */
+  SingleFlight(Counter coalescedCounter) {
+    this.coalescedCounter = coalescedCounter;
+  }
+
+  /**
+   * Does the work, or waits for the same work started by another caller.
+   *
+   * @param key The key of the work.
+   * @param work The work.
+   *
+   * @return The result of the work.
+   *
+   * @throws ExecutionException If the work failed, wrapping its failure.
+   * @throws InterruptedException If the thread was interrupted while waiting for another caller.
+   */
+  V execute(K key, Callable<V> work) throws ExecutionException, InterruptedException {
+    CompletableFuture<V> flight = new CompletableFuture<>();
+    CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+    if (existing != null) {
+      MathMLMetrics.increment(coalescedCounter);
+      return existing.get();
+    }
+    try {
+      V result = work.call();
+      flight.complete(result);
+      return result;
+    } catch (Exception | Error e) {
+      flight.completeExceptionally(e);
+      throw new ExecutionException(e);
+    } finally {
+      inFlight.remove(key, flight);
+    }
+  }
+
+  /**
+   * @return The number of works in progress.
+   */
+  int getInFlightCount() {
+    return inFlight.size();
+  }
+}
@@ -1,14 +1,15 @@
 package com.oxygenxml.sdksamples.mathml;
 
-import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.Writer;
 
-import org.apache.commons.codec.digest.DigestUtils;
+import com.oxygenxml.sdksamples.mathml.MathMLMetrics.Counter;
 
 import lombok.extern.slf4j.Slf4j;
 import ro.sync.ecss.extensions.api.AuthorAccess;
+import ro.sync.ecss.extensions.api.AuthorDocumentController;
+import ro.sync.ecss.extensions.api.AuthorDocumentType;
 import ro.sync.ecss.extensions.api.access.EditingSessionContext;
 import ro.sync.ecss.extensions.api.editor.AuthorInplaceContext;
 import ro.sync.ecss.extensions.api.node.AuthorElement;
@@ -24,6 +25,17 @@ import ro.sync.exml.workspace.api.util.PrettyPrintException;
 @Slf4j
 public class WebappMathMLRenderer extends WebappFormControlRenderer {
   
+  /**
+   * Transparent 1x1 GIF, displayed until the sprite is set as background.
+   */
+  private static final String TRANSPARENT_PIXEL = 
+      "data:image/gif;base64,R0lGODlhAQABAIAAAAAAAP///yH5BAEAAAAALAAAAAABAAEAAAIBRAA7";
+  
+  /**
+   * The alternate text of the equations whose source is loaded when they are edited.
+   */
+  static final String LAZY_SOURCE_ALT = "MathML equation";
+  
   /**
    * Render control.
    * 
@@ -38,6 +50,23 @@ public class WebappMathMLRenderer extends WebappFormControlRenderer {
   @Override
   public void renderControl(AuthorInplaceContext context, Writer out)
       throws IOException {
+    long startTime = System.nanoTime();
+    try {
+      renderEquation(context, out);
+    } finally {
+      MathMLMetrics.RENDER_CONTROL.recordSince(startTime);
+    }
+  }
+
+  /**
+   * Renders the form control of an equation.
+   * 
+   * @param context The context of the MathML form control.
+   * @param out The output stream.
+   * 
+   * @throws IOException If the form control could not be rendered.
+   */
+  private void renderEquation(AuthorInplaceContext context, Writer out) throws IOException {
     AuthorElement mathMlElement = context.getElem();
     AuthorAccess authorAccess = context.getAuthorAccess();
     EditingSessionContextManager.ensureInitialized(authorAccess);
@@ -48,23 +77,65 @@ public class WebappMathMLRenderer extends WebappFormControlRenderer {
 
     try {
       long elemId = equationCache.freezeMathMLfrag(mathMlElement);
-      String xml = equationCache.getXmlFragment(elemId);
-      
-      String xmlHash = DigestUtils.sha256Hex(xml);
+      // The fragment keeps what is derived from its XML, so the unchanged equations are not 
+      // decoded, hashed and pretty-printed again.
+      FrozenFragment fragment = equationCache.getFrozenFragment(elemId);
       
-      String systemID = authorAccess.getDocumentController().getAuthorDocumentNode().getSystemID();
-      String xmlPPed = this.formatAndIndentXmlFragment(xml, systemID);
+      AuthorDocumentController documentController = authorAccess.getDocumentController();
+      String systemID = documentController.getAuthorDocumentNode().getSystemID();
+      AuthorDocumentType docType = documentController.getDoctype();
+      String xmlHash = fragment.getXmlHash(systemID, docType);
       
-      // Create the PNG image, and then set its name as the hash of xmlPPed.
-      BufferedImage image = new JEuclidRenderer().convertToImage(authorAccess, xml);
+      // Only lay out the equation here, the image is rendered when the browser requests it.
+      ImageFormat format = MathMLPluginOptions.getImageFormat();
+      EquationDimensions dimensions = RenderedEquationCache.getDimensions(xmlHash);
+      if (dimensions != null) {
+        MathMLMetrics.increment(Counter.DIMENSIONS_CACHE_HITS);
+      } else {
+        dimensions = new JEuclidRenderer().getDimensionsWithinBudget(
+            fragment.getXml(), xmlHash, format, systemID, docType);
+      }
+      if (dimensions != null && MathMLPluginOptions.isPrerenderEnabled()) {
+        // Start rendering the image while the page travels to the browser.
+        EquationPrerenderer.prerender(fragment, xmlHash, format, systemID, docType);
+      }
 
+      String escapedXML;
+      String sourceUrl = null;
+      if (MathMLPluginOptions.isLazySourceEnabled()) {
+        // The client loads the source when the equation is edited.
+        escapedXML = LAZY_SOURCE_ALT;
+        sourceUrl = getSourceUrl(docId, elemId);
+      } else {
+        escapedXML = getEscapedSource(fragment, systemID);
+      }
+      
+      // Any server can serve the equations encoded in the URL. The long ones, and the ones that 
+      // need the DTD of the document, are served through the session.
+      String statelessToken = MathMLPluginOptions.isStatelessUrlsEnabled() 
+          ? EquationUrlCodec.encode(fragment) : null;
+      
       // The value of the 'src' attribute is the path of the MathML SERVLET to
       // retrieve the image from server.
-      String escapedXML = PluginWorkspaceProvider.getPluginWorkspace().
-                              getXMLUtilAccess().escapeAttributeValue(xmlPPed);
-      
-      out.append(generateImgHtml(image, docId, elemId, xmlHash, escapedXML, context.isReadOnlyContext()));
+      if (dimensions == null) {
+        // The equation is too complex, it is laid out in the background.
+        String imageUrl = getImageUrl(docId, elemId, xmlHash, statelessToken, format, 1);
+        out.append(generatePendingImgHtml(imageUrl, escapedXML, sourceUrl, context.isReadOnlyContext()));
+      } else if (MathMLPluginOptions.isSpritesEnabled() && statelessToken == null) {
+        // The client loads the equations in batches, from a sprite image.
+        String imageUrl = getImageUrl(docId, elemId, xmlHash, ImageFormat.PNG);
+        out.append(generateSpriteImgHtml(dimensions.getWidth(), dimensions.getHeight(), docId, elemId, 
+            imageUrl, escapedXML, sourceUrl, context.isReadOnlyContext()));
+      } else {
+        String imageUrl = getImageUrl(docId, elemId, xmlHash, statelessToken, format, 1);
+        // High-DPI displays request the PNG image rendered at twice the size.
+        String hiDpiImageUrl = format == ImageFormat.PNG 
+            ? getImageUrl(docId, elemId, xmlHash, statelessToken, format, 2) : null;
+        out.append(generateImgHtml(dimensions.getWidth(), dimensions.getHeight(), imageUrl, hiDpiImageUrl, 
+            escapedXML, sourceUrl, context.isReadOnlyContext()));
+      }
     } catch (Exception e) {
+      MathMLMetrics.increment(Counter.ERRORS);
       log.error(e.getMessage(), e);
       out.append("<span style=\"color: red\">Error rendering MathML</span>");
     }
@@ -81,25 +152,174 @@ public class WebappMathMLRenderer extends WebappFormControlRenderer {
   /**
    * Generates the HTML image which will display the rendered MathML.
    * 
-   * @param image The buffered image which will be displayed.
-   * @param docId The ID of the document.
-   * @param elemId The ID of the XML element that represents the equation.
-   * @param xmlHash The name of the image.
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @param imageUrl The URL of the image.
    * @param escapedXML The math-ml xml content.
    * @param readOnly <code>true</code> if the equation is rendered in a read-only part of the document.
    * @return The HTML of the image which will be rendered in Web Author.
    */
-  String generateImgHtml(BufferedImage image, String docId, long elemId, String xmlHash, String escapedXML, boolean readOnly) {
+  String generateImgHtml(int width, int height, String imageUrl, String escapedXML, boolean readOnly) {
+    return generateImgHtml(width, height, imageUrl, null, escapedXML, null, readOnly);
+  }
+
+  /**
+   * Generates the HTML image which will display the rendered MathML.
+   * 
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @param imageUrl The URL of the image.
+   * @param hiDpiImageUrl The URL of the image at twice the size, <code>null</code> if the image scales.
+   * @param escapedXML The math-ml xml content, or a short text if the source is loaded on demand.
+   * @param sourceUrl The URL of the source of the equation, <code>null</code> if it is in the alternate text.
+   * @param readOnly <code>true</code> if the equation is rendered in a read-only part of the document.
+   * @return The HTML of the image which will be rendered in Web Author.
+   */
+  String generateImgHtml(int width, int height, String imageUrl, String hiDpiImageUrl, String escapedXML, 
+      String sourceUrl, boolean readOnly) {
     // Setting image width and height to reduce the impact on the page layout of math-ml.
-    return "<img width=\"" + image.getWidth() + "\" height=\"" + image.getHeight() + 
-        "\" class=\"mathml-image\" src=\"../plugins-dispatcher/mathml?"
-        + "xmlHash=" + xmlHash + ".png&"
-        + "elemId=" + elemId + "&"
-        + "docId=" + docId + "\""
+    return "<img width=\"" + width + "\" height=\"" + height + 
+        "\" class=\"mathml-image\" src=\"" + imageUrl + "\""
+        + (hiDpiImageUrl != null ? " srcset=\"" + imageUrl + " 1x, " + hiDpiImageUrl + " 2x\"" : "")
+        + (sourceUrl != null ? " data-source-url=\"" + sourceUrl + "\"" : "")
+        + (readOnly ? " data-ro=\"true\"" : "")
+        + " alt=\"" + escapedXML + "\"></img>";
+  }
+  
+  /**
+   * Generates the HTML image for an equation that is laid out in the background. The image has 
+   * no size, it takes the size of the equation when the client loads it.
+   * 
+   * @param imageUrl The URL of the image.
+   * @param escapedXML The math-ml xml content, or a short text if the source is loaded on demand.
+   * @param sourceUrl The URL of the source of the equation, <code>null</code> if it is in the alternate text.
+   * @param readOnly <code>true</code> if the equation is rendered in a read-only part of the document.
+   * @return The HTML of the image which will be rendered in Web Author.
+   */
+  String generatePendingImgHtml(String imageUrl, String escapedXML, String sourceUrl, boolean readOnly) {
+    return "<img class=\"mathml-image mathml-pending\" src=\"" + imageUrl + "\""
+        + (sourceUrl != null ? " data-source-url=\"" + sourceUrl + "\"" : "")
         + (readOnly ? " data-ro=\"true\"" : "")
         + " alt=\"" + escapedXML + "\"></img>";
   }
   
+  /**
+   * Generates the HTML image for an equation displayed from a sprite image. The image 
+   * is transparent and the client sets the sprite as its background.
+   * 
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @param docId The ID of the document.
+   * @param elemId The ID of the XML element that represents the equation.
+   * @param imageUrl The URL of the individual image, used if the sprite cannot be loaded.
+   * @param escapedXML The math-ml xml content, or a short text if the source is loaded on demand.
+   * @param sourceUrl The URL of the source of the equation, <code>null</code> if it is in the alternate text.
+   * @param readOnly <code>true</code> if the equation is rendered in a read-only part of the document.
+   * @return The HTML of the image which will be rendered in Web Author.
+   */
+  String generateSpriteImgHtml(int width, int height, String docId, long elemId, String imageUrl, 
+      String escapedXML, String sourceUrl, boolean readOnly) {
+    return "<img width=\"" + width + "\" height=\"" + height + 
+        "\" class=\"mathml-image mathml-sprite\" src=\"" + TRANSPARENT_PIXEL + "\""
+        + " data-src=\"" + imageUrl + "\""
+        + " data-doc-id=\"" + docId + "\""
+        + " data-elem-id=\"" + elemId + "\""
+        + (sourceUrl != null ? " data-source-url=\"" + sourceUrl + "\"" : "")
+        + (readOnly ? " data-ro=\"true\"" : "")
+        + " alt=\"" + escapedXML + "\"></img>";
+  }
+  
+  /**
+   * Returns the URL of the MathML SERVLET from which the image is retrieved.
+   * 
+   * @param docId The ID of the document.
+   * @param elemId The ID of the XML element that represents the equation.
+   * @param xmlHash The name of the image.
+   * @param format The format of the image.
+   * @return The URL of the image.
+   */
+  String getImageUrl(String docId, long elemId, String xmlHash, ImageFormat format) {
+    return getImageUrl(docId, elemId, xmlHash, format, 1);
+  }
+  
+  /**
+   * Returns the URL of the MathML SERVLET from which the scaled image is retrieved.
+   * 
+   * @param docId The ID of the document.
+   * @param elemId The ID of the XML element that represents the equation.
+   * @param xmlHash The name of the image.
+   * @param format The format of the image.
+   * @param scale The scale factor of the image.
+   * @return The URL of the image.
+   */
+  String getImageUrl(String docId, long elemId, String xmlHash, ImageFormat format, int scale) {
+    return "../plugins-dispatcher/mathml?"
+        + "xmlHash=" + xmlHash + "." + format.getExtension() + "&"
+        + "elemId=" + elemId + "&"
+        + "docId=" + docId
+        + (format != ImageFormat.PNG ? "&format=" + format.getExtension() : "")
+        + (scale != 1 ? "&scale=" + scale : "");
+  }
+  
+  /**
+   * Returns the URL of the image of an equation, encoded in the URL if possible.
+   * 
+   * @param docId The ID of the document.
+   * @param elemId The ID of the XML element that represents the equation.
+   * @param xmlHash The name of the image.
+   * @param statelessToken The equation encoded by {@link EquationUrlCodec}, <code>null</code> to 
+   * retrieve the image through the editing session.
+   * @param format The format of the image.
+   * @param scale The scale factor of the image.
+   * @return The URL of the image.
+   */
+  String getImageUrl(String docId, long elemId, String xmlHash, String statelessToken, ImageFormat format, 
+      int scale) {
+    if (statelessToken == null) {
+      return getImageUrl(docId, elemId, xmlHash, format, scale);
+    }
+    return "../plugins-dispatcher/mathml/" + MathmlServlet.STATELESS_SUB_PATH + "?"
+        + "eq=" + statelessToken
+        + (format != ImageFormat.PNG ? "&format=" + format.getExtension() : "")
+        + (scale != 1 ? "&scale=" + scale : "");
+  }
+  
+  /**
+   * Returns the URL of the MathML SERVLET from which the pretty-printed source of the equation 
+   * is retrieved.
+   * 
+   * @param docId The ID of the document.
+   * @param elemId The ID of the XML element that represents the equation.
+   * @return The URL of the source.
+   */
+  String getSourceUrl(String docId, long elemId) {
+    return "../plugins-dispatcher/mathml/" + MathmlServlet.SOURCE_SUB_PATH + "?"
+        + "elemId=" + elemId + "&"
+        + "docId=" + docId;
+  }
+  
+  /**
+   * Returns the pretty-printed source of an equation, escaped for an attribute value. It is 
+   * computed once per shared fragment, unless it depends on the DTD of the document.
+   * 
+   * @param fragment The frozen fragment of the equation.
+   * @param systemID The system Id of the document that the fragment belongs to.
+   * 
+   * @return The escaped source.
+   */
+  private String getEscapedSource(FrozenFragment fragment, String systemID) {
+    String escapedXML = fragment.needsDoctype ? null : fragment.escapedSource;
+    if (escapedXML == null) {
+      String xmlPPed = this.formatAndIndentXmlFragment(fragment.getXml(), systemID);
+      escapedXML = PluginWorkspaceProvider.getPluginWorkspace().
+          getXMLUtilAccess().escapeAttributeValue(xmlPPed);
+      if (!fragment.needsDoctype) {
+        fragment.escapedSource = escapedXML;
+      }
+    }
+    return escapedXML;
+  }
+  
   /**
    * Try to format and indent if possible.
    * 
@@ -112,11 +332,14 @@ public class WebappMathMLRenderer extends WebappFormControlRenderer {
     String formattedContent = "";
     if(xmlContent != null){
       formattedContent = xmlContent;
+      long startTime = System.nanoTime();
       try {
         formattedContent = PluginWorkspaceProvider.getPluginWorkspace().getXMLUtilAccess()
             .prettyPrint(new StringReader(xmlContent), systemID);
       } catch (PrettyPrintException e1) {
          log.debug("Content not in XML format");
+      } finally {
+        MathMLMetrics.PRETTY_PRINT.recordSince(startTime);
       }
     }
     
@@ -0,0 +1,65 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for the estimate of the complexity of the equations.
+ *
+ * @author agent
+ */
+public class EquationComplexityTest {
+
+  /**
+   * <p><b>Description:</b> Tests that the elements, the nesting depth and the table cells are counted, 
+   * while the comments and the CDATA sections are skipped.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testEstimate() throws Exception {
+    EquationComplexity complexity = EquationComplexity.of(
+        "<m:math xmlns:m=\"http://www.w3.org/1998/Math/MathML\"><m:mtable>"
+        + "<m:mtr><m:mtd><m:mn>1</m:mn></m:mtd><m:mtd><m:mspace width=\"1em\"/></m:mtd></m:mtr>"
+        + "<!-- <m:mtd> --><m:mtr><m:mtd><m:mi><![CDATA[<m:mtd>]]></m:mi></m:mtd></m:mtr>"
+        + "</m:mtable></m:math>");
+    assertEquals(10, complexity.getNodes());
+    assertEquals(5, complexity.getDepth());
+    assertEquals(3, complexity.getTableCells());
+    assertFalse(complexity.isExpensive());
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that deeply nested equations are considered too complex 
+   * to be rendered on a request thread.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testDeepNestingIsExpensive() throws Exception {
+    String xml = nestedFractions(MathMLPluginOptions.getComplexityMaxDepth());
+    EquationComplexity complexity = EquationComplexity.of(xml);
+    assertEquals(MathMLPluginOptions.getComplexityMaxDepth() + 3, complexity.getDepth());
+    assertTrue(complexity.isExpensive());
+  }
+
+  /**
+   * @param count The number of fractions.
+   *
+   * @return An equation with the given number of nested fractions.
+   */
+  static String nestedFractions(int count) {
+    StringBuilder xml = new StringBuilder("<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><mrow>");
+    for (int i = 0; i < count; i++) {
+      xml.append("<mfrac><mn>1</mn>");
+    }
+    xml.append("<mi>x</mi>");
+    for (int i = 0; i < count; i++) {
+      xml.append("</mfrac>");
+    }
+    return xml.append("</mrow></math>").toString();
+  }
+}
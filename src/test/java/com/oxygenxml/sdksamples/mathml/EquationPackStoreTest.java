@@ -0,0 +1,138 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the on-disk equation store.
+ *
+ * @author agent
+ */
+public class EquationPackStoreTest {
+
+  /**
+   * The folder of the store.
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * <p><b>Description:</b> Tests that the stored equations are found after the store is reopened.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testPersistence() throws Exception {
+    File directory = folder.newFolder("store");
+    byte[] content = new byte[] {1, 2, 3, 4, 5};
+
+    EquationPackStore store = new EquationPackStore(directory, 16, 1 << 20, "1");
+    try {
+      assertNull(store.get("hash", ImageFormat.PNG));
+      store.put("hash", new RenderedEquation(content, ImageFormat.PNG, false, 10, 20));
+      // Storing the same equation twice is a no-op.
+      store.put("hash", new RenderedEquation(content, ImageFormat.PNG, false, 10, 20));
+      assertEquals(1, store.getCount());
+      assertNull(store.get("hash", ImageFormat.SVG));
+    } finally {
+      store.close();
+    }
+
+    store = new EquationPackStore(directory, 16, 1 << 20, "1");
+    try {
+      EquationPackStore.StoredEquation stored = store.get("hash", ImageFormat.PNG);
+      assertNotNull(stored);
+      assertEquals(content.length, stored.getLength());
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      stored.writeTo(out);
+      assertArrayEquals(content, out.toByteArray());
+
+      RenderedEquation equation = stored.toRenderedEquation();
+      assertEquals(10, equation.getWidth());
+      assertEquals(20, equation.getHeight());
+      assertTrue(!equation.isGzipped());
+    } finally {
+      store.close();
+    }
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that the equations rendered by another renderer version are 
+   * discarded when the store is opened.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testStaleEquationsAreDiscarded() throws Exception {
+    File directory = folder.newFolder("store");
+    RenderedEquation equation = new RenderedEquation(new byte[] {1, 2, 3}, ImageFormat.PNG, false, 10, 20);
+
+    EquationPackStore store = new EquationPackStore(directory, 16, 1 << 20, "1");
+    try {
+      store.put("hash", equation);
+    } finally {
+      store.close();
+    }
+
+    store = new EquationPackStore(directory, 16, 1 << 20, "2");
+    try {
+      assertEquals(0, store.getCount());
+      assertNull(store.get("hash", ImageFormat.PNG));
+      store.put("hash", equation);
+    } finally {
+      store.close();
+    }
+
+    store = new EquationPackStore(directory, 16, 1 << 20, "2");
+    try {
+      assertEquals(1, store.getCount());
+      assertNotNull(store.get("hash", ImageFormat.PNG));
+    } finally {
+      store.close();
+    }
+
+    store = new EquationPackStore(directory, 16, 1 << 20, "2");
+    try {
+      // The images of another format are stored along.
+      store.put("hash", new RenderedEquation(new byte[] {4, 5}, ImageFormat.SVG, false, 10, 20));
+      assertEquals(2, store.getCount());
+      assertEquals(3, store.get("hash", ImageFormat.PNG).getLength());
+      assertEquals(2, store.get("hash", ImageFormat.SVG).getLength());
+    } finally {
+      store.close();
+    }
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that the pack file does not grow beyond its maximum size and 
+   * that the equations that do not fit are not stored.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testMaxPackSize() throws Exception {
+    File directory = folder.newFolder("store");
+    EquationPackStore store = new EquationPackStore(directory, 16, 1000, "1");
+    try {
+      store.put("first", new RenderedEquation(new byte[600], ImageFormat.PNG, false, 10, 20));
+      store.put("second", new RenderedEquation(new byte[600], ImageFormat.PNG, false, 10, 20));
+      assertEquals(1, store.getCount());
+      assertNotNull(store.get("first", ImageFormat.PNG));
+      assertNull(store.get("second", ImageFormat.PNG));
+    } finally {
+      store.close();
+    }
+    assertTrue(new File(directory, EquationPackStore.PACK_FILE_NAME).length() <= 1000);
+  }
+}
@@ -0,0 +1,98 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for the equations encoded in the image URLs.
+ *
+ * @author agent
+ */
+public class EquationUrlCodecTest {
+
+  /**
+   * An equation.
+   */
+  private static final String EQUATION = "<mml:math xmlns:mml=\"http://www.w3.org/1998/Math/MathML\">"
+      + "<mml:msup><mml:mi>e</mml:mi><mml:mrow><mml:mi>i</mml:mi><mml:mi>\u03c0</mml:mi></mml:mrow></mml:msup>"
+      + "<mml:mo>+</mml:mo><mml:mn>1</mml:mn><mml:mo>=</mml:mo><mml:mn>0</mml:mn></mml:math>";
+
+  /**
+   * <p><b>Description:</b> Tests that an equation is decoded from its URL token, which is 
+   * shorter than the equation and safe in URLs.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testRoundTrip() throws Exception {
+    String token = EquationUrlCodec.encode(EQUATION);
+    assertNotNull(token);
+    assertTrue(token.length() < EQUATION.length());
+    assertTrue(token, token.matches("[A-Za-z0-9_\\-]+\\.[A-Za-z0-9_\\-]+"));
+    assertEquals(EQUATION, EquationUrlCodec.decode(token));
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that the tokens that were not signed by the server are rejected.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testTamperedTokensAreRejected() throws Exception {
+    String token = EquationUrlCodec.encode(EQUATION);
+    String forgedToken = EquationUrlCodec.encode("<math><mi>y</mi></math>");
+    int separator = token.indexOf('.');
+    // The payload of an equation with the signature of another.
+    assertNull(EquationUrlCodec.decode(token.substring(0, separator) 
+        + forgedToken.substring(forgedToken.indexOf('.'))));
+    // A modified payload.
+    char changed = token.charAt(0) == 'A' ? 'B' : 'A';
+    assertNull(EquationUrlCodec.decode(changed + token.substring(1)));
+    
+    assertNull(EquationUrlCodec.decode(null));
+    assertNull(EquationUrlCodec.decode("no-signature"));
+    assertNull(EquationUrlCodec.decode("not base64!.x"));
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that the equations too long to be encoded in a URL are not encoded.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testLongEquationsAreNotEncoded() throws Exception {
+    Random random = new Random(1);
+    StringBuilder xml = new StringBuilder("<math><mn>");
+    for (int i = 0; i < 10000; i++) {
+      xml.append(random.nextInt(10));
+    }
+    xml.append("</mn></math>");
+    assertNull(EquationUrlCodec.encode(xml.toString()));
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that a frozen equation is encoded once and that the equations 
+   * that use the entities declared by the DTD of their document are not encoded.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testFrozenEquations() throws Exception {
+    FrozenFragment fragment = FrozenFragment.of(EQUATION);
+    String token = EquationUrlCodec.encode(fragment);
+    assertNotNull(token);
+    assertSame(token, EquationUrlCodec.encode(fragment));
+    assertEquals(EQUATION, EquationUrlCodec.decode(token));
+    
+    FrozenFragment doctypeFragment = FrozenFragment.of(
+        "<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><mi>&myEntity;</mi></math>");
+    assertNull(EquationUrlCodec.encode(doctypeFragment));
+  }
+}
@@ -1,15 +1,39 @@
 package com.oxygenxml.sdksamples.mathml;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.xerces.parsers.DOMParser;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import com.oxygenxml.sdksamples.mathml.MathMLMetrics.Counter;
+
+import ro.sync.ecss.extensions.api.AuthorDocumentType;
 import ro.sync.xml.parser.ParserCreator;
 
 public class JEuclidRendererTest {
@@ -21,21 +45,292 @@ public class JEuclidRendererTest {
    */
   @Test
   public void testAddNamespaceMapping() throws Exception {
-    JEuclidRenderer renderer = new JEuclidRenderer();
-    
-    String xmlWithNamespace = renderer.addMathmlNamespacePrefixMapping("<ggg:math/>", "ggg");
-    assertTrue(renderer.hasNamespacePrefixDeclaration(xmlWithNamespace));
+    String xmlWithNamespace = MathMLPreprocessor.preprocess("<ggg:math/>").getXml();
+    assertTrue(xmlWithNamespace.contains(MathMLPreprocessor.MATHML_NS));
     assertWellformed(xmlWithNamespace);
     
-    xmlWithNamespace = renderer.addMathmlNamespacePrefixMapping("<ggg:math />", "ggg");
-    assertTrue(renderer.hasNamespacePrefixDeclaration(xmlWithNamespace));
+    xmlWithNamespace = MathMLPreprocessor.preprocess("<ggg:math />").getXml();
+    assertTrue(xmlWithNamespace.contains(MathMLPreprocessor.MATHML_NS));
     assertWellformed(xmlWithNamespace);
     
-    xmlWithNamespace = renderer.addMathmlNamespacePrefixMapping("<ggg:math></ggg:math>", "ggg");
-    assertTrue(renderer.hasNamespacePrefixDeclaration(xmlWithNamespace));
+    xmlWithNamespace = MathMLPreprocessor.preprocess("<ggg:math></ggg:math>").getXml();
+    assertTrue(xmlWithNamespace.contains(MathMLPreprocessor.MATHML_NS));
     assertWellformed(xmlWithNamespace);
   }
   
+  /**
+   * Fragments used to compare the pooled and non-pooled parsing.
+   */
+  private static final String[] FRAGMENTS = new String[] {
+    "<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><mi>x</mi><mo>=</mo><mn>2</mn></math>",
+    "<mml:math><mml:msup><mml:mi>e</mml:mi><mml:mrow><mml:mi>i</mml:mi><mml:mi>&#x3C0;</mml:mi></mml:mrow></mml:msup></mml:math>",
+    "<m:math xmlns:m=\"http://www.w3.org/1998/Math/MathML\"><m:mfrac><m:mn>1</m:mn><m:mn>2</m:mn></m:mfrac></m:math>",
+    "<math xmlns=\"http://www.w3.org/1998/Math/MathML\" display=\"block\"><mtable><mtr><mtd><mn>1</mn></mtd>"
+        + "<mtd><mn>0</mn></mtd></mtr><mtr><mtd><mn>0</mn></mtd><mtd><mn>1</mn></mtd></mtr></mtable></math>",
+  };
+
+  /**
+   * Tests that the documents parsed with pooled parsers are identical to the ones parsed 
+   * with fresh parsers, including when the parsers are reused by many threads.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testPooledParsingIsIdentical() throws Exception {
+    JEuclidRenderer unpooledRenderer = new JEuclidRenderer(null);
+    DOMParserPool pool = new DOMParserPool(2);
+    JEuclidRenderer pooledRenderer = new JEuclidRenderer(pool);
+    
+    Document[] expected = new Document[FRAGMENTS.length];
+    for (int i = 0; i < FRAGMENTS.length; i++) {
+      expected[i] = unpooledRenderer.loadXMLFromString(FRAGMENTS[i], null, null);
+    }
+    
+    // Parse the same fragments several times, so that the parsers are reused.
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < FRAGMENTS.length; i++) {
+        Document actual = pooledRenderer.loadXMLFromString(FRAGMENTS[i], null, null);
+        assertTrue(FRAGMENTS[i], expected[i].isEqualNode(actual));
+      }
+    }
+    assertEquals(1, pool.getIdleCount());
+    
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        int fragmentIndex = i % FRAGMENTS.length;
+        results.add(executor.submit(() -> expected[fragmentIndex].isEqualNode(
+            pooledRenderer.loadXMLFromString(FRAGMENTS[fragmentIndex], null, null))));
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertTrue(pool.getIdleCount() <= 2);
+  }
+  
+  /**
+   * Tests that a parser that failed is not given back to the pool.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testFailedParserIsDiscarded() throws Exception {
+    DOMParserPool pool = new DOMParserPool(2);
+    JEuclidRenderer pooledRenderer = new JEuclidRenderer(pool);
+    try {
+      pooledRenderer.loadXMLFromString("<math><mi>x</math>", null, null);
+      fail("The fragment is not well-formed");
+    } catch (SAXException e) {
+      // Expected.
+    }
+    assertEquals(0, pool.getIdleCount());
+  }
+  
+  /**
+   * Tests that the named entities known by the built-in table are expanded without a DTD.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testExpandNamedEntities() throws Exception {
+    assertEquals("<mi>\u03b1</mi><mo>\u2062</mo><mi>&amp;</mi>", 
+        MathMLPreprocessor.preprocess("<mi>&alpha;</mi><mo>&InvisibleTimes;</mo><mi>&amp;</mi>").getXml());
+    // Entities inside comments and CDATA sections are not expanded.
+    assertEquals("<!-- &alpha; --><mi><![CDATA[&beta;]]></mi>&#x3B1;", 
+        MathMLPreprocessor.preprocess("<!-- &alpha; --><mi><![CDATA[&beta;]]></mi>&#x3B1;").getXml());
+    // Unknown entities require the DTD.
+    assertTrue(MathMLPreprocessor.preprocess("<mi>&alpha;</mi><mi>&myCustomEntity;</mi>").needsDoctype());
+    
+    Document doc = new JEuclidRenderer().loadXMLFromString(
+        "<mml:math><mml:mi>&alpha;</mml:mi><mml:mo>&le;</mml:mo><mml:mi>&beta;</mml:mi></mml:math>", null, null);
+    assertNull(doc.getDoctype());
+    assertEquals("http://www.w3.org/1998/Math/MathML", doc.getDocumentElement().getNamespaceURI());
+    assertEquals("\u03b1\u2264\u03b2", doc.getDocumentElement().getTextContent());
+  }
+  
+  /**
+   * The folder of the DTDs.
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  
+  /**
+   * Tests that the DTD of the document is compiled once for all the equations that need it 
+   * and that the custom entities it declares are still resolved from the cached grammar.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testDoctypeGrammarIsReused() throws Exception {
+    File dtd = folder.newFile("entities.dtd");
+    Files.write(dtd.toPath(), "<!ENTITY myEntity \"&#x2211;\">".getBytes(StandardCharsets.UTF_8));
+    String systemID = new File(folder.getRoot(), "doc.xml").toURI().toString();
+    AuthorDocumentType docType = Mockito.mock(AuthorDocumentType.class);
+    Mockito.when(docType.serializeDoctype()).thenReturn("<!DOCTYPE math SYSTEM \"entities.dtd\">\n");
+    JEuclidRenderer renderer = new JEuclidRenderer(new DOMParserPool(2));
+    
+    long hitsBefore = DoctypeGrammarPool.getHitCount();
+    long missesBefore = DoctypeGrammarPool.getMissCount();
+    Document first = renderer.loadXMLFromString(
+        "<mml:math><mml:mi>&myEntity;</mml:mi></mml:math>", systemID, docType);
+    assertEquals(1, DoctypeGrammarPool.getMissCount() - missesBefore);
+    assertEquals(0, DoctypeGrammarPool.getHitCount() - hitsBefore);
+    assertEquals("\u2211", first.getDocumentElement().getTextContent());
+    
+    Document second = renderer.loadXMLFromString(
+        "<mml:math><mml:mi>&myEntity;</mml:mi><mml:mo>&myEntity;</mml:mo></mml:math>", systemID, docType);
+    assertEquals(1, DoctypeGrammarPool.getMissCount() - missesBefore);
+    assertEquals(1, DoctypeGrammarPool.getHitCount() - hitsBefore);
+    assertEquals("\u2211\u2211", second.getDocumentElement().getTextContent());
+  }
+  
+  /**
+   * Tests that the grammar of a doctype with an internal subset is not cached, since the 
+   * declarations of the internal subset would be added to the shared grammar.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testInternalSubsetIsNotCached() throws Exception {
+    File dtd = folder.newFile("entities.dtd");
+    Files.write(dtd.toPath(), "<!ENTITY myEntity \"&#x2211;\">".getBytes(StandardCharsets.UTF_8));
+    String systemID = new File(folder.getRoot(), "doc.xml").toURI().toString();
+    AuthorDocumentType docType = Mockito.mock(AuthorDocumentType.class);
+    Mockito.when(docType.serializeDoctype()).thenReturn(
+        "<!DOCTYPE math SYSTEM \"entities.dtd\" [<!ENTITY local \"&#x3C0;\">]>\n");
+    JEuclidRenderer renderer = new JEuclidRenderer(new DOMParserPool(2));
+    
+    long hitsBefore = DoctypeGrammarPool.getHitCount();
+    long missesBefore = DoctypeGrammarPool.getMissCount();
+    for (int i = 0; i < 2; i++) {
+      Document doc = renderer.loadXMLFromString(
+          "<mml:math><mml:mi>&myEntity;</mml:mi><mml:mi>&local;</mml:mi></mml:math>", systemID, docType);
+      assertEquals("\u2211\u03c0", doc.getDocumentElement().getTextContent());
+    }
+    assertEquals(0, DoctypeGrammarPool.getMissCount() - missesBefore);
+    assertEquals(0, DoctypeGrammarPool.getHitCount() - hitsBefore);
+  }
+  
+  /**
+   * Tests that the request does not wait for an equation that is too complex, which is 
+   * rendered in the background instead.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testComplexEquationIsDeferred() throws Exception {
+    String xml = EquationComplexityTest.nestedFractions(MathMLPluginOptions.getComplexityMaxDepth());
+    String xmlHash = DigestUtils.sha256Hex(xml);
+    assertNull(new JEuclidRenderer().renderWithinBudget(xml, xmlHash, ImageFormat.PNG, 1, null, null));
+    
+    long deadline = System.currentTimeMillis() + 30000;
+    while (RenderedEquationCache.get(xmlHash, ImageFormat.PNG) == null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertNotNull(RenderedEquationCache.get(xmlHash, ImageFormat.PNG));
+  }
+  
+  /**
+   * Tests that the renders that do not fit in the queue of the render executor are rejected, 
+   * instead of waiting on the threads that serve the requests.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testRendersAreShedWhenOverloaded() throws Exception {
+    CountDownLatch released = new CountDownLatch(1);
+    int capacity = MathMLPluginOptions.getRenderThreads() + MathMLPluginOptions.getRenderQueueCapacity();
+    List<Future<?>> renders = new ArrayList<>();
+    try {
+      for (int i = 0; i <= capacity; i++) {
+        renders.add(JEuclidRenderer.submitRender("blocked-" + i, () -> {
+          released.await();
+          return null;
+        }));
+      }
+      fail("The render executor should be saturated");
+    } catch (RejectedExecutionException e) {
+      // Expected.
+      assertTrue(renders.size() <= capacity);
+    } finally {
+      released.countDown();
+    }
+    for (Future<?> render : renders) {
+      render.get();
+    }
+    // The executor accepts renders again once the queue is drained.
+    assertNull(JEuclidRenderer.submitRender("unblocked", () -> null).get());
+  }
+  
+  /**
+   * Tests that an equation requested by many threads at the same time is rendered once.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testConcurrentRendersAreCoalesced() throws Exception {
+    String xml = "<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><mi>x</mi><mo>=</mo><mn>" 
+        + System.nanoTime() + "</mn></math>";
+    String xmlHash = DigestUtils.sha256Hex(xml);
+    long renderedBefore = MathMLMetrics.get(Counter.EQUATIONS_RENDERED);
+    
+    int callers = 16;
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(callers);
+    try {
+      List<Future<RenderedEquation>> results = new ArrayList<>();
+      for (int i = 0; i < callers; i++) {
+        results.add(executor.submit(() -> {
+          start.await();
+          return new JEuclidRenderer().renderEquation(xml, xmlHash, ImageFormat.PNG, null, null);
+        }));
+      }
+      start.countDown();
+      RenderedEquation first = results.get(0).get();
+      for (Future<RenderedEquation> result : results) {
+        assertSame(first, result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(1, MathMLMetrics.get(Counter.EQUATIONS_RENDERED) - renderedBefore);
+  }
+  
+  /**
+   * Tests that the equations of a sprite are laid out on the render executor and that the ones 
+   * that are too complex or cannot be parsed are left out.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testSpriteEquationsAreLaidOutWithinBudget() throws Exception {
+    String simple = "<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><mi>y</mi><mn>" 
+        + System.nanoTime() + "</mn></math>";
+    String complex = EquationComplexityTest.nestedFractions(MathMLPluginOptions.getComplexityMaxDepth()) 
+        + "<!-- " + System.nanoTime() + " -->";
+    String malformed = "<math><mi>x</math>";
+    List<String> xmlFragments = Arrays.asList(simple, complex, malformed);
+    List<String> xmlHashes = new ArrayList<>();
+    for (String xml : xmlFragments) {
+      xmlHashes.add(DigestUtils.sha256Hex(xml));
+    }
+    
+    // Load the fonts before the time budget starts.
+    new JEuclidRenderer().measure("<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><mi>x</mi></math>", 
+        null, null);
+    List<EquationDimensions> dimensions = new JEuclidRenderer().getDimensionsWithinBudget(
+        xmlFragments, xmlHashes, null, null);
+    assertEquals(3, dimensions.size());
+    assertNotNull(dimensions.get(0));
+    assertSame(dimensions.get(0), RenderedEquationCache.getDimensions(xmlHashes.get(0)));
+    assertNull(dimensions.get(1));
+    assertNull(dimensions.get(2));
+  }
+  
   /**
    * Asserts that the XML is well formed.
    * 
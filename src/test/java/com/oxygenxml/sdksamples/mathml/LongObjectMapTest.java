@@ -0,0 +1,52 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for the long-keyed map.
+ *
+ * @author agent
+ */
+public class LongObjectMapTest {
+
+  /**
+   * <p><b>Description:</b> Tests the map against a HashMap with random operations.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testRandomOperations() throws Exception {
+    LongObjectMap<String> map = new LongObjectMap<>();
+    Map<Long, String> expected = new HashMap<>();
+    Random random = new Random(13);
+    for (int i = 0; i < 100_000; i++) {
+      // Sequential keys, as the equation IDs, with some of them removed.
+      long key = random.nextInt(2000);
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(key), map.remove(key));
+      } else {
+        String value = "v" + i;
+        assertEquals(expected.put(key, value), map.put(key, value));
+      }
+      assertEquals(expected.size(), map.size());
+    }
+    for (long key = 0; key < 2000; key++) {
+      assertEquals(expected.get(key), map.get(key));
+    }
+
+    map.removeIf(key -> key % 2 == 0, null);
+    expected.keySet().removeIf(key -> key % 2 == 0);
+    assertArrayEquals(expected.keySet().stream().mapToLong(Long::longValue).sorted().toArray(), map.sortedKeys());
+
+    map.removeIf(key -> true, null);
+    assertEquals(0, map.size());
+    assertEquals(null, map.get(1));
+  }
+}
@@ -0,0 +1,74 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import com.oxygenxml.sdksamples.mathml.MathMLMetrics.Counter;
+
+/**
+ * Tests for the runtime metrics.
+ *
+ * @author agent
+ */
+public class MathMLMetricsTest {
+
+  /**
+   * <p><b>Description:</b> Tests the percentiles computed by the latency histogram.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testLatencyHistogram() throws Exception {
+    LatencyHistogram histogram = new LatencyHistogram("test");
+    assertEquals(0, histogram.getP50Micros());
+
+    // 90 operations of 10us and 10 operations of 1000us.
+    for (int i = 0; i < 90; i++) {
+      histogram.record(10_000);
+    }
+    for (int i = 0; i < 10; i++) {
+      histogram.record(1_000_000);
+    }
+
+    assertEquals(100, histogram.getCount());
+    assertEquals(10900, histogram.getTotalMicros());
+    assertEquals(109, histogram.getMeanMicros(), 0.001);
+    assertEquals(1000, histogram.getMaxMicros());
+    assertEquals(16, histogram.getP50Micros());
+    assertEquals(1000, histogram.getP95Micros());
+    assertEquals(1000, histogram.getP99Micros());
+
+    assertEquals(0, LatencyHistogram.getBucket(0));
+    assertEquals(1, LatencyHistogram.getBucket(1));
+    assertEquals(4, LatencyHistogram.getBucket(15));
+    assertEquals(31, LatencyHistogram.getBucket(Long.MAX_VALUE));
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that the metrics are exposed as JSON and through JMX.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testMetricsExposed() throws Exception {
+    long errors = MathMLMetrics.get(Counter.ERRORS);
+    MathMLMetrics.increment(Counter.ERRORS);
+    assertEquals(errors + 1, MathMLMetrics.get(Counter.ERRORS));
+
+    String json = MathMLMetrics.toJson();
+    assertTrue(json, json.startsWith("{\"stages\":{\"parse\":{\"count\":"));
+    assertTrue(json, json.contains("\"errors\":" + (errors + 1)));
+    assertTrue(json, json.contains("\"caches\":{\"documents\":"));
+
+    assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(
+        new ObjectName(MathMLMetrics.JMX_DOMAIN + ":type=Latency,stage=parse")));
+    assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(
+        new ObjectName(MathMLMetrics.JMX_DOMAIN + ":type=Metrics")));
+  }
+}
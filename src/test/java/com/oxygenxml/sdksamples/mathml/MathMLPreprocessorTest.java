@@ -0,0 +1,96 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for the single-pass preparation of the MathML fragments for parsing.
+ *
+ * @author agent
+ */
+public class MathMLPreprocessorTest {
+
+  /**
+   * The declaration of the "m" prefix.
+   */
+  private static final String M_DECLARATION = " xmlns:m=\"http://www.w3.org/1998/Math/MathML\"";
+
+  /**
+   * <p><b>Description:</b> Tests that the fragments that need no changes are not copied.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testUnchangedFragmentIsNotCopied() throws Exception {
+    String[] fragments = {
+        "<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><mi>x</mi></math>",
+        "<m:math" + M_DECLARATION + "><m:mi>&amp;</m:mi><m:mi>&#x3B1;</m:mi></m:math>",
+        "<m:math alttext='x &gt; 0'" + M_DECLARATION + "><m:mi>x</m:mi></m:math>",
+    };
+    for (String fragment : fragments) {
+      MathMLPreprocessor preprocessed = MathMLPreprocessor.preprocess(fragment);
+      assertFalse(preprocessed.needsDoctype());
+      assertSame(fragment, preprocessed.getXml());
+    }
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that the undeclared prefix of the root is declared and
+   * the named entities are expanded in the same pass.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testDeclarePrefixAndExpandEntities() throws Exception {
+    assertEquals("<m:math" + M_DECLARATION + "/>",
+        MathMLPreprocessor.preprocess("<m:math/>").getXml());
+    assertEquals("<m:math" + M_DECLARATION + " display=\"block\"><m:mi>\u03b1</m:mi></m:math>",
+        MathMLPreprocessor.preprocess("<m:math display=\"block\"><m:mi>&alpha;</m:mi></m:math>").getXml());
+    // The entities of the root attributes are expanded before the prefix is declared.
+    assertEquals("<m:math" + M_DECLARATION + " alttext=\"\u03b1 > 0\"><m:mi>\u03b1</m:mi></m:math>",
+        MathMLPreprocessor.preprocess("<m:math alttext=\"&alpha; > 0\"><m:mi>&alpha;</m:mi></m:math>").getXml());
+    // Comments and CDATA sections are copied unchanged.
+    assertEquals("<!-- <x:math> &alpha; --><m:math" + M_DECLARATION + "><m:mi><![CDATA[&beta;]]></m:mi></m:math>",
+        MathMLPreprocessor.preprocess("<!-- <x:math> &alpha; --><m:math><m:mi><![CDATA[&beta;]]></m:mi></m:math>").getXml());
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that the fragments with entities missing from the built-in
+   * table are left for the DTD.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testUnknownEntityNeedsDoctype() throws Exception {
+    String fragment = "<m:math><m:mi>&alpha;</m:mi><m:mi>&myCustomEntity;</m:mi></m:math>";
+    MathMLPreprocessor preprocessed = MathMLPreprocessor.preprocess(fragment);
+    assertTrue(preprocessed.needsDoctype());
+    assertSame(fragment, preprocessed.getXml());
+  }
+
+  /**
+   * <p><b>Description:</b> Tests the result for fragments that use both named entities 
+   * and undeclared prefixes.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testEntitiesAndPrefixes() throws Exception {
+    assertEquals("<math><mi>\u03b1</mi></math>",
+        MathMLPreprocessor.preprocess("<math><mi>&alpha;</mi></math>").getXml());
+    assertEquals("<mml:math xmlns:mml=\"http://www.w3.org/1998/Math/MathML\">"
+        + "<mml:mi>\u03b1</mml:mi><mml:mo>\u2264</mml:mo><mml:mi>\u03b2</mml:mi></mml:math>",
+        MathMLPreprocessor.preprocess(
+            "<mml:math><mml:mi>&alpha;</mml:mi><mml:mo>&le;</mml:mo><mml:mi>&beta;</mml:mi></mml:math>").getXml());
+    assertEquals("<ggg:math xmlns:ggg=\"http://www.w3.org/1998/Math/MathML\">\n"
+        + "<ggg:mfrac><ggg:mn>1</ggg:mn><ggg:mn>2</ggg:mn></ggg:mfrac></ggg:math>",
+        MathMLPreprocessor.preprocess(
+            "<ggg:math>\n<ggg:mfrac><ggg:mn>1</ggg:mn><ggg:mn>2</ggg:mn></ggg:mfrac></ggg:math>").getXml());
+    assertEquals("<m:math" + M_DECLARATION + "><m:mo>\u2062</m:mo></m:math>",
+        MathMLPreprocessor.preprocess("<m:math" + M_DECLARATION + "><m:mo>&InvisibleTimes;</m:mo></m:math>").getXml());
+  }
+}
@@ -0,0 +1,154 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import ro.sync.ecss.extensions.api.AuthorAccess;
+import ro.sync.ecss.extensions.api.access.EditingSessionContext;
+import ro.sync.ecss.extensions.api.webapp.plugin.servlet.http.HttpServletRequest;
+import ro.sync.ecss.extensions.api.webapp.plugin.servlet.http.HttpServletResponse;
+
+/**
+ * Tests for the MathML servlet.
+ *
+ * @author agent
+ */
+public class MathmlServletTest {
+
+  /**
+   * <p><b>Description:</b> Tests that the conditional requests are matched against the entity tag.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testMatchesETag() throws Exception {
+    String etag = MathmlServlet.getETag("hash", ImageFormat.PNG);
+    assertNotEquals(etag, MathmlServlet.getETag("hash", ImageFormat.SVG));
+    assertNotEquals(etag, MathmlServlet.getETag("other", ImageFormat.PNG));
+
+    assertFalse(MathmlServlet.matchesETag(null, etag));
+    assertTrue(MathmlServlet.matchesETag(etag, etag));
+    assertTrue(MathmlServlet.matchesETag("W/" + etag, etag));
+    assertTrue(MathmlServlet.matchesETag("\"abc\", " + etag, etag));
+    assertTrue(MathmlServlet.matchesETag("*", etag));
+    assertFalse(MathmlServlet.matchesETag("\"abc\"", etag));
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that the scale requested for high-DPI displays is bounded and that 
+   * each scale has its own entity tag.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testRequestedScale() throws Exception {
+    assertEquals(1, MathmlServlet.getRequestedScale(requestWithScale(null)));
+    assertEquals(2, MathmlServlet.getRequestedScale(requestWithScale("2")));
+    assertEquals(JEuclidRenderer.MAX_SCALE, MathmlServlet.getRequestedScale(requestWithScale("100")));
+    assertEquals(1, MathmlServlet.getRequestedScale(requestWithScale("0")));
+    assertEquals(1, MathmlServlet.getRequestedScale(requestWithScale("retina")));
+    
+    assertEquals("hash", RenderedEquationCache.getScaledHash("hash", 1));
+    assertNotEquals(MathmlServlet.getETag("hash", ImageFormat.PNG), 
+        MathmlServlet.getETag(RenderedEquationCache.getScaledHash("hash", 2), ImageFormat.PNG));
+  }
+
+  /**
+   * @param scale The value of the scale parameter.
+   *
+   * @return A request with the given scale parameter.
+   */
+  private static HttpServletRequest requestWithScale(String scale) {
+    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    Mockito.when(request.getParameter("scale")).thenReturn(scale);
+    return request;
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that the servlet does not render the equations encoded in URLs 
+   * that it did not sign.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testForgedStatelessUrlIsRejected() throws Exception {
+    String token = EquationUrlCodec.encode("<math><mi>x</mi></math>");
+    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    Mockito.when(request.getRequestURI()).thenReturn(
+        "/oxygen-xml-web-author/plugins-dispatcher/mathml/" + MathmlServlet.STATELESS_SUB_PATH);
+    Mockito.when(request.getParameter("eq")).thenReturn(token.substring(0, token.indexOf('.')) + ".AAAA");
+    HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+    
+    new MathmlServlet().doGet(request, response);
+    Mockito.verify(response).sendError(Mockito.eq(HttpServletResponse.SC_FORBIDDEN), Mockito.anyString());
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that a malformed equation ID is reported as a bad request.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testInvalidEquationIdIsRejected() throws Exception {
+    AuthorAccess authorAccess = Mockito.mock(AuthorAccess.class, Mockito.RETURNS_DEEP_STUBS);
+    EditingSessionContext editingContext = Mockito.mock(EditingSessionContext.class);
+    Mockito.when(authorAccess.getEditorAccess().getEditingContext()).thenReturn(editingContext);
+    Mockito.when(authorAccess.getDocumentController()).thenReturn(null);
+    EditingSessionContextManager.ensureInitialized(authorAccess);
+    ArgumentCaptor<Object> docId = ArgumentCaptor.forClass(Object.class);
+    Mockito.verify(editingContext).setAttribute(Mockito.eq(EditingSessionContextManager.AUTHOR_ACCESS_ID), 
+        docId.capture());
+    ArgumentCaptor<Object> equationCache = ArgumentCaptor.forClass(Object.class);
+    Mockito.verify(editingContext).setAttribute(Mockito.eq(EditingSessionContextManager.EQUATION_CACHE), 
+        equationCache.capture());
+    Mockito.when(editingContext.getAttribute(EditingSessionContextManager.EQUATION_CACHE))
+        .thenReturn(equationCache.getValue());
+    
+    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    Mockito.when(request.getRequestURI()).thenReturn("/oxygen-xml-web-author/plugins-dispatcher/mathml");
+    Mockito.when(request.getParameter("docId")).thenReturn((String) docId.getValue());
+    Mockito.when(request.getParameter("elemId")).thenReturn("x1");
+    HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+    
+    new MathmlServlet().doGet(request, response);
+    Mockito.verify(response).sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid equation ID.");
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that the runtime metrics are not served unless enabled.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testStatsAreNotServedByDefault() throws Exception {
+    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    Mockito.when(request.getRequestURI()).thenReturn(
+        "/oxygen-xml-web-author/plugins-dispatcher/mathml/" + MathmlServlet.STATS_SUB_PATH);
+    HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+    
+    new MathmlServlet().doGet(request, response);
+    Mockito.verify(response).sendError(HttpServletResponse.SC_NOT_FOUND);
+    Mockito.verify(response, Mockito.never()).getOutputStream();
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that the placeholder of the equations that are not rendered yet 
+   * is marked, so that the client does not mistake it for an equation of a single pixel.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testPlaceholderIsMarked() throws Exception {
+    HttpServletResponse response = Mockito.mock(HttpServletResponse.class, Mockito.RETURNS_DEEP_STUBS);
+    
+    MathmlServlet.servePlaceholder(response);
+    Mockito.verify(response).setHeader(MathmlServlet.PENDING_HEADER, "true");
+    Mockito.verify(response).setHeader("Cache-Control", "no-store");
+  }
+}
@@ -1,20 +1,36 @@
 package com.oxygenxml.sdksamples.mathml;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Position;
 import javax.swing.text.Segment;
 import javax.swing.undo.UndoManager;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.junit.Test;
 import org.mockito.Mockito;
 
 import ro.sync.ecss.component.RenderingInfoChangedListener;
+import ro.sync.ecss.extensions.api.AttributeChangedEvent;
 import ro.sync.ecss.extensions.api.AuthorDocumentController;
 import ro.sync.ecss.extensions.api.AuthorDocumentFilter;
 import ro.sync.ecss.extensions.api.AuthorDocumentType;
@@ -22,6 +38,7 @@ import ro.sync.ecss.extensions.api.AuthorListener;
 import ro.sync.ecss.extensions.api.AuthorOperationException;
 import ro.sync.ecss.extensions.api.AuthorSchemaManager;
 import ro.sync.ecss.extensions.api.AuthorXPathExpressionBuilder;
+import ro.sync.ecss.extensions.api.DocumentContentInsertedEvent;
 import ro.sync.ecss.extensions.api.SelectionInterpretationMode;
 import ro.sync.ecss.extensions.api.UniqueAttributesProcessor;
 import ro.sync.ecss.extensions.api.XPathVersion;
@@ -110,6 +127,343 @@ public class PerDocumentEquationCacheTest {
     assertEquals("<math>2</math>", cache.getXmlFragment(node2ID));
   }
   
+  /**
+   * <p><b>Description:</b> Test that identical equations share their XML and that large 
+   * equations are stored compressed.</p>
+   *
+   * @author agent
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testCompactStorage() throws Exception {
+    StringBuilder largeEquation = new StringBuilder("<math><mtable>");
+    for (int i = 0; i < 100; i++) {
+      largeEquation.append("<mtr><mtd><mi>\u03b1</mi><mo>\u2212</mo><mn>").append(i).append("</mn></mtd></mtr>");
+    }
+    String eq = largeEquation.append("</mtable></math>").toString();
+    assertTrue(eq.length() > FrozenFragment.DEFLATE_THRESHOLD);
+    assertTrue(FrozenFragment.of(eq).isDeflated());
+    assertTrue(FrozenFragment.of(eq).getStoredSize() < eq.length() / 4);
+    assertEquals(eq, FrozenFragment.of(eq).getXml());
+    
+    AuthorDocumentControllerMock controller = new AuthorDocumentControllerMock();
+    PerDocumentEquationCache cache = new PerDocumentEquationCache(controller);
+    
+    controller.setSerializeReturn(eq);
+    AuthorElement node1 = Mockito.mock(AuthorElement.class);
+    AuthorElement node2 = Mockito.mock(AuthorElement.class);
+    AuthorElement node3 = Mockito.mock(AuthorElement.class);
+    long node1ID = cache.freezeMathMLfrag(node1);
+    long node2ID = cache.freezeMathMLfrag(node2);
+    long node3ID = cache.freezeMathMLfrag(node3);
+    assertEquals(3, cache.getSize());
+    assertEquals(1, cache.getDistinctFragmentsCount());
+    
+    // Change one of the equations.
+    controller.setSerializeReturn("<math>2</math>");
+    cache.freezeMathMLfrag(node2);
+    assertEquals(2, cache.getDistinctFragmentsCount());
+    assertEquals(eq, cache.getXmlFragment(node1ID));
+    assertEquals("<math>2</math>", cache.getXmlFragment(node2ID));
+    assertEquals(eq, cache.getXmlFragment(node3ID));
+    
+    // Change it back.
+    controller.setSerializeReturn(eq);
+    cache.freezeMathMLfrag(node2);
+    assertEquals(1, cache.getDistinctFragmentsCount());
+    assertEquals(eq, cache.getXmlFragment(node2ID));
+    assertEquals(Arrays.asList(node1ID, node2ID, node3ID), cache.getElementIds());
+  }
+
+  /**
+   * <p><b>Description:</b> Test that identical equations of different documents share their XML 
+   * and that it is released, along with its dimensions, when no open document refers to it.
+   * The rendered images are kept for the documents opened later.</p>
+   *
+   * @author agent
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testCrossDocumentSharing() throws Exception {
+    String eq = "<math><mi>x</mi><mn>" + System.nanoTime() + "</mn></math>";
+    String xmlHash = DigestUtils.sha256Hex(eq);
+    AuthorDocumentControllerMock controller = new AuthorDocumentControllerMock();
+    
+    controller.setSerializeReturn(eq);
+    PerDocumentEquationCache cache1 = new PerDocumentEquationCache(controller);
+    PerDocumentEquationCache cache2 = new PerDocumentEquationCache(controller);
+    AuthorElement node1 = Mockito.mock(AuthorElement.class);
+    AuthorElement node2 = Mockito.mock(AuthorElement.class);
+    AuthorElement node3 = Mockito.mock(AuthorElement.class);
+    cache1.freezeMathMLfrag(node1);
+    long node2ID = cache2.freezeMathMLfrag(node2);
+    cache2.freezeMathMLfrag(node3);
+    assertEquals(3, EquationInterner.getReferenceCount(eq));
+    RenderedEquationCache.put(xmlHash, new RenderedEquation(new byte[] {1}, ImageFormat.PNG, false, 1, 1));
+    RenderedEquationCache.putDimensions(xmlHash, new EquationDimensions(1, 1, 1));
+    
+    // Change one of the equations of the second document.
+    controller.setSerializeReturn("<math/>");
+    cache2.freezeMathMLfrag(node3);
+    assertEquals(2, EquationInterner.getReferenceCount(eq));
+    
+    // Close the first document. Its references are released when other equations are frozen.
+    cache1 = null;
+    for (int i = 0; i < 10 && EquationInterner.getReferenceCount(eq) > 1; i++) {
+      System.gc();
+      System.runFinalization();
+      cache2.freezeMathMLfrag(Mockito.mock(AuthorElement.class));
+    }
+    assertEquals(1, EquationInterner.getReferenceCount(eq));
+    assertEquals(eq, cache2.getXmlFragment(node2ID));
+    assertNotNull(RenderedEquationCache.get(xmlHash, ImageFormat.PNG));
+    assertNotNull(RenderedEquationCache.getDimensions(xmlHash));
+    
+    // Change the last equation with this XML.
+    cache2.freezeMathMLfrag(node2);
+    assertEquals(0, EquationInterner.getReferenceCount(eq));
+    assertNull(RenderedEquationCache.getDimensions(xmlHash));
+    assertNotNull(RenderedEquationCache.get(xmlHash, ImageFormat.PNG));
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the dimensions of an equation that needs the DTD of the 
+   * document, which are stored under a hash that depends on the document, are removed when 
+   * the last equation with this XML changes.</p>
+   *
+   * @author agent
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testDoctypeDimensionsAreReleased() throws Exception {
+    String eq = "<math><mi>&myEntity;</mi><mn>" + System.nanoTime() + "</mn></math>";
+    AuthorDocumentControllerMock controller = new AuthorDocumentControllerMock();
+    PerDocumentEquationCache cache = new PerDocumentEquationCache(controller);
+    AuthorElement node = Mockito.mock(AuthorElement.class);
+    controller.setSerializeReturn(eq);
+    long nodeID = cache.freezeMathMLfrag(node);
+    
+    AuthorDocumentType docType = Mockito.mock(AuthorDocumentType.class);
+    Mockito.when(docType.serializeDoctype()).thenReturn("<!DOCTYPE topic SYSTEM \"topic.dtd\">\n");
+    FrozenFragment fragment = cache.getFrozenFragment(nodeID);
+    String xmlHash = fragment.getXmlHash("file:/doc.xml", docType);
+    assertNotEquals(fragment.sha256, xmlHash);
+    RenderedEquationCache.putDimensions(xmlHash, new EquationDimensions(1, 1, 1));
+    
+    controller.setSerializeReturn("<math/>");
+    cache.freezeMathMLfrag(node);
+    assertEquals(0, EquationInterner.getReferenceCount(eq));
+    assertNull(RenderedEquationCache.getDimensions(xmlHash));
+  }
+
+  /**
+   * <p><b>Description:</b> Test that only the equations that changed are serialized again 
+   * when the changes of the document are tracked.</p>
+   *
+   * @author agent
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testChangeTracking() throws Exception {
+    AuthorDocumentControllerMock controller = new AuthorDocumentControllerMock();
+    PerDocumentEquationCache cache = new PerDocumentEquationCache(controller);
+    AuthorElement node1 = Mockito.mock(AuthorElement.class);
+    AuthorElement node2 = Mockito.mock(AuthorElement.class);
+    controller.setSerializeReturn("<math>1</math>");
+    long node1ID = cache.freezeMathMLfrag(node1);
+    
+    cache.trackChanges();
+    AuthorListener listener = controller.listener;
+    assertNotNull(listener);
+    
+    // The changes made before tracking started were not seen.
+    cache.freezeMathMLfrag(node1);
+    controller.setSerializeReturn("<math>2</math>");
+    long node2ID = cache.freezeMathMLfrag(node2);
+    assertEquals(3, controller.serializationsCount);
+    
+    cache.freezeMathMLfrag(node1);
+    cache.freezeMathMLfrag(node2);
+    assertEquals(3, controller.serializationsCount);
+    
+    // Insert text in a descendant of the first equation.
+    AuthorElement mi = Mockito.mock(AuthorElement.class);
+    Mockito.when(mi.getParent()).thenReturn(node1);
+    DocumentContentInsertedEvent insertEvent = Mockito.mock(DocumentContentInsertedEvent.class);
+    Mockito.when(insertEvent.getParentNode()).thenReturn(mi);
+    listener.contentInserted(insertEvent);
+    
+    controller.setSerializeReturn("<math><mi>x</mi></math>");
+    cache.freezeMathMLfrag(node1);
+    cache.freezeMathMLfrag(node2);
+    assertEquals(4, controller.serializationsCount);
+    assertEquals("<math><mi>x</mi></math>", cache.getXmlFragment(node1ID));
+    assertEquals("<math>2</math>", cache.getXmlFragment(node2ID));
+    
+    // Change an attribute of an ancestor of the equations.
+    AuthorElement section = Mockito.mock(AuthorElement.class);
+    AttributeChangedEvent attributeEvent = Mockito.mock(AttributeChangedEvent.class);
+    Mockito.when(attributeEvent.getOwnerAuthorNode()).thenReturn(section);
+    Mockito.when(attributeEvent.getAttributeName()).thenReturn("class");
+    listener.attributeChanged(attributeEvent);
+    cache.freezeMathMLfrag(node1);
+    cache.freezeMathMLfrag(node2);
+    assertEquals(4, controller.serializationsCount);
+    
+    // The namespace declarations and the xml:* attributes are inherited by the equations.
+    for (String attributeName : new String[] {"xmlns:m", "xml:lang", "xml:base"}) {
+      Mockito.when(attributeEvent.getAttributeName()).thenReturn(attributeName);
+      listener.attributeChanged(attributeEvent);
+      int serializationsCount = controller.serializationsCount;
+      cache.freezeMathMLfrag(node1);
+      cache.freezeMathMLfrag(node2);
+      assertEquals(attributeName, serializationsCount + 2, controller.serializationsCount);
+    }
+    
+    // The whole document is replaced.
+    listener.documentChanged(null, null);
+    cache.freezeMathMLfrag(node1);
+    cache.freezeMathMLfrag(node2);
+    assertEquals(12, controller.serializationsCount);
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the frozen fragment keeps the hash of its XML and 
+   * whether it needs the DTD of the document.</p>
+   *
+   * @author agent
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testFrozenFragment() throws Exception {
+    AuthorDocumentControllerMock controller = new AuthorDocumentControllerMock();
+    PerDocumentEquationCache cache = new PerDocumentEquationCache(controller);
+    AuthorElement node1 = Mockito.mock(AuthorElement.class);
+    AuthorElement node2 = Mockito.mock(AuthorElement.class);
+    String eq = "<math><mi>&alpha;</mi></math>";
+    controller.setSerializeReturn(eq);
+    long node1ID = cache.freezeMathMLfrag(node1);
+    controller.setSerializeReturn("<math><mi>&myEntity;</mi></math>");
+    long node2ID = cache.freezeMathMLfrag(node2);
+    
+    FrozenFragment fragment = cache.getFrozenFragment(node1ID);
+    assertEquals(DigestUtils.sha256Hex(eq), fragment.sha256);
+    assertFalse(fragment.needsDoctype);
+    assertTrue(cache.getFrozenFragment(node2ID).needsDoctype);
+    assertNull(cache.getFrozenFragment(node2ID + 1));
+  }
+  
+  /**
+   * <p><b>Description:</b> Stress test of reading equations while other equations are frozen. 
+   * The reads must be consistent and must not wait for the freeze operations, and the freeze 
+   * operations must not wait for the serialization of other equations.</p>
+   *
+   * @author agent
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testConcurrentReads() throws Exception {
+    CountDownLatch serializing = new CountDownLatch(1);
+    CountDownLatch released = new CountDownLatch(1);
+    AtomicBoolean blockSerialization = new AtomicBoolean();
+    AuthorDocumentControllerMock controller = new AuthorDocumentControllerMock() {
+      @Override
+      public String serializeFragmentToXML(AuthorDocumentFragment fragment) throws BadLocationException {
+        String xml = super.serializeFragmentToXML(fragment);
+        // Only the first serialization is blocked.
+        if (blockSerialization.compareAndSet(true, false)) {
+          serializing.countDown();
+          try {
+            released.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return xml;
+      }
+    };
+    PerDocumentEquationCache cache = new PerDocumentEquationCache(controller);
+    AuthorElement[] nodes = new AuthorElement[200];
+    long[] ids = new long[nodes.length];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = Mockito.mock(AuthorElement.class);
+      controller.setSerializeReturn(getEquation(i));
+      ids[i] = cache.freezeMathMLfrag(nodes[i]);
+    }
+    
+    ExecutorService executor = Executors.newFixedThreadPool(5);
+    try {
+      // Read while a freeze operation waits for the serialization of the document.
+      blockSerialization.set(true);
+      controller.setSerializeReturn(getEquation(0));
+      Future<Long> freeze = executor.submit(() -> cache.freezeMathMLfrag(nodes[0]));
+      serializing.await();
+      Future<String> read = executor.submit(() -> cache.getXmlFragment(ids[1]));
+      assertEquals(getEquation(1), read.get(10, TimeUnit.SECONDS));
+      Future<List<Long>> elemIds = executor.submit(cache::getElementIds);
+      assertEquals(nodes.length, elemIds.get(10, TimeUnit.SECONDS).size());
+      controller.setSerializeReturn(getEquation(2));
+      Future<Long> otherFreeze = executor.submit(() -> cache.freezeMathMLfrag(nodes[2]));
+      assertEquals(ids[2], (long) otherFreeze.get(10, TimeUnit.SECONDS));
+      released.countDown();
+      assertEquals(ids[0], (long) freeze.get());
+      assertEquals(getEquation(0), cache.getXmlFragment(ids[0]));
+      
+      // Read from several threads while another thread freezes the equations.
+      AtomicBoolean running = new AtomicBoolean(true);
+      LongAdder reads = new LongAdder();
+      List<Future<Void>> results = new ArrayList<>();
+      results.add(executor.submit(() -> {
+        for (int i = 0; running.get(); i++) {
+          int index = i % nodes.length;
+          controller.setSerializeReturn(getEquation(index));
+          assertEquals(ids[index], cache.freezeMathMLfrag(nodes[index]));
+          if (i % 8 == 0) {
+            // New equations make the cache grow and the deleted ones are evicted.
+            controller.setSerializeReturn("<math/>");
+            cache.freezeMathMLfrag(Mockito.mock(AuthorElement.class));
+          }
+        }
+        return null;
+      }));
+      for (int i = 0; i < 4; i++) {
+        Random random = new Random(i);
+        results.add(executor.submit(() -> {
+          while (running.get()) {
+            int index = random.nextInt(ids.length);
+            assertEquals(getEquation(index), cache.getXmlFragment(ids[index]));
+            reads.increment();
+          }
+          return null;
+        }));
+      }
+      Thread.sleep(300);
+      running.set(false);
+      for (Future<Void> result : results) {
+        result.get();
+      }
+      assertTrue(reads.sum() > 0);
+    } finally {
+      released.countDown();
+      executor.shutdown();
+    }
+  }
+  
+  /**
+   * @param index The index of an equation.
+   * 
+   * @return The XML of the equation.
+   */
+  private static String getEquation(int index) {
+    return "<math><mn>" + index + "</mn></math>";
+  }
+  
   
 
 /**
@@ -120,6 +474,10 @@ public class PerDocumentEquationCacheTest {
   private static class AuthorDocumentControllerMock implements AuthorDocumentController {
 
     private String serialized;
+    
+    private int serializationsCount;
+    
+    private AuthorListener listener;
 
     /**
      * Helper method to set what a serialization to XML will return.
@@ -133,6 +491,7 @@ public class PerDocumentEquationCacheTest {
 
     @Override
     public String serializeFragmentToXML(AuthorDocumentFragment fragment) throws BadLocationException {
+      serializationsCount++;
       return serialized;
     }
 
@@ -331,6 +690,7 @@ public class PerDocumentEquationCacheTest {
 
     @Override
     public void addAuthorListener(AuthorListener listener) {
+      this.listener = listener;
     }
 
     @Override
@@ -0,0 +1,177 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * Tests for the PNG encoder.
+ *
+ * @author agent
+ */
+public class PngEncoderTest {
+
+  /**
+   * <p><b>Description:</b> Tests that images with few colors are encoded as palette images.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testPaletteImage() throws Exception {
+    BufferedImage image = new BufferedImage(13, 5, BufferedImage.TYPE_INT_ARGB);
+    image.setRGB(3, 2, 0xFF000000);
+    image.setRGB(12, 4, 0x80FF0000);
+
+    byte[] png = PngEncoder.encode(image, 6);
+    assertEquals(PngEncoder.COLOR_TYPE_PALETTE, getColorType(png));
+    assertEquals(2, getBitDepth(png));
+    assertSamePixels(image, ImageIO.read(new ByteArrayInputStream(png)));
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that anti-aliased black text is encoded as a gray-alpha image.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testGrayAlphaImage() throws Exception {
+    BufferedImage image = new BufferedImage(213, 37, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = image.createGraphics();
+    try {
+      g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+      g.setColor(Color.BLACK);
+      g.setFont(new Font(Font.SERIF, Font.ITALIC, 24));
+      g.drawString("x = a + b f(y) - sin(z)", 5, 28);
+    } finally {
+      g.dispose();
+    }
+    // Make sure that there are more alpha levels than fit in a small palette.
+    for (int x = 0; x < 32; x++) {
+      image.setRGB(x, 0, (x * 8) << 24);
+    }
+
+    byte[] png = PngEncoder.encode(image, 6);
+    assertEquals(PngEncoder.COLOR_TYPE_GRAY_ALPHA, getColorType(png));
+
+    // Compare the samples, the gray color space of the decoder is not sRGB.
+    Raster decoded = ImageIO.read(new ByteArrayInputStream(png)).getRaster();
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        int expected = image.getRGB(x, y);
+        int[] samples = decoded.getPixel(x, y, (int[]) null);
+        assertEquals(expected >>> 24, samples[1]);
+        if ((expected >>> 24) != 0) {
+          assertEquals(expected & 0xFF, samples[0]);
+        }
+      }
+    }
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that images with many colors are encoded as RGBA images.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testRgbaImage() throws Exception {
+    BufferedImage image = new BufferedImage(40, 40, BufferedImage.TYPE_INT_ARGB);
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        image.setRGB(x, y, ((128 + x) << 24) | (x * 6 << 16) | (y * 6 << 8) | (x ^ y));
+      }
+    }
+
+    byte[] png = PngEncoder.encode(image, 9);
+    assertEquals(PngEncoder.COLOR_TYPE_RGBA, getColorType(png));
+    assertSamePixels(image, ImageIO.read(new ByteArrayInputStream(png)));
+
+    // The encoder is reused for a smaller image.
+    BufferedImage smallImage = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+    assertSamePixels(smallImage, ImageIO.read(new ByteArrayInputStream(PngEncoder.encode(smallImage, 0))));
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that the idle encoders do not keep the buffers grown for 
+   * large images.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testLargeBuffersAreNotPooled() throws Exception {
+    BufferedImage image = new BufferedImage(2000, 1000, BufferedImage.TYPE_INT_ARGB);
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        image.setRGB(x, y, 0xFF000000 | (x * 31 + y * 17) * 0x10101);
+      }
+    }
+    assertSamePixels(image, ImageIO.read(new ByteArrayInputStream(PngEncoder.encode(image, 1))));
+
+    long maxBytesPerEncoder = 4L * PngEncoder.MAX_POOLED_PIXELS + 7L * PngEncoder.MAX_POOLED_ROW_LENGTH 
+        + PngEncoder.MAX_POOLED_COMPRESSED_LENGTH;
+    assertTrue(PngEncoder.getPooledBufferBytes() <= 8 * maxBytesPerEncoder);
+    assertTrue(PngEncoder.getPooledBufferBytes() < 4L * image.getWidth() * image.getHeight());
+  }
+
+  /**
+   * <p><b>Description:</b> Tests the bit depth of the palette images.</p>
+   */
+  @Test
+  public void testPaletteBitDepth() {
+    assertEquals(1, PngEncoder.getPaletteBitDepth(1));
+    assertEquals(1, PngEncoder.getPaletteBitDepth(2));
+    assertEquals(2, PngEncoder.getPaletteBitDepth(3));
+    assertEquals(4, PngEncoder.getPaletteBitDepth(16));
+    assertEquals(8, PngEncoder.getPaletteBitDepth(17));
+  }
+
+  /**
+   * Asserts that two images have the same pixels. The color of fully transparent pixels is ignored.
+   *
+   * @param expected The expected image.
+   * @param actual The actual image.
+   */
+  private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+    assertEquals(expected.getWidth(), actual.getWidth());
+    assertEquals(expected.getHeight(), actual.getHeight());
+    for (int y = 0; y < expected.getHeight(); y++) {
+      for (int x = 0; x < expected.getWidth(); x++) {
+        int expectedColor = expected.getRGB(x, y);
+        int actualColor = actual.getRGB(x, y);
+        if ((expectedColor >>> 24) == 0) {
+          assertEquals(0, actualColor >>> 24);
+        } else {
+          assertEquals(expectedColor, actualColor);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param png The PNG file.
+   *
+   * @return The color type from the header.
+   */
+  private static int getColorType(byte[] png) {
+    return png[25];
+  }
+
+  /**
+   * @param png The PNG file.
+   *
+   * @return The bit depth from the header.
+   */
+  private static int getBitDepth(byte[] png) {
+    return png[24];
+  }
+}
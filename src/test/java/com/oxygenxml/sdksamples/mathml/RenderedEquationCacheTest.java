@@ -0,0 +1,100 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import ro.sync.ecss.extensions.api.AuthorDocumentType;
+
+/**
+ * Tests for the process-wide cache of rendered equations.
+ *
+ * @author agent
+ */
+public class RenderedEquationCacheTest {
+
+  /**
+   * Clears the cache shared by the tests.
+   */
+  @After
+  public void tearDown() {
+    RenderedEquationCache.clear();
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that the equations parsed on their own are shared by all
+   * the documents.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testStandaloneEquationIsShared() throws Exception {
+    String xml = "<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><mi>&alpha;</mi></math>";
+    String xmlHash = RenderedEquationCache.getXmlHash(xml, "file:/a.xml", createDoctype("a.dtd"));
+    assertEquals(DigestUtils.sha256Hex(xml), xmlHash);
+    assertEquals(xmlHash, RenderedEquationCache.getXmlHash(xml, "file:/b.xml", createDoctype("b.dtd")));
+    assertEquals(xmlHash, RenderedEquationCache.getXmlHash(xml, null, null));
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that the equations that use the entities of the DTD are cached
+   * separately for each document type.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testDoctypeEquationIsCachedPerDoctype() throws Exception {
+    String xml = "<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><mi>&myEntity;</mi></math>";
+    AuthorDocumentType doctypeA = createDoctype("a.dtd");
+    String hashA = RenderedEquationCache.getXmlHash(xml, "file:/a.xml", doctypeA);
+    String hashB = RenderedEquationCache.getXmlHash(xml, "file:/b.xml", createDoctype("b.dtd"));
+    assertNotEquals(hashA, hashB);
+    assertNotEquals(hashA, RenderedEquationCache.getXmlHash(xml, "file:/other/a.xml", doctypeA));
+    assertEquals(hashA, RenderedEquationCache.getXmlHash(xml, "file:/a.xml", doctypeA));
+
+    RenderedEquation equation = new RenderedEquation(new byte[] {1, 2, 3}, ImageFormat.PNG, false, 1, 1);
+    RenderedEquationCache.put(hashA, equation);
+    assertSame(equation, RenderedEquationCache.get(hashA, ImageFormat.PNG));
+    assertNull(RenderedEquationCache.get(hashB, ImageFormat.PNG));
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that the size of the cached images follows the additions, 
+   * replacements and removals.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testImageBytes() throws Exception {
+    RenderedEquationCache.put("a", new RenderedEquation(new byte[10], ImageFormat.PNG, false, 1, 1));
+    RenderedEquationCache.put("b", new RenderedEquation(new byte[20], ImageFormat.PNG, false, 1, 1));
+    assertEquals(30, RenderedEquationCache.getImageBytes());
+    
+    RenderedEquationCache.put("a", new RenderedEquation(new byte[5], ImageFormat.PNG, false, 1, 1));
+    assertEquals(25, RenderedEquationCache.getImageBytes());
+    
+    RenderedEquationCache.invalidate("b");
+    assertEquals(5, RenderedEquationCache.getImageBytes());
+    
+    RenderedEquationCache.clear();
+    assertEquals(0, RenderedEquationCache.getImageBytes());
+  }
+
+  /**
+   * @param dtdSystemID The system ID of the DTD.
+   *
+   * @return A document type that declares the given DTD.
+   */
+  private static AuthorDocumentType createDoctype(String dtdSystemID) {
+    AuthorDocumentType docType = Mockito.mock(AuthorDocumentType.class);
+    Mockito.when(docType.serializeDoctype()).thenReturn(
+        "<!DOCTYPE topic SYSTEM \"" + dtdSystemID + "\">\n");
+    return docType;
+  }
+}
@@ -0,0 +1,92 @@
+package com.oxygenxml.sdksamples.mathml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.oxygenxml.sdksamples.mathml.MathMLMetrics.Counter;
+
+/**
+ * Tests for the coalescing of the concurrent renders of the same equation.
+ *
+ * @author agent
+ */
+public class SingleFlightTest {
+
+  /**
+   * The number of concurrent callers.
+   */
+  private static final int CALLERS = 16;
+
+  /**
+   * <p><b>Description:</b> Tests that the callers that arrive while the work is in progress 
+   * share its result instead of doing it again.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testConcurrentCallersShareTheResult() throws Exception {
+    SingleFlight<String, Object> flights = new SingleFlight<>(Counter.COALESCED_RENDERS);
+    AtomicInteger executions = new AtomicInteger();
+    long coalescedBefore = MathMLMetrics.get(Counter.COALESCED_RENDERS);
+    
+    ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+    try {
+      List<Future<Object>> results = new ArrayList<>();
+      for (int i = 0; i < CALLERS; i++) {
+        results.add(executor.submit(() -> flights.execute("equation", () -> {
+          executions.incrementAndGet();
+          // Finish only after all the other callers wait for this result.
+          long deadline = System.currentTimeMillis() + 10000;
+          while (MathMLMetrics.get(Counter.COALESCED_RENDERS) - coalescedBefore < CALLERS - 1
+              && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+          }
+          return new Object();
+        })));
+      }
+      Object first = results.get(0).get();
+      for (Future<Object> result : results) {
+        assertSame(first, result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(1, executions.get());
+    assertEquals(CALLERS - 1, MathMLMetrics.get(Counter.COALESCED_RENDERS) - coalescedBefore);
+    assertEquals(0, flights.getInFlightCount());
+  }
+
+  /**
+   * <p><b>Description:</b> Tests that the failure of the work is reported to the caller 
+   * and that the next caller does the work again.</p>
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testFailureIsNotCached() throws Exception {
+    SingleFlight<String, String> flights = new SingleFlight<>(Counter.COALESCED_RENDERS);
+    try {
+      flights.execute("equation", () -> {
+        throw new IOException("Render failed");
+      });
+      fail("The failure should be reported");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+    assertEquals(0, flights.getInFlightCount());
+    assertEquals("rendered", flights.execute("equation", () -> "rendered"));
+  }
+}
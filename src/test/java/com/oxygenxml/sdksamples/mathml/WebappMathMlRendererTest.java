@@ -2,8 +2,6 @@ package com.oxygenxml.sdksamples.mathml;
 
 import static org.junit.Assert.assertTrue;
 
-import java.awt.image.BufferedImage;
-
 import org.junit.Test;
 
 public class WebappMathMlRendererTest {
@@ -13,8 +11,9 @@ public class WebappMathMlRendererTest {
    */
   @Test
   public void testMathMlImgsHaveWidthAndHeight() {
-    BufferedImage image = new BufferedImage(500, 600, BufferedImage.TYPE_BYTE_BINARY);
-    String generatedImgHtml = new WebappMathMLRenderer().generateImgHtml(image, "", 1L, "hash", "<xml_content/>", false);
+    WebappMathMLRenderer renderer = new WebappMathMLRenderer();
+    String imageUrl = renderer.getImageUrl("", 1L, "hash", ImageFormat.PNG);
+    String generatedImgHtml = renderer.generateImgHtml(500, 600, imageUrl, "<xml_content/>", false);
     
     assertTrue(generatedImgHtml.indexOf("width=\"500\"") != -1);
     assertTrue(generatedImgHtml.indexOf("height=\"600\"") != -1);
@@ -22,4 +21,77 @@ public class WebappMathMlRendererTest {
     assertTrue(generatedImgHtml.indexOf("\" alt=\"") != -1);
     assertTrue(generatedImgHtml.indexOf("data-alt=\"") == -1);
   }
+  
+  /**
+   * Tests that the image URL can point to the SVG variant.
+   */
+  @Test
+  public void testSvgImageUrl() {
+    WebappMathMLRenderer renderer = new WebappMathMLRenderer();
+    assertTrue(renderer.getImageUrl("doc", 1L, "hash", ImageFormat.PNG).indexOf("format=") == -1);
+    
+    String svgUrl = renderer.getImageUrl("doc", 1L, "hash", ImageFormat.SVG);
+    assertTrue(svgUrl.indexOf("xmlHash=hash.svg") != -1);
+    assertTrue(svgUrl.indexOf("format=svg") != -1);
+  }
+  
+  /**
+   * Tests that the source of the equation can be loaded on demand instead of being embedded.
+   */
+  @Test
+  public void testLazySourceImage() {
+    WebappMathMLRenderer renderer = new WebappMathMLRenderer();
+    String imageUrl = renderer.getImageUrl("doc", 1L, "hash", ImageFormat.PNG);
+    String sourceUrl = renderer.getSourceUrl("doc", 1L);
+    assertTrue(sourceUrl.indexOf("mathml/source?") != -1);
+    assertTrue(sourceUrl.indexOf("elemId=1") != -1);
+    assertTrue(sourceUrl.indexOf("docId=doc") != -1);
+    
+    String generatedImgHtml = renderer.generateImgHtml(500, 600, imageUrl, null, 
+        WebappMathMLRenderer.LAZY_SOURCE_ALT, sourceUrl, false);
+    assertTrue(generatedImgHtml.indexOf("data-source-url=\"" + sourceUrl + "\"") != -1);
+    assertTrue(generatedImgHtml.indexOf("alt=\"" + WebappMathMLRenderer.LAZY_SOURCE_ALT + "\"") != -1);
+    
+    String spriteImgHtml = renderer.generateSpriteImgHtml(500, 600, "doc", 1L, imageUrl, 
+        WebappMathMLRenderer.LAZY_SOURCE_ALT, sourceUrl, false);
+    assertTrue(spriteImgHtml.indexOf("data-source-url=\"" + sourceUrl + "\"") != -1);
+    
+    assertTrue(renderer.generateImgHtml(500, 600, imageUrl, "<xml_content/>", false)
+        .indexOf("data-source-url") == -1);
+  }
+  
+  /**
+   * Tests that high-DPI displays can request the images rendered at twice the size.
+   */
+  @Test
+  public void testHighDpiSrcset() {
+    WebappMathMLRenderer renderer = new WebappMathMLRenderer();
+    String imageUrl = renderer.getImageUrl("doc", 1L, "hash", ImageFormat.PNG);
+    assertTrue(imageUrl.indexOf("scale=") == -1);
+    String hiDpiImageUrl = renderer.getImageUrl("doc", 1L, "hash", ImageFormat.PNG, 2);
+    assertTrue(hiDpiImageUrl.indexOf("scale=2") != -1);
+    
+    String generatedImgHtml = renderer.generateImgHtml(500, 600, imageUrl, hiDpiImageUrl, 
+        "<xml_content/>", null, false);
+    assertTrue(generatedImgHtml.indexOf("src=\"" + imageUrl + "\"") != -1);
+    assertTrue(generatedImgHtml.indexOf("srcset=\"" + imageUrl + " 1x, " + hiDpiImageUrl + " 2x\"") != -1);
+    assertTrue(renderer.generateImgHtml(500, 600, imageUrl, "<xml_content/>", false).indexOf("srcset") == -1);
+  }
+  
+  /**
+   * Tests that the equations encoded in the URL are retrieved without the editing session.
+   */
+  @Test
+  public void testStatelessImageUrl() {
+    WebappMathMLRenderer renderer = new WebappMathMLRenderer();
+    String xml = "<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><mi>x</mi></math>";
+    String token = EquationUrlCodec.encode(xml);
+    String imageUrl = renderer.getImageUrl("doc", 1L, "hash", token, ImageFormat.PNG, 2);
+    assertTrue(imageUrl.startsWith("../plugins-dispatcher/mathml/" + MathmlServlet.STATELESS_SUB_PATH + "?eq=" + token));
+    assertTrue(imageUrl.endsWith("&scale=2"));
+    assertTrue(imageUrl.indexOf("docId=") == -1);
+    
+    // The equations too long for a URL are retrieved through the session.
+    assertTrue(renderer.getImageUrl("doc", 1L, "hash", null, ImageFormat.PNG, 1).indexOf("docId=doc") != -1);
+  }
 }
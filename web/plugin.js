@@ -28,23 +28,281 @@
             "fr_FR": "Éditeur MathML",
             "ja_JP": "MathML エディタ",
             "nl_NL": "MathML-editor"
+          },
+          MATHML_SOURCE_NOT_LOADED_: {
+            "en_US": "The MathML source could not be loaded.",
+            "de_DE": "Die MathML-Quelle konnte nicht geladen werden.",
+            "fr_FR": "La source MathML n'a pas pu être chargée.",
+            "ja_JP": "MathML ソースを読み込めませんでした。",
+            "nl_NL": "De MathML-bron kon niet worden geladen."
           }
     };
     sync.Translation.addTranslations(translationSet);
+
+    var img = this.formControl.childNodes[0];
+    if (img && goog.dom.classlist.contains(img, 'mathml-sprite')) {
+      MathMLEnhancer.queueSpriteImage_(img);
+    } else if (img) {
+      MathMLEnhancer.watchImage_(img);
+    }
+  };
+
+  /**
+   * The delay before requesting again an equation that was not rendered in time, in milliseconds.
+   * @type {number}
+   * @private
+   */
+  MathMLEnhancer.RETRY_DELAY_ = 500;
+
+  /**
+   * The maximum delay between the requests of an equation that is not rendered yet, in milliseconds.
+   * @type {number}
+   * @private
+   */
+  MathMLEnhancer.MAX_RETRY_DELAY_ = 16000;
+
+  /**
+   * The maximum number of times an equation that is not rendered yet is requested again.
+   * @type {number}
+   * @private
+   */
+  MathMLEnhancer.MAX_RETRIES_ = 10;
+
+  /**
+   * The header that marks the placeholder served for the equations that are not rendered yet.
+   * @type {string}
+   * @private
+   */
+  MathMLEnhancer.PENDING_HEADER_ = 'X-MathML-Pending';
+
+  /**
+   * Requests the equation again, with exponential backoff, while the server answers with the
+   * placeholder of the equations that are still rendered in the background, or with 503 when
+   * too many equations are being rendered. The image does not tell which response it received,
+   * so when it loads a single pixel or fails, the server is asked again with a HEAD request,
+   * which does not download the image. Once the equation is rendered, the image loads it from
+   * the URL that was probed. The other errors, like the equations that cannot be parsed, are
+   * not retried.
+   *
+   * @param {HTMLElement} img The image of the equation.
+   * @private
+   */
+  MathMLEnhancer.watchImage_ = function(img) {
+    var retries = 0;
+    // Set when the server answered with the equation, or with an error that is not retried.
+    var settled = false;
+    var probe = function() {
+      var attempt = retries + 1;
+      var url = MathMLEnhancer.withAttempt_(img.currentSrc || img.getAttribute('src'), attempt);
+      goog.net.XhrIo.send(url, function(e) {
+        var xhr = e.target;
+        if (xhr.getStatus() === 503 || xhr.getResponseHeader(MathMLEnhancer.PENDING_HEADER_)) {
+          if (retries < MathMLEnhancer.MAX_RETRIES_) {
+            var delay = Math.min(MathMLEnhancer.RETRY_DELAY_ * Math.pow(2, retries),
+                MathMLEnhancer.MAX_RETRY_DELAY_);
+            retries++;
+            setTimeout(probe, delay);
+          }
+        } else {
+          settled = true;
+          if (xhr.isSuccess()) {
+            // The equation is rendered now, display it from the URL that was probed.
+            MathMLEnhancer.reloadImage_(img, attempt);
+          }
+        }
+      }, 'HEAD');
+    };
+    var check = function() {
+      if (settled || img.naturalWidth !== 1 || img.naturalHeight !== 1) {
+        // The equation is rendered, it takes its own size.
+        goog.dom.classlist.remove(img, 'mathml-pending');
+      } else {
+        probe();
+      }
+    };
+    var onError = function() {
+      if (!settled) {
+        probe();
+      }
+    };
+    goog.events.listen(img, goog.events.EventType.LOAD, check);
+    goog.events.listen(img, goog.events.EventType.ERROR, onError);
+    if (img.complete) {
+      // The image was loaded, or failed to load, before it was enhanced.
+      img.naturalWidth ? check() : onError();
+    }
+  };
+
+  /**
+   * @param {string} url The URL of an equation image.
+   * @param {number} attempt The number of the attempt.
+   * @return {string} The URL, with the number of the attempt so that it is not loaded from the cache.
+   * @private
+   */
+  MathMLEnhancer.withAttempt_ = function(url, attempt) {
+    return url.replace(/&retry=\d+$/, '') + '&retry=' + attempt;
+  };
+
+  /**
+   * Requests the image of an equation again, bypassing the placeholder loaded before.
+   *
+   * @param {HTMLElement} img The image of the equation.
+   * @param {number} attempt The number of the attempt.
+   * @private
+   */
+  MathMLEnhancer.reloadImage_ = function(img, attempt) {
+    var srcset = img.getAttribute('srcset');
+    if (srcset) {
+      img.setAttribute('srcset', srcset.split(', ').map(function(candidate) {
+        var parts = candidate.split(' ');
+        return MathMLEnhancer.withAttempt_(parts[0], attempt) + ' ' + parts[1];
+      }).join(', '));
+    }
+    img.src = MathMLEnhancer.withAttempt_(img.getAttribute('src'), attempt);
+  };
+
+  /**
+   * The maximum number of equations requested in a sprite.
+   * @type {number}
+   * @private
+   */
+  MathMLEnhancer.MAX_SPRITE_EQUATIONS_ = 256;
+
+  /**
+   * The images waiting for their sprite to be loaded, by document ID.
+   * @type {Object<string, Array<HTMLElement>>}
+   * @private
+   */
+  MathMLEnhancer.pendingSpriteImages_ = {};
+
+  /**
+   * Schedules the loading of the sprite that contains the equation of the given image.
+   *
+   * @param {HTMLElement} img The image of the equation.
+   * @private
+   */
+  MathMLEnhancer.queueSpriteImage_ = function(img) {
+    var docId = goog.dom.dataset.get(img, 'docId');
+    var pending = MathMLEnhancer.pendingSpriteImages_[docId];
+    if (!pending) {
+      pending = MathMLEnhancer.pendingSpriteImages_[docId] = [];
+      // Wait for the other equations rendered at the same time.
+      setTimeout(goog.partial(MathMLEnhancer.loadSprites_, docId), 0);
+    }
+    pending.push(img);
+  };
+
+  /**
+   * Loads the sprites for the images queued for a document.
+   *
+   * @param {string} docId The document ID.
+   * @private
+   */
+  MathMLEnhancer.loadSprites_ = function(docId) {
+    var images = MathMLEnhancer.pendingSpriteImages_[docId] || [];
+    delete MathMLEnhancer.pendingSpriteImages_[docId];
+    for (var i = 0; i < images.length; i += MathMLEnhancer.MAX_SPRITE_EQUATIONS_) {
+      MathMLEnhancer.loadSprite_(docId, images.slice(i, i + MathMLEnhancer.MAX_SPRITE_EQUATIONS_));
+    }
+  };
+
+  /**
+   * Loads a sprite and displays it as the background of the images of its equations.
+   * If the sprite cannot be loaded in time, each image loads its equation separately, and so do
+   * the equations left out of the sprite because they were not laid out in time.
+   *
+   * @param {string} docId The document ID.
+   * @param {Array<HTMLElement>} images The images of the equations.
+   * @private
+   */
+  MathMLEnhancer.loadSprite_ = function(docId, images) {
+    var elemIds = images.map(function(img) {
+      return goog.dom.dataset.get(img, 'elemId');
+    });
+    var url = '../plugins-dispatcher/mathml/sprite-map?docId=' + encodeURIComponent(docId) +
+        '&elemIds=' + elemIds.join(',');
+    goog.net.XhrIo.send(url, function(e) {
+      var xhr = e.target;
+      var spriteMap = xhr.isSuccess() ? xhr.getResponseJson() : null;
+      var spriteImages = [];
+      var offsets = [];
+      for (var i = 0; i < images.length; i++) {
+        var offset = spriteMap && spriteMap.equations[elemIds[i]];
+        if (offset) {
+          spriteImages.push(images[i]);
+          offsets.push(offset);
+        } else {
+          MathMLEnhancer.loadSeparately_(images[i]);
+        }
+      }
+      if (spriteImages.length) {
+        // Load the sprite before using it as background, to know if it failed.
+        var sprite = new Image();
+        goog.events.listenOnce(sprite, goog.events.EventType.LOAD, function() {
+          if (sprite.naturalWidth !== spriteMap.width || sprite.naturalHeight !== spriteMap.height) {
+            // The server answered with the placeholder, the sprite was not painted in time.
+            spriteImages.forEach(MathMLEnhancer.loadSeparately_);
+            return;
+          }
+          for (var i = 0; i < spriteImages.length; i++) {
+            spriteImages[i].style.background = 'url("' + spriteMap.src + '") -' + offsets[i].x + 'px -' +
+                offsets[i].y + 'px no-repeat';
+          }
+        });
+        goog.events.listenOnce(sprite, goog.events.EventType.ERROR, function() {
+          spriteImages.forEach(MathMLEnhancer.loadSeparately_);
+        });
+        sprite.src = spriteMap.src;
+      }
+    });
+  };
+
+  /**
+   * Makes an image load its equation separately, instead of from the sprite.
+   *
+   * @param {HTMLElement} img The image of the equation.
+   * @private
+   */
+  MathMLEnhancer.loadSeparately_ = function(img) {
+    img.src = goog.dom.dataset.get(img, 'src');
+    MathMLEnhancer.watchImage_(img);
   };
 
   /**
    * Begins the MathML fragment editing.
    */
   MathMLEnhancer.prototype.beginEditing = function() {
+    var img = this.formControl.childNodes[0];
+    var sourceUrl = goog.dom.dataset.get(img, 'sourceUrl');
+    if (sourceUrl) {
+      // The source is not embedded in the page, load it now.
+      goog.net.XhrIo.send(sourceUrl, goog.bind(function(e) {
+        var xhr = e.target;
+        if (xhr.isSuccess()) {
+          this.showEditingDialog_(xhr.getResponseText());
+        } else {
+          workspace.getNotificationManager().showError(tr(msgs.MATHML_SOURCE_NOT_LOADED_));
+        }
+      }, this));
+    } else {
+      this.showEditingDialog_(img.getAttribute("alt"));
+    }
+  };
+
+  /**
+   * Shows the dialog used to edit the MathML fragment.
+   *
+   * @param {string} source The MathML fragment as a string.
+   * @private
+   */
+  MathMLEnhancer.prototype.showEditingDialog_ = function(source) {
     var dialog = this.getDialog();
     
     var mathMlEditor = dialog.getElement().childNodes[0];
-    var alt = this.formControl.childNodes[0].getAttribute("alt");
-    mathMlEditor.value = alt;
+    mathMlEditor.value = source;
     
     dialog.show();
-    dialog.onSelect(goog.bind(this.commitFragment, this, mathMlEditor, alt));
+    dialog.onSelect(goog.bind(this.commitFragment, this, mathMlEditor, source));
   };
   
   /**